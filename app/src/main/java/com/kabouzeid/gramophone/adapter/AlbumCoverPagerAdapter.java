@@ -18,7 +18,7 @@ import com.kabouzeid.gramophone.util.PreferenceUtil;
 
 import org.omnirom.gramophone.R;
 
-import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author Karim Abou Zeid (kabouzeid)
@@ -26,12 +26,12 @@ import java.util.ArrayList;
 public class AlbumCoverPagerAdapter extends CustomFragmentStatePagerAdapter {
     public static final String TAG = AlbumCoverPagerAdapter.class.getSimpleName();
 
-    private ArrayList<Song> dataSet;
+    private List<Song> dataSet;
 
     private AlbumCoverFragment.ColorReceiver currentColorReceiver;
     private int currentColorReceiverPosition = -1;
 
-    public AlbumCoverPagerAdapter(FragmentManager fm, ArrayList<Song> dataSet) {
+    public AlbumCoverPagerAdapter(FragmentManager fm, List<Song> dataSet) {
         super(fm);
         this.dataSet = dataSet;
     }
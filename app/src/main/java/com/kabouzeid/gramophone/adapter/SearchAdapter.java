@@ -54,6 +54,19 @@ public class SearchAdapter extends RecyclerView.Adapter<SearchAdapter.ViewHolder
         notifyDataSetChanged();
     }
 
+    /**
+     * Appends the items to the data set, e.g. the results of the next category while a search is still running.
+     */
+    public void addItems(@NonNull List<Object> items) {
+        if (items.isEmpty()) return;
+        final int start = dataSet.size();
+        List<Object> newDataSet = new ArrayList<>(start + items.size());
+        newDataSet.addAll(dataSet);
+        newDataSet.addAll(items);
+        dataSet = newDataSet;
+        notifyItemRangeInserted(start, items.size());
+    }
+
     @Override
     public int getItemViewType(int position) {
         if (dataSet.get(position) instanceof Album) return ALBUM;
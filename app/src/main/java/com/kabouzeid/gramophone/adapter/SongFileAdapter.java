@@ -13,7 +13,6 @@ import android.view.ViewGroup;
 
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.load.engine.DiskCacheStrategy;
-import com.bumptech.glide.signature.MediaStoreSignature;
 import com.kabouzeid.appthemehelper.util.ATHUtil;
 import com.kabouzeid.gramophone.adapter.base.AbsMultiSelectAdapter;
 import com.kabouzeid.gramophone.adapter.base.MediaEntryViewHolder;
@@ -118,12 +117,11 @@ public class SongFileAdapter extends AbsMultiSelectAdapter<SongFileAdapter.ViewH
         } else {
             Drawable error = Util.getTintedVectorDrawable(activity, R.drawable.ic_file_music_white_24dp, iconColor);
             Glide.with(activity)
-                    .load(new AudioFileCover(file.getPath()))
+                    .load(new AudioFileCover(-1, file.getPath(), file.lastModified() / 1000))
                     .diskCacheStrategy(DiskCacheStrategy.NONE)
                     .error(error)
                     .placeholder(error)
                     .animate(android.R.anim.fade_in)
-                    .signature(new MediaStoreSignature("", file.lastModified(), 0))
                     .into(holder.image);
         }
     }
@@ -6,6 +6,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.util.Pair;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.util.DiffUtil;
 import android.view.LayoutInflater;
 import android.view.MenuItem;
 import android.view.View;
@@ -16,10 +17,12 @@ import com.kabouzeid.appthemehelper.util.ColorUtil;
 import com.kabouzeid.appthemehelper.util.MaterialValueHelper;
 import com.kabouzeid.gramophone.adapter.base.AbsMultiSelectAdapter;
 import com.kabouzeid.gramophone.adapter.base.MediaEntryViewHolder;
+import com.kabouzeid.gramophone.adapter.base.StableIdDiffCallback;
 import com.kabouzeid.gramophone.glide.PhonographColoredTarget;
 import com.kabouzeid.gramophone.glide.SongGlideRequest;
 import com.kabouzeid.gramophone.helper.menu.SongsMenuHelper;
 import com.kabouzeid.gramophone.interfaces.CabHolder;
+import com.kabouzeid.gramophone.loader.LibraryChangeSet;
 import com.kabouzeid.gramophone.model.Album;
 import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.util.MusicUtil;
@@ -65,6 +68,21 @@ public class AlbumAdapter extends AbsMultiSelectAdapter<AlbumAdapter.ViewHolder,
         notifyDataSetChanged();
     }
 
+    /**
+     * Like {@link #swapDataSet(ArrayList)} but only notifies about the items that actually changed.
+     *
+     * @param oldDataSet the data set the diff was calculated from, everything is rebound if it isn't shown anymore
+     * @param diffResult see {@link StableIdDiffCallback#diffAlbums(List, List, LibraryChangeSet)}
+     */
+    public void swapDataSetGranular(ArrayList<Album> dataSet, ArrayList<Album> oldDataSet, DiffUtil.DiffResult diffResult) {
+        if (this.dataSet != oldDataSet) {
+            swapDataSet(dataSet);
+            return;
+        }
+        this.dataSet = dataSet;
+        diffResult.dispatchUpdatesTo(this);
+    }
+
     public ArrayList<Album> getDataSet() {
         return dataSet;
     }
@@ -130,10 +148,11 @@ public class AlbumAdapter extends AbsMultiSelectAdapter<AlbumAdapter.ViewHolder,
     protected void loadAlbumCover(Album album, final ViewHolder holder) {
         if (holder.image == null) return;
 
-        SongGlideRequest.Builder.from(Glide.with(activity), album.safeGetFirstSong())
+        final SongGlideRequest.PaletteBuilder request = SongGlideRequest.Builder.from(Glide.with(activity), album.safeGetFirstSong())
                 .checkIgnoreMediaStore(activity)
-                .generatePalette(activity).build()
-                .into(new PhonographColoredTarget(holder.image) {
+                .generatePalette(activity);
+        request.build()
+                .into(new PhonographColoredTarget(holder.image, request.getPaletteKey()) {
                     @Override
                     public void onLoadCleared(Drawable placeholder) {
                         super.onLoadCleared(placeholder);
@@ -6,6 +6,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.util.Pair;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.util.DiffUtil;
 import android.view.LayoutInflater;
 import android.view.MenuItem;
 import android.view.View;
@@ -19,12 +20,14 @@ import com.kabouzeid.appthemehelper.util.ColorUtil;
 import com.kabouzeid.appthemehelper.util.MaterialValueHelper;
 import com.kabouzeid.gramophone.adapter.base.AbsMultiSelectAdapter;
 import com.kabouzeid.gramophone.adapter.base.MediaEntryViewHolder;
+import com.kabouzeid.gramophone.adapter.base.StableIdDiffCallback;
 import com.kabouzeid.gramophone.glide.ArtistGlideRequest;
 import com.kabouzeid.gramophone.glide.PhonographColoredTarget;
 import com.kabouzeid.gramophone.glide.palette.BitmapPaletteTranscoder;
 import com.kabouzeid.gramophone.glide.palette.BitmapPaletteWrapper;
 import com.kabouzeid.gramophone.helper.menu.SongsMenuHelper;
 import com.kabouzeid.gramophone.interfaces.CabHolder;
+import com.kabouzeid.gramophone.loader.LibraryChangeSet;
 import com.kabouzeid.gramophone.model.Artist;
 import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.util.ArtistSignatureUtil;
@@ -63,6 +66,21 @@ public class ArtistAdapter extends AbsMultiSelectAdapter<ArtistAdapter.ViewHolde
         notifyDataSetChanged();
     }
 
+    /**
+     * Like {@link #swapDataSet(ArrayList)} but only notifies about the items that actually changed.
+     *
+     * @param oldDataSet the data set the diff was calculated from, everything is rebound if it isn't shown anymore
+     * @param diffResult see {@link StableIdDiffCallback#diffArtists(List, List, LibraryChangeSet)}
+     */
+    public void swapDataSetGranular(ArrayList<Artist> dataSet, ArrayList<Artist> oldDataSet, DiffUtil.DiffResult diffResult) {
+        if (this.dataSet != oldDataSet) {
+            swapDataSet(dataSet);
+            return;
+        }
+        this.dataSet = dataSet;
+        diffResult.dispatchUpdatesTo(this);
+    }
+
     public ArrayList<Artist> getDataSet() {
         return dataSet;
     }
@@ -128,9 +146,10 @@ public class ArtistAdapter extends AbsMultiSelectAdapter<ArtistAdapter.ViewHolde
 
     protected void loadArtistImage(Artist artist, final ViewHolder holder) {
         if (holder.image == null) return;
-        ArtistGlideRequest.Builder.from(Glide.with(activity), artist)
-                .generatePalette(activity).build()
-                .into(new PhonographColoredTarget(holder.image) {
+        final ArtistGlideRequest.PaletteBuilder request = ArtistGlideRequest.Builder.from(Glide.with(activity), artist)
+                .generatePalette(activity);
+        request.build()
+                .into(new PhonographColoredTarget(holder.image, request.getPaletteKey()) {
                     @Override
                     public void onLoadCleared(Drawable placeholder) {
                         super.onLoadCleared(placeholder);
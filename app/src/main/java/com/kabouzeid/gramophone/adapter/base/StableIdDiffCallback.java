@@ -0,0 +1,199 @@
+package com.kabouzeid.gramophone.adapter.base;
+
+import android.support.annotation.NonNull;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.util.ListUpdateCallback;
+import android.support.v7.widget.RecyclerView;
+
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
+import com.kabouzeid.gramophone.loader.LibraryChangeSet;
+import com.kabouzeid.gramophone.model.Album;
+import com.kabouzeid.gramophone.model.Artist;
+import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.model.SongTableList;
+
+import java.util.List;
+
+/**
+ * Diffs two lists of items that have stable ids, so an adapter can be told exactly which items changed
+ * instead of rebinding everything with {@link RecyclerView.Adapter#notifyDataSetChanged()}.
+ * <p/>
+ * Only the ids of the items are compared, which items have new contents is taken from the {@link LibraryChangeSet}.
+ * The diff covers the whole list, so it is calculated by the loader in the background and only dispatched on the
+ * main thread.
+ */
+public class StableIdDiffCallback extends DiffUtil.Callback {
+    @NonNull
+    private final long[] oldIds;
+    @NonNull
+    private final long[] newIds;
+    // the ids of the items whose contents changed
+    @NonNull
+    private final LongIntHashMap changedIds;
+
+    public StableIdDiffCallback(@NonNull long[] oldIds, @NonNull long[] newIds, @NonNull LongIntHashMap changedIds) {
+        this.oldIds = oldIds;
+        this.newIds = newIds;
+        this.changedIds = changedIds;
+    }
+
+    @Override
+    public int getOldListSize() {
+        return oldIds.length;
+    }
+
+    @Override
+    public int getNewListSize() {
+        return newIds.length;
+    }
+
+    @Override
+    public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+        return oldIds[oldItemPosition] == newIds[newItemPosition];
+    }
+
+    @Override
+    public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+        return !changedIds.containsKey(newIds[newItemPosition]);
+    }
+
+    @NonNull
+    public static DiffUtil.DiffResult diffSongs(@NonNull List<Song> oldSongs, @NonNull List<Song> newSongs, @NonNull LibraryChangeSet changeSet) {
+        final LongIntHashMap updatedIds = new LongIntHashMap(changeSet.updatedIds.length);
+        for (long id : changeSet.updatedIds) {
+            updatedIds.put(id, 1);
+        }
+        return DiffUtil.calculateDiff(new StableIdDiffCallback(getSongIds(oldSongs), getSongIds(newSongs), updatedIds), false);
+    }
+
+    @NonNull
+    public static DiffUtil.DiffResult diffAlbums(@NonNull List<Album> oldAlbums, @NonNull List<Album> newAlbums, @NonNull LibraryChangeSet changeSet) {
+        final LongIntHashMap changedSongIds = getChangedSongIds(changeSet);
+        final LongIntHashMap changedAlbumIds = new LongIntHashMap();
+        addChangedAlbums(oldAlbums, changedSongIds, changedAlbumIds);
+        addChangedAlbums(newAlbums, changedSongIds, changedAlbumIds);
+        return DiffUtil.calculateDiff(new StableIdDiffCallback(getAlbumIds(oldAlbums), getAlbumIds(newAlbums), changedAlbumIds), false);
+    }
+
+    @NonNull
+    public static DiffUtil.DiffResult diffArtists(@NonNull List<Artist> oldArtists, @NonNull List<Artist> newArtists, @NonNull LibraryChangeSet changeSet) {
+        final LongIntHashMap changedSongIds = getChangedSongIds(changeSet);
+        final LongIntHashMap changedArtistIds = new LongIntHashMap();
+        addChangedArtists(oldArtists, changedSongIds, changedArtistIds);
+        addChangedArtists(newArtists, changedSongIds, changedArtistIds);
+        return DiffUtil.calculateDiff(new StableIdDiffCallback(getArtistIds(oldArtists), getArtistIds(newArtists), changedArtistIds), false);
+    }
+
+    /**
+     * Albums and artists change with the songs that were added to them or removed from them as well.
+     */
+    @NonNull
+    private static LongIntHashMap getChangedSongIds(@NonNull LibraryChangeSet changeSet) {
+        final LongIntHashMap ids = new LongIntHashMap(changeSet.size());
+        for (long id : changeSet.addedIds) {
+            ids.put(id, 1);
+        }
+        for (long id : changeSet.updatedIds) {
+            ids.put(id, 1);
+        }
+        for (long id : changeSet.removedIds) {
+            ids.put(id, 1);
+        }
+        return ids;
+    }
+
+    private static void addChangedAlbums(@NonNull List<Album> albums, @NonNull LongIntHashMap changedSongIds, @NonNull LongIntHashMap changedAlbumIds) {
+        for (Album album : albums) {
+            if (containsAny(album.songs, changedSongIds)) {
+                changedAlbumIds.put(album.getId(), 1);
+            }
+        }
+    }
+
+    private static void addChangedArtists(@NonNull List<Artist> artists, @NonNull LongIntHashMap changedSongIds, @NonNull LongIntHashMap changedArtistIds) {
+        for (Artist artist : artists) {
+            for (Album album : artist.albums) {
+                if (containsAny(album.songs, changedSongIds)) {
+                    changedArtistIds.put(artist.getId(), 1);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static boolean containsAny(@NonNull List<Song> songs, @NonNull LongIntHashMap ids) {
+        for (int i = 0; i < songs.size(); i++) {
+            if (ids.containsKey(getSongId(songs, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Doesn't create the songs of a {@link SongTableList}.
+     */
+    private static long getSongId(@NonNull List<Song> songs, int index) {
+        return songs instanceof SongTableList ? ((SongTableList) songs).getId(index) : songs.get(index).id;
+    }
+
+    @NonNull
+    private static long[] getSongIds(@NonNull List<Song> songs) {
+        final long[] ids = new long[songs.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = getSongId(songs, i);
+        }
+        return ids;
+    }
+
+    @NonNull
+    private static long[] getAlbumIds(@NonNull List<Album> albums) {
+        final long[] ids = new long[albums.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = albums.get(i).getId();
+        }
+        return ids;
+    }
+
+    @NonNull
+    private static long[] getArtistIds(@NonNull List<Artist> artists) {
+        final long[] ids = new long[artists.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = artists.get(i).getId();
+        }
+        return ids;
+    }
+
+    /**
+     * Forwards the updates of a diff to an adapter that shows other items in front of the list.
+     */
+    public static class OffsetListUpdateCallback implements ListUpdateCallback {
+        private final RecyclerView.Adapter adapter;
+        private final int offset;
+
+        public OffsetListUpdateCallback(@NonNull RecyclerView.Adapter adapter, int offset) {
+            this.adapter = adapter;
+            this.offset = offset;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            adapter.notifyItemRangeInserted(position + offset, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            adapter.notifyItemRangeRemoved(position + offset, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            adapter.notifyItemMoved(fromPosition + offset, toPosition + offset);
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            adapter.notifyItemRangeChanged(position + offset, count, payload);
+        }
+    }
+}
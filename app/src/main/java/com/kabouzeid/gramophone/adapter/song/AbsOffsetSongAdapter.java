@@ -14,7 +14,7 @@ import com.kabouzeid.gramophone.model.Song;
 
 import org.omnirom.gramophone.R;
 
-import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author Eugene Cheung (arkon)
@@ -24,11 +24,11 @@ public abstract class AbsOffsetSongAdapter extends SongAdapter {
     protected static final int OFFSET_ITEM = 0;
     protected static final int SONG = 1;
 
-    public AbsOffsetSongAdapter(AppCompatActivity activity, ArrayList<Song> dataSet, @LayoutRes int itemLayoutRes, boolean usePalette, @Nullable CabHolder cabHolder) {
+    public AbsOffsetSongAdapter(AppCompatActivity activity, List<Song> dataSet, @LayoutRes int itemLayoutRes, boolean usePalette, @Nullable CabHolder cabHolder) {
         super(activity, dataSet, itemLayoutRes, usePalette, cabHolder);
     }
 
-    public AbsOffsetSongAdapter(AppCompatActivity activity, ArrayList<Song> dataSet, @LayoutRes int itemLayoutRes, boolean usePalette, @Nullable CabHolder cabHolder, boolean showSectionName) {
+    public AbsOffsetSongAdapter(AppCompatActivity activity, List<Song> dataSet, @LayoutRes int itemLayoutRes, boolean usePalette, @Nullable CabHolder cabHolder, boolean showSectionName) {
         super(activity, dataSet, itemLayoutRes, usePalette, cabHolder, showSectionName);
     }
 
@@ -47,6 +47,11 @@ public abstract class AbsOffsetSongAdapter extends SongAdapter {
         return new AbsOffsetSongAdapter.ViewHolder(view);
     }
 
+    @Override
+    protected int getDataSetOffset() {
+        return 1;
+    }
+
     @Override
     public long getItemId(int position) {
         position--;
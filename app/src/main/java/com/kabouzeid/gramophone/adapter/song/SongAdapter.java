@@ -6,6 +6,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.util.Pair;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.util.DiffUtil;
 import android.view.LayoutInflater;
 import android.view.MenuItem;
 import android.view.View;
@@ -17,13 +18,16 @@ import com.kabouzeid.appthemehelper.util.ColorUtil;
 import com.kabouzeid.appthemehelper.util.MaterialValueHelper;
 import com.kabouzeid.gramophone.adapter.base.AbsMultiSelectAdapter;
 import com.kabouzeid.gramophone.adapter.base.MediaEntryViewHolder;
+import com.kabouzeid.gramophone.adapter.base.StableIdDiffCallback;
 import com.kabouzeid.gramophone.glide.PhonographColoredTarget;
 import com.kabouzeid.gramophone.glide.SongGlideRequest;
 import com.kabouzeid.gramophone.helper.MusicPlayerRemote;
 import com.kabouzeid.gramophone.helper.menu.SongMenuHelper;
 import com.kabouzeid.gramophone.helper.menu.SongsMenuHelper;
 import com.kabouzeid.gramophone.interfaces.CabHolder;
+import com.kabouzeid.gramophone.loader.LibraryChangeSet;
 import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.model.SongTableList;
 import com.kabouzeid.gramophone.util.MusicUtil;
 import com.kabouzeid.gramophone.util.NavigationUtil;
 import com.simplecityapps.recyclerview_fastscroll.views.FastScrollRecyclerView;
@@ -32,6 +36,7 @@ import org.omnirom.gramophone.R;
 
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author Karim Abou Zeid (kabouzeid)
@@ -41,18 +46,18 @@ public class SongAdapter extends AbsMultiSelectAdapter<SongAdapter.ViewHolder, S
     public static final String TAG = AlbumSongAdapter.class.getSimpleName();
 
     protected final AppCompatActivity activity;
-    protected ArrayList<Song> dataSet;
+    protected List<Song> dataSet;
 
     protected int itemLayoutRes;
 
     protected boolean usePalette = false;
     protected boolean showSectionName = true;
 
-    public SongAdapter(AppCompatActivity activity, ArrayList<Song> dataSet, @LayoutRes int itemLayoutRes, boolean usePalette, @Nullable CabHolder cabHolder) {
+    public SongAdapter(AppCompatActivity activity, List<Song> dataSet, @LayoutRes int itemLayoutRes, boolean usePalette, @Nullable CabHolder cabHolder) {
         this(activity, dataSet, itemLayoutRes, usePalette, cabHolder, true);
     }
 
-    public SongAdapter(AppCompatActivity activity, ArrayList<Song> dataSet, @LayoutRes int itemLayoutRes, boolean usePalette, @Nullable CabHolder cabHolder, boolean showSectionName) {
+    public SongAdapter(AppCompatActivity activity, List<Song> dataSet, @LayoutRes int itemLayoutRes, boolean usePalette, @Nullable CabHolder cabHolder, boolean showSectionName) {
         super(activity, cabHolder, R.menu.menu_media_selection);
         this.activity = activity;
         this.dataSet = dataSet;
@@ -62,22 +67,48 @@ public class SongAdapter extends AbsMultiSelectAdapter<SongAdapter.ViewHolder, S
         setHasStableIds(true);
     }
 
-    public void swapDataSet(ArrayList<Song> dataSet) {
+    public void swapDataSet(List<Song> dataSet) {
         this.dataSet = dataSet;
         notifyDataSetChanged();
     }
 
+    /**
+     * Like {@link #swapDataSet(List)} but only notifies about the items that actually changed.
+     *
+     * @param oldDataSet the data set the diff was calculated from, everything is rebound if it isn't shown anymore
+     * @param diffResult see {@link StableIdDiffCallback#diffSongs(List, List, LibraryChangeSet)}
+     */
+    public void swapDataSetGranular(List<Song> dataSet, List<Song> oldDataSet, DiffUtil.DiffResult diffResult) {
+        if (this.dataSet != oldDataSet) {
+            swapDataSet(dataSet);
+            return;
+        }
+        this.dataSet = dataSet;
+        diffResult.dispatchUpdatesTo(new StableIdDiffCallback.OffsetListUpdateCallback(this, getDataSetOffset()));
+    }
+
+    /**
+     * @return the number of items shown in front of the data set
+     */
+    protected int getDataSetOffset() {
+        return 0;
+    }
+
     public void usePalette(boolean usePalette) {
         this.usePalette = usePalette;
         notifyDataSetChanged();
     }
 
-    public ArrayList<Song> getDataSet() {
+    public List<Song> getDataSet() {
         return dataSet;
     }
 
     @Override
     public long getItemId(int position) {
+        if (dataSet instanceof SongTableList) {
+            // no need to create the song just for its id
+            return ((SongTableList) dataSet).getId(position);
+        }
         return dataSet.get(position).id;
     }
 
@@ -135,10 +166,11 @@ public class SongAdapter extends AbsMultiSelectAdapter<SongAdapter.ViewHolder, S
     protected void loadAlbumCover(Song song, final ViewHolder holder) {
         if (holder.image == null) return;
 
-        SongGlideRequest.Builder.from(Glide.with(activity), song)
+        final SongGlideRequest.PaletteBuilder request = SongGlideRequest.Builder.from(Glide.with(activity), song)
                 .checkIgnoreMediaStore(activity)
-                .generatePalette(activity).build()
-                .into(new PhonographColoredTarget(holder.image) {
+                .generatePalette(activity);
+        request.build()
+                .into(new PhonographColoredTarget(holder.image, request.getPaletteKey()) {
                     @Override
                     public void onLoadCleared(Drawable placeholder) {
                         super.onLoadCleared(placeholder);
@@ -106,11 +106,18 @@ public class ArtistGlideRequest {
             this.context = context;
         }
 
+        /**
+         * @return the key the palette of the image is stored with, see {@link PhonographColoredTarget}
+         */
+        public String getPaletteKey() {
+            return createPaletteKey(builder.artist, builder.noCustomImage);
+        }
+
         public BitmapRequestBuilder<?, BitmapPaletteWrapper> build() {
             //noinspection unchecked
             return createBaseRequest(builder.requestManager, builder.artist, builder.noCustomImage)
                     .asBitmap()
-                    .transcode(new BitmapPaletteTranscoder(context), BitmapPaletteWrapper.class)
+                    .transcode(new BitmapPaletteTranscoder(context, getPaletteKey()), BitmapPaletteWrapper.class)
                     .diskCacheStrategy(DEFAULT_DISK_CACHE_STRATEGY)
                     .error(DEFAULT_ERROR_IMAGE)
                     .animate(DEFAULT_ANIMATION)
@@ -123,17 +130,31 @@ public class ArtistGlideRequest {
     public static DrawableTypeRequest createBaseRequest(RequestManager requestManager, Artist artist, boolean noCustomImage) {
         boolean hasCustomImage = CustomArtistImageUtil.getInstance(OmniApp.getInstance()).hasCustomArtistImage(artist);
         if (noCustomImage || !hasCustomImage) {
-            final List<AlbumCover> songs = new ArrayList<>();
-            for (final Album album : artist.albums) {
-                final Song song = album.safeGetFirstSong();
-                songs.add(new AlbumCover(album.getYear(), song.data));
-            }
-            return requestManager.load(new ArtistImage(artist.getName(), songs));
+            return requestManager.load(createArtistImage(artist));
         } else {
             return requestManager.load(CustomArtistImageUtil.getFile(artist));
         }
     }
 
+    private static ArtistImage createArtistImage(Artist artist) {
+        final List<AlbumCover> songs = new ArrayList<>();
+        for (final Album album : artist.albums) {
+            final Song song = album.safeGetFirstSong();
+            songs.add(new AlbumCover(album.getYear(), song.data, song.dateModified));
+        }
+        return new ArtistImage(artist.getName(), songs);
+    }
+
+    public static String createPaletteKey(Artist artist, boolean noCustomImage) {
+        final long signature = ArtistSignatureUtil.getInstance(OmniApp.getInstance()).getArtistSignatureRaw(artist.getName());
+        boolean hasCustomImage = CustomArtistImageUtil.getInstance(OmniApp.getInstance()).hasCustomArtistImage(artist);
+        if (noCustomImage || !hasCustomImage) {
+            // the mosaic changes with the album set
+            return "artist:" + artist.getName() + ":" + signature + ":" + createArtistImage(artist).toIdString().hashCode();
+        }
+        return "customartist:" + artist.getName() + ":" + signature;
+    }
+
     private static Key createSignature(Artist artist) {
         return ArtistSignatureUtil.getInstance(OmniApp.getInstance()).getArtistSignature(artist.getName());
     }
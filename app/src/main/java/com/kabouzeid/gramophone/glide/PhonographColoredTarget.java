@@ -1,19 +1,44 @@
 package com.kabouzeid.gramophone.glide;
 
 import android.graphics.drawable.Drawable;
+import android.support.annotation.Nullable;
+import android.support.v7.graphics.Palette;
 import android.widget.ImageView;
 
 import com.bumptech.glide.request.animation.GlideAnimation;
 import com.kabouzeid.appthemehelper.util.ATHUtil;
 import com.kabouzeid.gramophone.glide.palette.BitmapPaletteTarget;
 import com.kabouzeid.gramophone.glide.palette.BitmapPaletteWrapper;
+import com.kabouzeid.gramophone.provider.PaletteColorStore;
 import com.kabouzeid.gramophone.util.PhonographColorUtil;
 
 import org.omnirom.gramophone.R;
 
 public abstract class PhonographColoredTarget extends BitmapPaletteTarget {
+    @Nullable
+    private final String paletteKey;
+
     public PhonographColoredTarget(ImageView view) {
+        this(view, null);
+    }
+
+    /**
+     * @param paletteKey the palette key of the request, if its palette is known the color is ready before the image
+     */
+    public PhonographColoredTarget(ImageView view, @Nullable String paletteKey) {
         super(view);
+        this.paletteKey = paletteKey;
+    }
+
+    @Override
+    public void onLoadStarted(Drawable placeholder) {
+        super.onLoadStarted(placeholder);
+        if (paletteKey != null) {
+            Palette palette = PaletteColorStore.getInstance(getView().getContext()).peekPalette(paletteKey);
+            if (palette != null) {
+                onColorReady(PhonographColorUtil.getColor(palette, getDefaultFooterColor()));
+            }
+        }
     }
 
     @Override
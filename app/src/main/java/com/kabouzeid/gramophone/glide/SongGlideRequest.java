@@ -11,7 +11,9 @@ import com.bumptech.glide.RequestManager;
 import com.bumptech.glide.load.Key;
 import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.bumptech.glide.load.resource.drawable.GlideDrawable;
+import com.bumptech.glide.signature.EmptySignature;
 import com.bumptech.glide.signature.MediaStoreSignature;
+import com.kabouzeid.gramophone.glide.audiocover.AlbumCoverIndex;
 import com.kabouzeid.gramophone.glide.audiocover.AudioFileCover;
 import com.kabouzeid.gramophone.glide.palette.BitmapPaletteTranscoder;
 import com.kabouzeid.gramophone.glide.palette.BitmapPaletteWrapper;
@@ -67,7 +69,7 @@ public class SongGlideRequest {
                     .diskCacheStrategy(DEFAULT_DISK_CACHE_STRATEGY)
                     .error(DEFAULT_ERROR_IMAGE)
                     .animate(DEFAULT_ANIMATION)
-                    .signature(createSignature(song));
+                    .signature(createSignature(song, ignoreMediaStore));
         }
     }
 
@@ -85,7 +87,7 @@ public class SongGlideRequest {
                     .diskCacheStrategy(DEFAULT_DISK_CACHE_STRATEGY)
                     .error(DEFAULT_ERROR_IMAGE)
                     .animate(DEFAULT_ANIMATION)
-                    .signature(createSignature(builder.song));
+                    .signature(createSignature(builder.song, builder.ignoreMediaStore));
         }
     }
 
@@ -98,27 +100,48 @@ public class SongGlideRequest {
             this.context = context;
         }
 
+        /**
+         * @return the key the palette of the cover is stored with, see {@link PhonographColoredTarget}
+         */
+        public String getPaletteKey() {
+            return createPaletteKey(context, builder.song, builder.ignoreMediaStore);
+        }
+
         public BitmapRequestBuilder<?, BitmapPaletteWrapper> build() {
             //noinspection unchecked
             return createBaseRequest(builder.requestManager, builder.song, builder.ignoreMediaStore)
                     .asBitmap()
-                    .transcode(new BitmapPaletteTranscoder(context), BitmapPaletteWrapper.class)
+                    .transcode(new BitmapPaletteTranscoder(context, getPaletteKey()), BitmapPaletteWrapper.class)
                     .diskCacheStrategy(DEFAULT_DISK_CACHE_STRATEGY)
                     .error(DEFAULT_ERROR_IMAGE)
                     .animate(DEFAULT_ANIMATION)
-                    .signature(createSignature(builder.song));
+                    .signature(createSignature(builder.song, builder.ignoreMediaStore));
         }
     }
 
     public static DrawableTypeRequest createBaseRequest(RequestManager requestManager, Song song, boolean ignoreMediaStore) {
         if (ignoreMediaStore) {
-            return requestManager.load(new AudioFileCover(song.data));
+            return requestManager.load(new AudioFileCover(song.albumId, song.data, song.dateModified));
         } else {
             return requestManager.loadFromMediaStore(MusicUtil.getMediaStoreAlbumCoverUri(song.albumId));
         }
     }
 
-    public static Key createSignature(Song song) {
+    /**
+     * Called while binding list items, so it is the id of the cover, which the songs of an album share.
+     */
+    public static String createPaletteKey(Context context, Song song, boolean ignoreMediaStore) {
+        if (ignoreMediaStore) {
+            return "audiofile:" + AlbumCoverIndex.getInstance(context).getId(new AudioFileCover(song.albumId, song.data, song.dateModified));
+        }
+        return "mediastore:" + song.albumId + ":" + song.dateModified;
+    }
+
+    public static Key createSignature(Song song, boolean ignoreMediaStore) {
+        if (ignoreMediaStore) {
+            // the id of an AudioFileCover already changes with the file
+            return EmptySignature.obtain();
+        }
         return new MediaStoreSignature("", song.dateModified, 0);
     }
 }
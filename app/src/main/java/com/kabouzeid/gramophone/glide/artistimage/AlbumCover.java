@@ -9,10 +9,14 @@ public class AlbumCover {
 
     private String filePath;
 
-    public AlbumCover(int year, String filePath) {
+    // in seconds, like the MediaStore has it
+    private long dateModified;
+
+    public AlbumCover(int year, String filePath, long dateModified) {
 
         this.filePath = filePath;
         this.year = year;
+        this.dateModified = dateModified;
     }
 
     public int getYear() {
@@ -34,4 +38,14 @@ public class AlbumCover {
 
         this.filePath = filePath;
     }
+
+    public long getDateModified() {
+
+        return dateModified;
+    }
+
+    public void setDateModified(long dateModified) {
+
+        this.dateModified = dateModified;
+    }
 }
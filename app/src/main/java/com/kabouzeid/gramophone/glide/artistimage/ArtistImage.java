@@ -21,7 +21,7 @@ public class ArtistImage {
         StringBuilder id = new StringBuilder();
         id.append(artistName);
         for (AlbumCover albumCover: albumCovers) {
-            id.append(albumCover.getYear()).append(albumCover.getFilePath());
+            id.append(albumCover.getYear()).append(albumCover.getFilePath()).append(albumCover.getDateModified());
         }
         return id.toString();
     }
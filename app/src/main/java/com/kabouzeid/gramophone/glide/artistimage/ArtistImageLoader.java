@@ -9,7 +9,6 @@ import com.bumptech.glide.load.model.GenericLoaderFactory;
 import com.bumptech.glide.load.model.ModelLoader;
 import com.bumptech.glide.load.model.ModelLoaderFactory;
 import com.bumptech.glide.load.model.stream.StreamModelLoader;
-import com.kabouzeid.gramophone.util.PreferenceUtil;
 
 /**
  * @author Karim Abou Zeid (kabouzeid)
@@ -17,15 +16,17 @@ import com.kabouzeid.gramophone.util.PreferenceUtil;
 
 public class ArtistImageLoader implements StreamModelLoader<ArtistImage> {
     private Context context;
+    private final ArtistMosaicBuilder mosaicBuilder;
 
     public ArtistImageLoader(Context context) {
         this.context = context;
+        mosaicBuilder = new ArtistMosaicBuilder(context);
     }
 
     @Override
     public DataFetcher<InputStream> getResourceFetcher(final ArtistImage model, int width, int height) {
 
-        return new ArtistImageFetcher(model, PreferenceUtil.getInstance(context).ignoreMediaStoreArtwork());
+        return new ArtistImageFetcher(mosaicBuilder, model);
     }
 
     public static class Factory implements ModelLoaderFactory<ArtistImage, InputStream> {
@@ -0,0 +1,299 @@
+package com.kabouzeid.gramophone.glide.artistimage;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.kabouzeid.gramophone.glide.audiocover.AudioFileCoverUtils;
+import com.kabouzeid.gramophone.provider.EmbeddedCoverStore;
+
+/**
+ * Builds the image of an artist from the covers of its albums: the newest cover for up to three albums, a square
+ * mosaic of the covers otherwise.
+ * <p/>
+ * The covers are looked up and decoded in parallel, each one subsampled straight to the size of its tile. Finished
+ * mosaics are kept as JPEG in the cache dir, keyed by the album set of the artist, so they are only built again
+ * when the albums change.
+ */
+public class ArtistMosaicBuilder {
+    private static final String TAG = ArtistMosaicBuilder.class.getSimpleName();
+
+    public static final int MOSAIC_SIZE = 512;
+    private static final int JPEG_QUALITY = 85;
+    private static final String DIRECTORY_NAME = "artist_mosaics";
+
+    // caps the covers that are extracted and decoded at the same time
+    private static final int DECODE_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ArtistMosaic");
+        }
+    });
+
+    private final Context context;
+    private final File directory;
+
+    public ArtistMosaicBuilder(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+        directory = new File(this.context.getCacheDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * @return the image file for the artist or null if none of its albums has a cover
+     */
+    @Nullable
+    public File build(@NonNull final ArtistImage model) throws InterruptedException {
+        final String artistKey = hash(model.artistName);
+        final File cached = new File(directory, artistKey + "_" + hash(model.toIdString()) + ".jpg");
+        if (cached.exists()) {
+            return cached;
+        }
+
+        final List<Source> sources = resolveSources(model.albumCovers);
+        final int nbImages = sources.size();
+        if (nbImages == 0) {
+            return null;
+        }
+        if (nbImages <= 3) {
+            // we return the last cover album of the artist
+            Source newest = sources.get(0);
+            for (Source source : sources) {
+                if (source.year > newest.year) {
+                    newest = source;
+                }
+            }
+            return newest.getFile(MOSAIC_SIZE);
+        }
+
+        int divisor = 1;
+        for (int i = 1; i < nbImages && i * i <= nbImages; ++i) {
+            divisor = i;
+        }
+        divisor += 1;
+        if (nbImages < divisor * divisor) {
+            divisor -= 1;
+        }
+        final Bitmap mosaic = drawMosaic(sources.subList(0, divisor * divisor), divisor);
+        try {
+            write(mosaic, cached, artistKey);
+        } finally {
+            mosaic.recycle();
+        }
+        return cached;
+    }
+
+    /**
+     * @return the covers that could be found, in the order of the albums
+     */
+    @NonNull
+    private List<Source> resolveSources(@NonNull final List<AlbumCover> albumCovers) throws InterruptedException {
+        final EmbeddedCoverStore store = EmbeddedCoverStore.getInstance(context);
+        final List<Callable<Source>> tasks = new ArrayList<>(albumCovers.size());
+        for (final AlbumCover albumCover : albumCovers) {
+            tasks.add(new Callable<Source>() {
+                @Override
+                public Source call() {
+                    return resolveSource(store, albumCover);
+                }
+            });
+        }
+        final List<Source> sources = new ArrayList<>(tasks.size());
+        for (Future<Source> future : EXECUTOR.invokeAll(tasks)) {
+            final Source source = getResult(future);
+            if (source != null) {
+                sources.add(source);
+            }
+        }
+        return sources;
+    }
+
+    @Nullable
+    private static Source resolveSource(@NonNull final EmbeddedCoverStore store, @NonNull final AlbumCover albumCover) {
+        final String path = albumCover.getFilePath();
+        if (path == null) {
+            return null;
+        }
+        // the same key the song covers use, so both share one row and one extraction
+        final long dateModified = albumCover.getDateModified();
+        String hash = store.getHash(path, dateModified);
+        if (hash == null) {
+            hash = store.put(path, dateModified, AudioFileCoverUtils.readEmbeddedPicture(path));
+        }
+        if (!hash.equals(EmbeddedCoverStore.NO_COVER)) {
+            return new Source(albumCover.getYear(), store, hash, null);
+        }
+        final File folderCover = AudioFileCoverUtils.findFolderCover(path);
+        return folderCover != null ? new Source(albumCover.getYear(), store, null, folderCover) : null;
+    }
+
+    @NonNull
+    private static Bitmap drawMosaic(@NonNull final List<Source> sources, final int divisor) throws InterruptedException {
+        final int tileSize = (MOSAIC_SIZE / divisor) + 1;
+        final List<Callable<Bitmap>> tasks = new ArrayList<>(sources.size());
+        for (final Source source : sources) {
+            tasks.add(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    return decodeTile(source.getFile(tileSize), tileSize);
+                }
+            });
+        }
+
+        final Bitmap bitmap = Bitmap.createBitmap(MOSAIC_SIZE, MOSAIC_SIZE, Bitmap.Config.RGB_565);
+        final Canvas canvas = new Canvas(bitmap);
+        int x = 0;
+        int y = 0;
+        for (Future<Bitmap> future : EXECUTOR.invokeAll(tasks)) {
+            final Bitmap tile = getResult(future);
+            if (tile != null) {
+                canvas.drawBitmap(tile, x, y, null);
+                tile.recycle();
+            }
+            x += tileSize;
+            if (x >= MOSAIC_SIZE) {
+                x = 0;
+                y += tileSize;
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Reads the bounds first and decodes the cover subsampled to about the tile size, instead of decoding it
+     * completely before scaling it down.
+     */
+    @Nullable
+    private static Bitmap decodeTile(@Nullable final File file, final int tileSize) {
+        if (file == null) {
+            return null;
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inSampleSize = 1;
+        while (Math.min(options.outWidth, options.outHeight) / (options.inSampleSize * 2) >= tileSize) {
+            options.inSampleSize *= 2;
+        }
+        final Bitmap sampled = BitmapFactory.decodeFile(file.getPath(), options);
+        if (sampled == null) {
+            return null;
+        }
+        if (sampled.getWidth() == tileSize && sampled.getHeight() == tileSize) {
+            return sampled;
+        }
+        final Bitmap tile = Bitmap.createScaledBitmap(sampled, tileSize, tileSize, true);
+        sampled.recycle();
+        return tile;
+    }
+
+    private void write(@NonNull final Bitmap mosaic, @NonNull final File file, @NonNull final String artistKey) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        try {
+            final File tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+            final OutputStream out = new FileOutputStream(tempFile);
+            try {
+                mosaic.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't cache the mosaic " + file, e);
+            return;
+        }
+        // the mosaics of the album sets the artist had before
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File other : files) {
+                if (other.getName().startsWith(artistKey + "_") && !other.equals(file)) {
+                    other.delete();
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private static <T> T getResult(@NonNull final Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // one broken cover shouldn't cost the whole image
+            Log.w(TAG, "Can't load a cover", e.getCause());
+            return null;
+        }
+    }
+
+    @NonNull
+    private static String hash(@NonNull final String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Source {
+        final int year;
+        @NonNull
+        final EmbeddedCoverStore store;
+        // the embedded cover, or the cover file of the folder if there is none
+        @Nullable
+        final String hash;
+        @Nullable
+        final File folderCover;
+
+        Source(int year, @NonNull EmbeddedCoverStore store, @Nullable String hash, @Nullable File folderCover) {
+            this.year = year;
+            this.store = store;
+            this.hash = hash;
+            this.folderCover = folderCover;
+        }
+
+        @Nullable
+        File getFile(int size) {
+            return hash != null ? store.getVariant(hash, size) : folderCover;
+        }
+    }
+}
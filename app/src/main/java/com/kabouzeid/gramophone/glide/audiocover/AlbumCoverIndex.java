@@ -0,0 +1,86 @@
+package com.kabouzeid.gramophone.glide.audiocover;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.kabouzeid.gramophone.provider.EmbeddedCoverStore;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives the songs of an album one cover id, so the cover is decoded and cached once for all of them.
+ * <p/>
+ * The first song of an album whose embedded picture is known becomes the representative of the album, the id is
+ * made of the album, that file and the hash of its picture. Songs with the same picture share that id, songs whose
+ * picture differs keep their own. Songs that were never extracted keep their own id too, until loading their cover
+ * stored their hash.
+ */
+public class AlbumCoverIndex {
+    private static AlbumCoverIndex sInstance;
+
+    @NonNull
+    private final EmbeddedCoverStore store;
+    @NonNull
+    private final ConcurrentHashMap<Long, Representative> representatives = new ConcurrentHashMap<>();
+
+    private AlbumCoverIndex(@NonNull Context context) {
+        store = EmbeddedCoverStore.getInstance(context);
+    }
+
+    public static synchronized AlbumCoverIndex getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new AlbumCoverIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Only looks at what is in memory, so it can be called on the UI thread.
+     */
+    @NonNull
+    public String getId(@NonNull AudioFileCover model) {
+        final String fileId = model.filePath + ":" + model.dateModified;
+        if (model.albumId == -1 || model.filePath == null) {
+            return "file:" + fileId;
+        }
+        final String hash = store.peekHash(model.filePath, model.dateModified);
+        if (hash == null) {
+            // not extracted yet or the index is still loading
+            return "file:" + fileId;
+        }
+        Representative representative = representatives.get(model.albumId);
+        if (representative == null || (representative.filePath.equals(model.filePath) && !representative.hash.equals(hash))) {
+            // the first song that is asked for, or the representative itself changed
+            representative = new Representative(model.filePath, hash);
+            representatives.put(model.albumId, representative);
+        }
+        if (!representative.hash.equals(hash) || !representative.hasSameCover(model.filePath)) {
+            return "file:" + fileId + ":" + hash;
+        }
+        return "album:" + model.albumId + ":" + representative.filePath + ":" + hash;
+    }
+
+    private static class Representative {
+        @NonNull
+        final String filePath;
+        @NonNull
+        final String hash;
+        @NonNull
+        final String folder;
+
+        Representative(@NonNull String filePath, @NonNull String hash) {
+            this.filePath = filePath;
+            this.hash = hash;
+            folder = String.valueOf(new File(filePath).getParent());
+        }
+
+        /**
+         * Files without an embedded picture show the cover of their folder instead, which is only the same in the
+         * same folder.
+         */
+        boolean hasSameCover(@NonNull String path) {
+            return !hash.equals(EmbeddedCoverStore.NO_COVER) || folder.equals(String.valueOf(new File(path).getParent()));
+        }
+    }
+}
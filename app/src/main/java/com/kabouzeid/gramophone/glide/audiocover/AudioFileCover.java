@@ -4,9 +4,15 @@ package com.kabouzeid.gramophone.glide.audiocover;
  * @author Karim Abou Zeid (kabouzeid)
  */
 public class AudioFileCover {
+    // -1 for files that are not in the library
+    public final long albumId;
     public final String filePath;
+    // in seconds, like the MediaStore has it
+    public final long dateModified;
 
-    public AudioFileCover(String filePath) {
+    public AudioFileCover(long albumId, String filePath, long dateModified) {
+        this.albumId = albumId;
         this.filePath = filePath;
+        this.dateModified = dateModified;
     }
 }
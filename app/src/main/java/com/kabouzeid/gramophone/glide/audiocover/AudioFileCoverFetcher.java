@@ -1,51 +1,88 @@
 package com.kabouzeid.gramophone.glide.audiocover;
 
-import android.media.MediaMetadataRetriever;
+import android.content.Context;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 import com.bumptech.glide.Priority;
 import com.bumptech.glide.load.data.DataFetcher;
+import com.kabouzeid.gramophone.provider.EmbeddedCoverStore;
 
 /**
  * @author Karim Abou Zeid (kabouzeid)
  */
 public class AudioFileCoverFetcher implements DataFetcher<InputStream> {
+    private final Context context;
     private final AudioFileCover model;
+    private final int width;
+    private final int height;
 
     private InputStream stream;
 
-    public AudioFileCoverFetcher(AudioFileCover model) {
-
+    public AudioFileCoverFetcher(Context context, AudioFileCover model, int width, int height) {
+        this.context = context;
         this.model = model;
+        this.width = width;
+        this.height = height;
     }
 
+    /**
+     * Called on the UI thread, the songs of an album with the same picture get the same id from the
+     * {@link AlbumCoverIndex} without any I/O.
+     */
     @Override
     public String getId() {
-        // makes sure we never ever return null here
-        return String.valueOf(model.filePath);
+        return AlbumCoverIndex.getInstance(context).getId(model);
     }
 
     @Override
     public InputStream loadData(final Priority priority) throws Exception {
+        final EmbeddedCoverStore store = EmbeddedCoverStore.getInstance(context);
+        final int size = Math.max(width, height);
 
-        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-        try {
-            retriever.setDataSource(model.filePath);
-            byte[] picture = retriever.getEmbeddedPicture();
-            if (picture != null) {
-                stream = new ByteArrayInputStream(picture);
-            } else {
-                stream = AudioFileCoverUtils.fallback(model.filePath);
+        String hash = store.getHash(model.filePath, model.dateModified);
+        if (hash != null && !hash.equals(EmbeddedCoverStore.NO_COVER)) {
+            File variant = store.getVariant(hash, size);
+            if (variant != null) {
+                stream = new FileInputStream(variant);
+                return stream;
             }
-        } finally {
-            retriever.release();
+            // the cache dir was cleared, extract it again
+            hash = null;
+        }
+
+        byte[] picture = null;
+        if (hash == null) {
+            // extracted only once per file, every later load is served from the store
+            picture = readEmbeddedPicture();
+            hash = store.put(model.filePath, model.dateModified, picture);
+        }
+        if (!hash.equals(EmbeddedCoverStore.NO_COVER)) {
+            File variant = store.getVariant(hash, size);
+            stream = variant != null ? new FileInputStream(variant) : new ByteArrayInputStream(picture);
+            return stream;
+        }
+
+        File folderCover = AudioFileCoverUtils.findFolderCover(model.filePath);
+        if (folderCover != null) {
+            stream = new FileInputStream(folderCover);
         }
         return stream;
     }
 
+    private byte[] readEmbeddedPicture() {
+        final byte[] cached = EmbeddedPictureCache.get(model.filePath);
+        if (cached != null && cached.length > 0) {
+            // read ahead by the music service
+            return cached;
+        }
+        return AudioFileCoverUtils.readEmbeddedPicture(model.filePath);
+    }
+
     @Override
     public void cleanup() {
         // already cleaned up in loadData and ByteArrayInputStream will be GC'd
@@ -15,16 +15,21 @@ import java.io.InputStream;
  */
 
 public class AudioFileCoverLoader implements StreamModelLoader<AudioFileCover> {
+    private final Context context;
+
+    public AudioFileCoverLoader(Context context) {
+        this.context = context;
+    }
 
     @Override
     public DataFetcher<InputStream> getResourceFetcher(AudioFileCover model, int width, int height) {
-        return new AudioFileCoverFetcher(model);
+        return new AudioFileCoverFetcher(context, model, width, height);
     }
 
     public static class Factory implements ModelLoaderFactory<AudioFileCover, InputStream> {
         @Override
         public ModelLoader<AudioFileCover, InputStream> build(Context context, GenericLoaderFactory factories) {
-            return new AudioFileCoverLoader();
+            return new AudioFileCoverLoader(context.getApplicationContext());
         }
 
         @Override
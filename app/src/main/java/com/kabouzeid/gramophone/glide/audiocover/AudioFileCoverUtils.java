@@ -1,11 +1,9 @@
 package com.kabouzeid.gramophone.glide.audiocover;
 
-import java.io.ByteArrayInputStream;
+import android.media.MediaMetadataRetriever;
+
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 
 import org.jaudiotagger.audio.exceptions.InvalidAudioFrameException;
 import org.jaudiotagger.audio.exceptions.ReadOnlyFileException;
@@ -15,18 +13,39 @@ import org.jaudiotagger.tag.images.Artwork;
 
 public class AudioFileCoverUtils {
 
-    public static final String[] FALLBACKS = {"cover.jpg", "album.jpg", "folder.jpg", "cover.png", "album.png", "folder.png"};
+    /**
+     * @return the embedded picture of the file or null if it has none
+     */
+    public static byte[] readEmbeddedPicture(String path) {
+        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(path);
+            byte[] picture = retriever.getEmbeddedPicture();
+            if (picture != null) {
+                return picture;
+            }
+        } catch (RuntimeException ignored) {
+            // the tag might still be readable below
+        } finally {
+            retriever.release();
+        }
+        return readArtwork(path);
+    }
 
+    /**
+     * @return the album art file next to the audio file or null if there is none
+     */
+    public static File findFolderCover(String path) {
+        return FolderCoverIndex.getInstance().find(new File(path).getParentFile());
+    }
 
-    public static InputStream fallback(String path) throws FileNotFoundException {
-        // Method 1: use embedded high resolution album art if there is any
+    private static byte[] readArtwork(String path) {
         try {
             MP3File mp3File = new MP3File(path);
             if (mp3File.hasID3v2Tag()) {
                 Artwork art = mp3File.getTag().getFirstArtwork();
                 if (art != null) {
-                    byte[] imageData = art.getBinaryData();
-                    return new ByteArrayInputStream(imageData);
+                    return art.getBinaryData();
                 }
             }
             // If there are any exceptions, we ignore them and continue to the other fallback method
@@ -35,15 +54,6 @@ public class AudioFileCoverUtils {
         } catch (TagException ignored) {
         } catch (IOException ignored) {
         }
-
-        // Method 2: look for album art in external files
-        final File parent = new File(path).getParentFile();
-        for (String fallback : FALLBACKS) {
-            File cover = new File(parent, fallback);
-            if (cover.exists()) {
-                return new FileInputStream(cover);
-            }
-        }
         return null;
     }
 }
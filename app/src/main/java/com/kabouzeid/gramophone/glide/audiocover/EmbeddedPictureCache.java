@@ -0,0 +1,42 @@
+package com.kabouzeid.gramophone.glide.audiocover;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+/**
+ * Keeps the embedded pictures of the files that are about to be played, so their covers don't have to be read
+ * from the files again once they are shown. The music service fills it ahead of the playback with {@link #warm(String)}.
+ */
+public class EmbeddedPictureCache {
+    private static final int MAX_CACHE_BYTES = 4 * 1024 * 1024;
+    // cached for files without an embedded picture
+    private static final byte[] NO_PICTURE = new byte[0];
+
+    private static final LruCache<String, byte[]> pictures = new LruCache<String, byte[]>(MAX_CACHE_BYTES) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            // files without a picture still count, so their entries are bounded too
+            return Math.max(value.length, 1);
+        }
+    };
+
+    /**
+     * @return the embedded picture of the file if it was read ahead, an empty array if it has none and null if it
+     * was not read yet
+     */
+    @Nullable
+    public static byte[] get(@NonNull String path) {
+        return pictures.get(path);
+    }
+
+    /**
+     * Reads the embedded picture of the file unless it is cached already. Must not be called on the main thread.
+     */
+    public static void warm(@NonNull String path) {
+        if (pictures.get(path) == null) {
+            final byte[] picture = AudioFileCoverUtils.readEmbeddedPicture(path);
+            pictures.put(path, picture != null ? picture : NO_PICTURE);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.kabouzeid.gramophone.glide.audiocover;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Remembers the cover file of each folder, so the songs of an album don't probe their folder for every candidate
+ * name again. A folder is listed once and listed again only after its modification date changed, which is when
+ * files were added, removed or renamed in it.
+ */
+public class FolderCoverIndex {
+    private static final int MAX_FOLDERS = 512;
+
+    /**
+     * The names of cover files in order of preference, compared case insensitive. A '*' matches any characters.
+     */
+    public static final String[] PATTERNS = {
+            "cover.jpg", "album.jpg", "folder.jpg", "cover.png", "album.png", "folder.png",
+            "front.jpg", "front.png", "cover.jpeg", "folder.jpeg", "front.jpeg",
+            "albumart*large.jpg", "albumart*.jpg", ".folder.png"
+    };
+
+    private static FolderCoverIndex sInstance;
+
+    private final LruCache<String, Entry> folders = new LruCache<>(MAX_FOLDERS);
+
+    public static synchronized FolderCoverIndex getInstance() {
+        if (sInstance == null) {
+            sInstance = new FolderCoverIndex();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the cover file in the folder or null if there is none
+     */
+    @Nullable
+    public File find(@Nullable File folder) {
+        if (folder == null) {
+            return null;
+        }
+        final String key = folder.getPath();
+        // 0 if the folder is gone, which is cached like any other state
+        final long lastModified = folder.lastModified();
+        Entry entry = folders.get(key);
+        if (entry == null || entry.lastModified != lastModified) {
+            entry = new Entry(lastModified, findCover(folder));
+            folders.put(key, entry);
+        }
+        return entry.cover;
+    }
+
+    @Nullable
+    private static File findCover(@NonNull File folder) {
+        final String[] names = folder.list();
+        if (names == null) {
+            return null;
+        }
+        String best = null;
+        int bestRank = PATTERNS.length;
+        for (String name : names) {
+            final String lowerName = name.toLowerCase(Locale.ROOT);
+            for (int rank = 0; rank < bestRank; rank++) {
+                if (matches(PATTERNS[rank], lowerName)) {
+                    best = name;
+                    bestRank = rank;
+                    break;
+                }
+            }
+        }
+        return best != null ? new File(folder, best) : null;
+    }
+
+    private static boolean matches(@NonNull String pattern, @NonNull String name) {
+        final int wildcard = pattern.indexOf('*');
+        if (wildcard < 0) {
+            return pattern.equals(name);
+        }
+        final String prefix = pattern.substring(0, wildcard);
+        final String suffix = pattern.substring(wildcard + 1);
+        return name.length() >= prefix.length() + suffix.length() && name.startsWith(prefix) && name.endsWith(suffix);
+    }
+
+    private static class Entry {
+        final long lastModified;
+        @Nullable
+        final File cover;
+
+        Entry(long lastModified, @Nullable File cover) {
+            this.lastModified = lastModified;
+            this.cover = cover;
+        }
+    }
+}
@@ -2,33 +2,67 @@ package com.kabouzeid.gramophone.glide.palette;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import android.support.v7.graphics.Palette;
 
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.load.engine.Resource;
 import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
 import com.bumptech.glide.load.resource.transcode.ResourceTranscoder;
+import com.kabouzeid.gramophone.provider.PaletteColorStore;
 import com.kabouzeid.gramophone.util.PhonographColorUtil;
 
 public class BitmapPaletteTranscoder implements ResourceTranscoder<Bitmap, BitmapPaletteWrapper> {
     private final BitmapPool bitmapPool;
+    @Nullable
+    private final PaletteColorStore paletteColorStore;
+    @Nullable
+    private final String paletteKey;
 
     public BitmapPaletteTranscoder(Context context) {
-        this(Glide.get(context).getBitmapPool());
+        this(context, null);
+    }
+
+    /**
+     * @param paletteKey identifies the loaded art, its palette is generated once and read from the
+     *                   {@link PaletteColorStore} afterwards
+     */
+    public BitmapPaletteTranscoder(Context context, @Nullable String paletteKey) {
+        this.bitmapPool = Glide.get(context).getBitmapPool();
+        this.paletteColorStore = paletteKey != null ? PaletteColorStore.getInstance(context) : null;
+        this.paletteKey = paletteKey;
     }
 
     public BitmapPaletteTranscoder(BitmapPool bitmapPool) {
         this.bitmapPool = bitmapPool;
+        this.paletteColorStore = null;
+        this.paletteKey = null;
     }
 
     @Override
     public Resource<BitmapPaletteWrapper> transcode(Resource<Bitmap> bitmapResource) {
         Bitmap bitmap = bitmapResource.get();
-        BitmapPaletteWrapper bitmapPaletteWrapper = new BitmapPaletteWrapper(bitmap, PhonographColorUtil.generatePalette(bitmap));
+        BitmapPaletteWrapper bitmapPaletteWrapper = new BitmapPaletteWrapper(bitmap, getPalette(bitmap));
         return new BitmapPaletteResource(bitmapPaletteWrapper, bitmapPool);
     }
 
+    @Nullable
+    private Palette getPalette(Bitmap bitmap) {
+        if (paletteColorStore == null || paletteKey == null) {
+            return PhonographColorUtil.generatePalette(bitmap);
+        }
+        Palette palette = paletteColorStore.getPalette(paletteKey);
+        if (palette == null) {
+            palette = PhonographColorUtil.generatePalette(bitmap);
+            if (palette != null) {
+                paletteColorStore.putPalette(paletteKey, palette);
+            }
+        }
+        return palette;
+    }
+
     @Override
     public String getId() {
         return "BitmapPaletteTranscoder.com.kabouzeid.gramophone.glide.palette";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,82 @@
+package com.kabouzeid.gramophone.helper;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Fenwick tree (binary indexed tree) over a list of longs.
+ * Changing a value, appending one and summing up a prefix of the list take O(log n), building it takes O(n).
+ */
+public class FenwickTree {
+    private int size;
+    // 1-based, node i holds the sum of the values (i - lowestOneBit(i), i]
+    @NonNull
+    private long[] tree = new long[17];
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Replaces the tree with the first size values.
+     */
+    public void build(@NonNull long[] values, int size) {
+        if (size + 1 > tree.length) {
+            tree = new long[size + 1];
+        }
+        this.size = size;
+        System.arraycopy(values, 0, tree, 1, size);
+        for (int i = 1; i <= size; i++) {
+            final int parent = i + (i & -i);
+            if (parent <= size) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+
+    public void append(long value) {
+        if (size + 2 > tree.length) {
+            tree = Arrays.copyOf(tree, tree.length + (tree.length >> 1) + 1);
+        }
+        final int i = ++size;
+        tree[i] = value;
+        // the children of the new node are i - 1, i - 2, i - 4, ...
+        for (int k = 1; k < (i & -i); k <<= 1) {
+            tree[i] += tree[i - k];
+        }
+    }
+
+    public void removeLast() {
+        // no node of the other values includes the last one
+        size--;
+    }
+
+    /**
+     * Adds the delta to the value at the index.
+     */
+    public void add(int index, long delta) {
+        for (int i = index + 1; i <= size; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * @return the sum of the first count values
+     */
+    public long prefixSum(int count) {
+        long sum = 0;
+        for (int i = Math.min(count, size); i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    public long sum() {
+        return prefixSum(size);
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
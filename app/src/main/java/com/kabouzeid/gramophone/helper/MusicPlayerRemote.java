@@ -26,6 +26,7 @@ import org.omnirom.gramophone.R;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.WeakHashMap;
 
@@ -160,7 +161,7 @@ public class MusicPlayerRemote {
     }
 
     public static boolean isPlaying() {
-        return musicService != null && musicService.isPlaying();
+        return musicService != null && musicService.getPlaybackState().playing;
     }
 
     public static void resumePlaying() {
@@ -172,7 +173,7 @@ public class MusicPlayerRemote {
     /**
      * Async
      */
-    public static void openQueue(final ArrayList<Song> queue, final int startPosition, final boolean startPlaying) {
+    public static void openQueue(final List<Song> queue, final int startPosition, final boolean startPlaying) {
         if (!tryToHandleOpenPlayingQueue(queue, startPosition, startPlaying) && musicService != null) {
             musicService.openQueue(queue, startPosition, startPlaying);
         }
@@ -181,7 +182,7 @@ public class MusicPlayerRemote {
     /**
      * Async
      */
-    public static void openAndShuffleQueue(final ArrayList<Song> queue, boolean startPlaying) {
+    public static void openAndShuffleQueue(final List<Song> queue, boolean startPlaying) {
         int startPosition = 0;
         if (!queue.isEmpty()) {
             startPosition = new Random().nextInt(queue.size());
@@ -193,7 +194,7 @@ public class MusicPlayerRemote {
         }
     }
 
-    private static boolean tryToHandleOpenPlayingQueue(final ArrayList<Song> queue, final int startPosition, final boolean startPlaying) {
+    private static boolean tryToHandleOpenPlayingQueue(final List<Song> queue, final int startPosition, final boolean startPlaying) {
         if (getPlayingQueue() == queue) {
             if (startPlaying) {
                 playSongAt(startPosition);
@@ -207,35 +208,35 @@ public class MusicPlayerRemote {
 
     public static Song getCurrentSong() {
         if (musicService != null) {
-            return musicService.getCurrentSong();
+            return musicService.getPlaybackState().currentSong;
         }
         return Song.EMPTY_SONG;
     }
 
     public static int getPosition() {
         if (musicService != null) {
-            return musicService.getPosition();
+            return musicService.getPlaybackState().position;
         }
         return -1;
     }
 
-    public static ArrayList<Song> getPlayingQueue() {
+    public static List<Song> getPlayingQueue() {
         if (musicService != null) {
-            return musicService.getPlayingQueue();
+            return musicService.getPlaybackState().playingQueue;
         }
         return new ArrayList<>();
     }
 
     public static int getSongProgressMillis() {
         if (musicService != null) {
-            return musicService.getSongProgressMillis();
+            return musicService.getPlaybackState().getProgressMillis();
         }
         return -1;
     }
 
     public static int getSongDurationMillis() {
         if (musicService != null) {
-            return musicService.getSongDurationMillis();
+            return musicService.getPlaybackState().durationMillis;
         }
         return -1;
     }
@@ -247,6 +248,23 @@ public class MusicPlayerRemote {
         return -1;
     }
 
+    /**
+     * @see MusicService#getLastSkipLatencyMillis()
+     */
+    public static long getLastSkipLatencyMillis() {
+        if (musicService != null) {
+            return musicService.getLastSkipLatencyMillis();
+        }
+        return -1;
+    }
+
+    public static long getAverageSkipLatencyMillis() {
+        if (musicService != null) {
+            return musicService.getAverageSkipLatencyMillis();
+        }
+        return -1;
+    }
+
     public static int seekTo(int millis) {
         if (musicService != null) {
             return musicService.seek(millis);
@@ -256,14 +274,14 @@ public class MusicPlayerRemote {
 
     public static int getRepeatMode() {
         if (musicService != null) {
-            return musicService.getRepeatMode();
+            return musicService.getPlaybackState().repeatMode;
         }
         return MusicService.REPEAT_MODE_NONE;
     }
 
     public static int getShuffleMode() {
         if (musicService != null) {
-            return musicService.getShuffleMode();
+            return musicService.getPlaybackState().shuffleMode;
         }
         return MusicService.SHUFFLE_MODE_NONE;
     }
@@ -2,24 +2,58 @@ package com.kabouzeid.gramophone.helper;
 
 import android.support.annotation.NonNull;
 
-import com.kabouzeid.gramophone.model.Song;
-
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 /**
  * @author Karim Abou Zeid (kabouzeid)
  */
 public class ShuffleHelper {
 
-    public static void makeShuffleList(@NonNull List<Song> listToShuffle, final int current) {
+    public static <T> void makeShuffleList(@NonNull List<T> listToShuffle, final int current) {
+        makeShuffleList(listToShuffle, current, new Random().nextLong());
+    }
+
+    /**
+     * Shuffles the list the same way every time for the same seed and list.
+     * The song at current becomes the first one.
+     */
+    public static <T> void makeShuffleList(@NonNull List<T> listToShuffle, final int current, final long seed) {
         if (listToShuffle.isEmpty()) return;
+        final Random random = new Random(seed);
         if (current >= 0) {
-            Song song = listToShuffle.remove(current);
-            Collections.shuffle(listToShuffle);
-            listToShuffle.add(0, song);
+            T item = listToShuffle.remove(current);
+            for (int i = listToShuffle.size(); i > 1; i--) {
+                Collections.swap(listToShuffle, i - 1, random.nextInt(i));
+            }
+            listToShuffle.add(0, item);
         } else {
-            Collections.shuffle(listToShuffle);
+            for (int i = listToShuffle.size(); i > 1; i--) {
+                Collections.swap(listToShuffle, i - 1, random.nextInt(i));
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #makeShuffleList(List, int, long)} for an array, so both give the same order for the same seed.
+     */
+    public static void makeShuffleList(@NonNull int[] arrayToShuffle, final int current, final long seed) {
+        if (arrayToShuffle.length == 0) return;
+        final Random random = new Random(seed);
+        int offset = 0;
+        if (current >= 0) {
+            // move the current item to the front and shuffle the rest
+            final int item = arrayToShuffle[current];
+            System.arraycopy(arrayToShuffle, 0, arrayToShuffle, 1, current);
+            arrayToShuffle[0] = item;
+            offset = 1;
+        }
+        for (int i = arrayToShuffle.length - offset; i > 1; i--) {
+            final int j = random.nextInt(i);
+            final int tmp = arrayToShuffle[offset + i - 1];
+            arrayToShuffle[offset + i - 1] = arrayToShuffle[offset + j];
+            arrayToShuffle[offset + j] = tmp;
         }
     }
 }
@@ -0,0 +1,203 @@
+package com.kabouzeid.gramophone.helper;
+
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * The playing order of a queue as a permutation of its original order.
+ * Positions are positions in the playing order, indices are positions in the original order.
+ * <p/>
+ * The permutation is kept together with its inverse, so mapping a position to an index and back is O(1)
+ * and turning shuffle off only drops the permutation. Inserting, removing or moving songs updates the
+ * permutation in place instead of shuffling again. The seed of the last shuffle is kept, shuffling the
+ * same order with the same seed always gives the same result.
+ */
+public class ShuffleOrder {
+    private int size;
+    // the index at every position, null while not shuffled
+    @Nullable
+    private int[] order;
+    // the position of every index, null while not shuffled
+    @Nullable
+    private int[] positions;
+    private long seed;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isShuffled() {
+        return order != null;
+    }
+
+    /**
+     * @return the seed of the last shuffle
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getIndex(int position) {
+        return order == null ? position : order[position];
+    }
+
+    public int getPosition(int index) {
+        return positions == null ? index : positions[index];
+    }
+
+    /**
+     * @return a copy of the index at every position, null while not shuffled
+     */
+    @Nullable
+    public int[] getOrder() {
+        return order == null ? null : Arrays.copyOf(order, size);
+    }
+
+    /**
+     * Starts over with an unshuffled order.
+     */
+    public void reset(int size) {
+        this.size = size;
+        order = null;
+        positions = null;
+    }
+
+    /**
+     * @param order the index at every position or null if not shuffled
+     * @return false if the order is not a permutation of the size
+     */
+    public boolean restore(int size, @Nullable int[] order, long seed) {
+        reset(size);
+        this.seed = seed;
+        if (order == null) {
+            return true;
+        }
+        if (order.length != size) {
+            return false;
+        }
+        final int[] newPositions = new int[size];
+        Arrays.fill(newPositions, -1);
+        for (int position = 0; position < size; position++) {
+            final int index = order[position];
+            if (index < 0 || index >= size || newPositions[index] != -1) {
+                return false;
+            }
+            newPositions[index] = position;
+        }
+        this.order = Arrays.copyOf(order, size);
+        this.positions = newPositions;
+        return true;
+    }
+
+    /**
+     * Shuffles the playing order like {@link ShuffleHelper#makeShuffleList(int[], int, long)}.
+     * The song at the current position becomes the first one, -1 shuffles all songs.
+     */
+    public void shuffle(int current, long seed) {
+        final int[] newOrder = new int[size];
+        for (int position = 0; position < size; position++) {
+            newOrder[position] = getIndex(position);
+        }
+        ShuffleHelper.makeShuffleList(newOrder, current, seed);
+        setOrder(newOrder);
+        this.seed = seed;
+    }
+
+    /**
+     * Restores the original order.
+     *
+     * @return the index of the song at the current position, its position from now on
+     */
+    public int unshuffle(int current) {
+        final int index = current >= 0 && current < size ? getIndex(current) : 0;
+        order = null;
+        positions = null;
+        return index;
+    }
+
+    /**
+     * Inserts new songs at the same position of the playing order and the original order.
+     *
+     * @param position where to insert the songs, -1 appends them
+     */
+    public void insert(int position, int count) {
+        final int at = position == -1 ? size : position;
+        if (at < 0 || at > size) {
+            throw new IndexOutOfBoundsException("Position: " + position + ", Size: " + size);
+        }
+        if (order != null) {
+            final int[] newOrder = new int[size + count];
+            for (int p = 0; p < size; p++) {
+                final int index = order[p];
+                newOrder[p < at ? p : p + count] = index < at ? index : index + count;
+            }
+            for (int i = 0; i < count; i++) {
+                newOrder[at + i] = at + i;
+            }
+            setOrder(newOrder);
+        }
+        size += count;
+    }
+
+    /**
+     * Removes the song at the position from both orders.
+     *
+     * @return the index the song had
+     */
+    public int remove(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position: " + position + ", Size: " + size);
+        }
+        final int index = getIndex(position);
+        if (order != null && positions != null) {
+            System.arraycopy(order, position + 1, order, position, size - position - 1);
+            System.arraycopy(positions, index + 1, positions, index, size - index - 1);
+            for (int i = 0; i < size - 1; i++) {
+                if (order[i] > index) {
+                    order[i]--;
+                }
+                if (positions[i] > position) {
+                    positions[i]--;
+                }
+            }
+        }
+        size--;
+        return index;
+    }
+
+    /**
+     * Moves a song in the playing order. While not shuffled the playing order is the original order,
+     * so only the songs themselves have to be moved.
+     */
+    public void move(int from, int to) {
+        if (from < 0 || from >= size || to < 0 || to >= size) {
+            throw new IndexOutOfBoundsException("From: " + from + ", To: " + to + ", Size: " + size);
+        }
+        if (order == null || positions == null) {
+            return;
+        }
+        final int index = order[from];
+        if (from < to) {
+            System.arraycopy(order, from + 1, order, from, to - from);
+        } else {
+            System.arraycopy(order, to, order, to + 1, from - to);
+        }
+        order[to] = index;
+        for (int p = Math.min(from, to); p <= Math.max(from, to); p++) {
+            positions[order[p]] = p;
+        }
+    }
+
+    public void clear() {
+        reset(0);
+    }
+
+    private void setOrder(int[] newOrder) {
+        order = newOrder;
+        positions = new int[newOrder.length];
+        for (int position = 0; position < newOrder.length; position++) {
+            positions[newOrder[position]] = position;
+        }
+    }
+}
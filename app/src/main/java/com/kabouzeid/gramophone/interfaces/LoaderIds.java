@@ -7,7 +7,6 @@ public interface LoaderIds {
     int ALBUM_DETAIL_ACTIVITY = 1;
     int ARTIST_DETAIL_ACTIVITY = 2;
     int PLAYLIST_DETAIL_ACTIVITY = 3;
-    int SEARCH_ACTIVITY = 4;
     int FOLDERS_FRAGMENT = 5;
     int ALBUMS_FRAGMENT = 6;
     int ARTISTS_FRAGMENT = 7;
@@ -1,12 +1,9 @@
 package com.kabouzeid.gramophone.loader;
 
 import android.content.Context;
-import android.provider.MediaStore.Audio.AudioColumns;
 import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
 
 import com.kabouzeid.gramophone.model.Album;
-import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
 
 import java.util.ArrayList;
@@ -22,51 +19,16 @@ public class AlbumLoader {
 
     @NonNull
     public static ArrayList<Album> getAllAlbums(@NonNull final Context context) {
-        ArrayList<Song> songs = SongLoader.getSongs(SongLoader.makeSongCursor(
-                context,
-                null,
-                null,
-                getSongLoaderSortOrder(context))
-        );
-        return splitIntoAlbums(songs);
+        return LibrarySnapshot.getInstance(context).getAlbums(getSongLoaderSortOrder(context));
     }
 
     @NonNull
     public static ArrayList<Album> getAlbums(@NonNull final Context context, String query) {
-        ArrayList<Song> songs = SongLoader.getSongs(SongLoader.makeSongCursor(
-                context,
-                AudioColumns.ALBUM + " LIKE ?",
-                new String[]{"%" + query + "%"},
-                getSongLoaderSortOrder(context))
-        );
-        return splitIntoAlbums(songs);
+        return LibrarySnapshot.getInstance(context).getAlbums(LibrarySnapshot.FIELD_ALBUM, query, getSongLoaderSortOrder(context));
     }
 
     @NonNull
     public static Album getAlbum(@NonNull final Context context, long albumId) {
-        ArrayList<Song> songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, AudioColumns.ALBUM_ID + "=?", new String[]{String.valueOf(albumId)}, getSongLoaderSortOrder(context)));
-        return new Album(songs);
-    }
-
-    @NonNull
-    public static ArrayList<Album> splitIntoAlbums(@Nullable final ArrayList<Song> songs) {
-        ArrayList<Album> albums = new ArrayList<>();
-        if (songs != null) {
-            for (Song song : songs) {
-                getOrCreateAlbum(albums, song.albumId).songs.add(song);
-            }
-        }
-        return albums;
-    }
-
-    private static Album getOrCreateAlbum(ArrayList<Album> albums, long albumId) {
-        for (Album album : albums) {
-            if (!album.songs.isEmpty() && album.songs.get(0).albumId == albumId) {
-                return album;
-            }
-        }
-        Album album = new Album();
-        albums.add(album);
-        return album;
+        return new Album(LibrarySnapshot.getInstance(context).getAlbumSongs(albumId, getSongLoaderSortOrder(context)));
     }
 }
@@ -1,13 +1,12 @@
 package com.kabouzeid.gramophone.loader;
 
 import android.content.Context;
-import android.provider.MediaStore.Audio.AudioColumns;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
 import com.kabouzeid.gramophone.model.Album;
 import com.kabouzeid.gramophone.model.Artist;
-import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
 
 import java.util.ArrayList;
@@ -22,56 +21,40 @@ public class ArtistLoader {
 
     @NonNull
     public static ArrayList<Artist> getAllArtists(@NonNull final Context context) {
-        ArrayList<Song> songs = SongLoader.getSongs(SongLoader.makeSongCursor(
-                context,
-                null,
-                null,
-                getSongLoaderSortOrder(context))
-        );
-        return splitIntoArtists(AlbumLoader.splitIntoAlbums(songs));
+        return splitIntoArtists(LibrarySnapshot.getInstance(context).getAlbums(getSongLoaderSortOrder(context)));
     }
 
     @NonNull
     public static ArrayList<Artist> getArtists(@NonNull final Context context, String query) {
-        ArrayList<Song> songs = SongLoader.getSongs(SongLoader.makeSongCursor(
-                context,
-                AudioColumns.ARTIST + " LIKE ?",
-                new String[]{"%" + query + "%"},
-                getSongLoaderSortOrder(context))
-        );
-        return splitIntoArtists(AlbumLoader.splitIntoAlbums(songs));
+        return splitIntoArtists(LibrarySnapshot.getInstance(context).getAlbums(LibrarySnapshot.FIELD_ARTIST, query, getSongLoaderSortOrder(context)));
     }
 
     @NonNull
     public static Artist getArtist(@NonNull final Context context, long artistId) {
-        ArrayList<Song> songs = SongLoader.getSongs(SongLoader.makeSongCursor(
-                context,
-                AudioColumns.ARTIST_ID + "=?",
-                new String[]{String.valueOf(artistId)},
-                getSongLoaderSortOrder(context))
-        );
-        return new Artist(AlbumLoader.splitIntoAlbums(songs));
+        return new Artist(LibrarySnapshot.getInstance(context).getArtistAlbums(artistId, getSongLoaderSortOrder(context)));
     }
 
     @NonNull
     public static ArrayList<Artist> splitIntoArtists(@Nullable final ArrayList<Album> albums) {
         ArrayList<Artist> artists = new ArrayList<>();
         if (albums != null) {
+            // maps artist ids to their index in the artists list, so the insertion order is kept
+            LongIntHashMap artistIndices = new LongIntHashMap();
             for (Album album : albums) {
-                getOrCreateArtist(artists, album.getArtistId()).albums.add(album);
+                getOrCreateArtist(artists, artistIndices, album.getArtistId()).albums.add(album);
             }
         }
         return artists;
     }
 
-    private static Artist getOrCreateArtist(ArrayList<Artist> artists, long artistId) {
-        for (Artist artist : artists) {
-            if (!artist.albums.isEmpty() && !artist.albums.get(0).songs.isEmpty() && artist.albums.get(0).songs.get(0).artistId == artistId) {
-                return artist;
-            }
+    private static Artist getOrCreateArtist(ArrayList<Artist> artists, LongIntHashMap artistIndices, long artistId) {
+        int index = artistIndices.get(artistId, -1);
+        if (index != -1) {
+            return artists.get(index);
         }
-        Artist album = new Artist();
-        artists.add(album);
-        return album;
+        Artist artist = new Artist();
+        artistIndices.put(artistId, artists.size());
+        artists.add(artist);
+        return artist;
     }
 }
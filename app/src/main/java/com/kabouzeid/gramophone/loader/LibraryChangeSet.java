@@ -0,0 +1,54 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * The song ids that were added, updated or removed between two {@link LibrarySnapshot}s.
+ */
+public class LibraryChangeSet {
+    /**
+     * Up to this many changes it is cheaper to diff the lists than to rebind everything.
+     */
+    private static final int MAX_GRANULAR_CHANGES = 100;
+
+    public static final LibraryChangeSet EMPTY = new LibraryChangeSet(new long[0], new long[0], new long[0]);
+
+    @NonNull
+    public final long[] addedIds;
+    @NonNull
+    public final long[] updatedIds;
+    @NonNull
+    public final long[] removedIds;
+
+    public LibraryChangeSet(@NonNull long[] addedIds, @NonNull long[] updatedIds, @NonNull long[] removedIds) {
+        this.addedIds = addedIds;
+        this.updatedIds = updatedIds;
+        this.removedIds = removedIds;
+    }
+
+    public int size() {
+        return addedIds.length + updatedIds.length + removedIds.length;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return whether the lists showing the library should be updated item by item instead of being rebound
+     */
+    public boolean isGranular() {
+        return size() <= MAX_GRANULAR_CHANGES;
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryChangeSet{" +
+                "addedIds=" + Arrays.toString(addedIds) +
+                ", updatedIds=" + Arrays.toString(updatedIds) +
+                ", removedIds=" + Arrays.toString(removedIds) +
+                '}';
+    }
+}
@@ -0,0 +1,996 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Audio.AudioColumns;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
+import com.kabouzeid.gramophone.model.Album;
+import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.model.SongTable;
+import com.kabouzeid.gramophone.model.SongTableList;
+import com.kabouzeid.gramophone.provider.LibraryMirrorStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Immutable in-memory copy of the music library, built from a single MediaStore cursor pass.
+ * Songs, albums, artists and search results are all derived from it, so switching tabs or
+ * searching never goes through the ContentResolver again until the MediaStore changes.
+ * Every snapshot is also written to the {@link LibraryMirrorStore}, which the first snapshot after a cold start is loaded from.
+ */
+public class LibrarySnapshot {
+    private static final String TAG = LibrarySnapshot.class.getSimpleName();
+
+    public static final int FIELD_TITLE = 0;
+    public static final int FIELD_ALBUM = 1;
+    public static final int FIELD_ARTIST = 2;
+
+    private static final String[] PROJECTION;
+
+    static {
+        String[] extraColumns = new String[]{
+                AudioColumns.DATE_ADDED,// 11
+                AudioColumns.TITLE_KEY,// 12
+                AudioColumns.ALBUM_KEY,// 13
+                AudioColumns.ARTIST_KEY,// 14
+        };
+        PROJECTION = new String[SongLoader.BASE_PROJECTION.length + extraColumns.length];
+        System.arraycopy(SongLoader.BASE_PROJECTION, 0, PROJECTION, 0, SongLoader.BASE_PROJECTION.length);
+        System.arraycopy(extraColumns, 0, PROJECTION, SongLoader.BASE_PROJECTION.length, extraColumns.length);
+    }
+
+    private static final LibrarySnapshot EMPTY = new LibrarySnapshot(SongTable.EMPTY);
+
+    /**
+     * SQLite refuses statements with more than 999 host parameters.
+     */
+    private static final int MAX_SELECTION_ARGS = 999;
+
+    private static final Object sBuildLock = new Object();
+    private static final Object sPublishLock = new Object();
+    @Nullable
+    private static volatile LibrarySnapshot sInstance = null;
+    // the snapshot that was published last, kept when it is invalidated
+    @Nullable
+    private static volatile LibrarySnapshot sLatest = null;
+    // counts the changes of the shared snapshot, guarded by sPublishLock
+    private static long sVersion;
+    // the changes that led to sVersion from the version before, null if the snapshot was dropped instead
+    @Nullable
+    private static LibraryChangeSet sLastChangeSet = null;
+    private static int sGeneration;
+    private static boolean sMirrorLoaded;
+    @Nullable
+    private static volatile OnLibraryChangedListener sOnLibraryChangedListener;
+
+    public interface OnLibraryChangedListener {
+        /**
+         * Called on a background thread when the library turned out to be different from its mirror.
+         */
+        void onLibraryChanged();
+    }
+
+    /**
+     * Reconciles and writes the library mirror, one task after another.
+     */
+    private static final ExecutorService sIndexer = Executors.newSingleThreadExecutor();
+
+    private final SongTable table;
+    /**
+     * The newest DATE_MODIFIED or DATE_ADDED in seconds, rows changed after it are picked up by {@link #sync(Context)}.
+     */
+    private final long watermark;
+    private final LongIntHashMap idIndices;
+    private final LongIntHashMap albumSongCounts;
+    private final LongIntHashMap albumFirstYears;
+    private final LongIntHashMap artistSongCounts;
+    private final LongIntHashMap artistAlbumCounts;
+    // the table rows in the order of a sort order
+    private final HashMap<String, int[]> sortedRows = new HashMap<>();
+    // the inverse of sortedRows, the position of every row in a sort order
+    private final HashMap<String, int[]> sortPositions = new HashMap<>();
+    private final Object searchIndexLock = new Object();
+    @Nullable
+    private SearchIndex searchIndex;
+
+    /**
+     * @return the shared snapshot, building it from the MediaStore if it was invalidated since the last call.
+     * The first call after a cold start returns the library mirror and reconciles it with the MediaStore in the background.
+     */
+    @NonNull
+    public static LibrarySnapshot getInstance(@NonNull final Context context) {
+        LibrarySnapshot snapshot = sInstance;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        // only one thread at a time queries the MediaStore, the others wait for its result
+        synchronized (sBuildLock) {
+            snapshot = sInstance;
+            if (snapshot != null) {
+                return snapshot;
+            }
+            final int generation;
+            synchronized (sPublishLock) {
+                generation = sGeneration;
+            }
+            boolean fromMirror = false;
+            if (!sMirrorLoaded) {
+                sMirrorLoaded = true;
+                snapshot = loadMirror(context);
+                fromMirror = snapshot != null;
+            }
+            if (snapshot == null) {
+                snapshot = build(context);
+            }
+            if (snapshot == null) {
+                // no permission or no MediaStore, don't cache so the next call retries
+                return EMPTY;
+            }
+            final boolean published;
+            synchronized (sPublishLock) {
+                // the MediaStore might have changed while we were reading it
+                published = generation == sGeneration;
+                if (published) {
+                    sInstance = snapshot;
+                    sLatest = snapshot;
+                }
+            }
+            if (published) {
+                if (fromMirror) {
+                    reconcile(context);
+                } else {
+                    writeMirror(context, snapshot, null);
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Never queries the MediaStore or waits for someone who does, so it is safe to call from the main thread.
+     *
+     * @return the shared snapshot, the last one that was published if it was invalidated since or an empty one
+     * if none was built yet
+     */
+    @NonNull
+    public static LibrarySnapshot peekInstance() {
+        final LibrarySnapshot snapshot = sInstance;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        final LibrarySnapshot latest = sLatest;
+        return latest != null ? latest : EMPTY;
+    }
+
+    /**
+     * Drops the shared snapshot. The next {@link #getInstance(Context)} rebuilds it.
+     * Must be called before anyone is told that the MediaStore has changed.
+     */
+    public static void invalidate() {
+        synchronized (sPublishLock) {
+            sGeneration++;
+            sVersion++;
+            sInstance = null;
+            sLastChangeSet = null;
+        }
+    }
+
+    /**
+     * Brings the shared snapshot up to date with the MediaStore without reading the whole library again.
+     * Only the rows modified or added after the snapshot's watermark are queried, deletions are found
+     * by diffing the set of song ids. Must be called before anyone is told that the MediaStore has changed.
+     *
+     * @return the changes that were applied or null if the snapshot had to be invalidated instead
+     */
+    @Nullable
+    public static LibraryChangeSet sync(@NonNull final Context context) {
+        synchronized (sBuildLock) {
+            final LibrarySnapshot snapshot = sInstance;
+            if (snapshot == null) {
+                // nothing to diff against, the next getInstance() reads everything anyway
+                invalidate();
+                return null;
+            }
+            final int generation;
+            synchronized (sPublishLock) {
+                generation = sGeneration;
+            }
+
+            final LongIntHashMap currentIds = queryIds(context);
+            if (currentIds == null) {
+                invalidate();
+                return null;
+            }
+
+            final SongTable.Builder changedRows = new SongTable.Builder(0);
+            boolean success = query(context,
+                    SongLoader.BASE_SELECTION + " AND (" + AudioColumns.DATE_MODIFIED + ">=? OR " + AudioColumns.DATE_ADDED + ">=?)",
+                    new String[]{String.valueOf(snapshot.watermark), String.valueOf(snapshot.watermark)},
+                    changedRows);
+            if (!success) {
+                invalidate();
+                return null;
+            }
+
+            // songs that came back with an old timestamp, e.g. files that were moved in from elsewhere
+            SongTable changed = changedRows.build();
+            LongIntHashMap changedIds = new LongIntHashMap(changed.size());
+            for (int row = 0; row < changed.size(); row++) {
+                changedIds.put(changed.getId(row), row);
+            }
+            ArrayList<Long> unknownIds = new ArrayList<>();
+            for (long id : currentIds.keys()) {
+                if (!snapshot.idIndices.containsKey(id) && !changedIds.containsKey(id)) {
+                    unknownIds.add(id);
+                }
+            }
+            for (int i = 0; i < unknownIds.size(); i += MAX_SELECTION_ARGS) {
+                List<Long> chunk = unknownIds.subList(i, Math.min(i + MAX_SELECTION_ARGS, unknownIds.size()));
+                if (!query(context, SongLoader.BASE_SELECTION + " AND " + makeInSelection(AudioColumns._ID, chunk.size()), toSelectionArgs(chunk), changedRows)) {
+                    invalidate();
+                    return null;
+                }
+            }
+            if (!unknownIds.isEmpty()) {
+                changed = changedRows.build();
+                for (int row = 0; row < changed.size(); row++) {
+                    changedIds.put(changed.getId(row), row);
+                }
+            }
+
+            ArrayList<Long> addedIds = new ArrayList<>();
+            ArrayList<Long> updatedIds = new ArrayList<>();
+            ArrayList<Long> removedIds = new ArrayList<>();
+            for (int row = 0; row < changed.size(); row++) {
+                final int oldRow = snapshot.idIndices.get(changed.getId(row), -1);
+                if (oldRow == -1) {
+                    addedIds.add(changed.getId(row));
+                } else if (!snapshot.table.isSameRow(oldRow, changed, row)) {
+                    // the watermark query also returns rows from the same second that did not change
+                    updatedIds.add(changed.getId(row));
+                }
+            }
+
+            final SongTable.Builder rows = new SongTable.Builder(snapshot.table.size() + addedIds.size());
+            for (int oldRow = 0; oldRow < snapshot.table.size(); oldRow++) {
+                final long id = snapshot.table.getId(oldRow);
+                if (!currentIds.containsKey(id)) {
+                    removedIds.add(id);
+                    continue;
+                }
+                final int row = changedIds.get(id, -1);
+                if (row == -1) {
+                    rows.add(snapshot.table, oldRow);
+                } else {
+                    rows.add(changed, row);
+                }
+            }
+            for (long id : addedIds) {
+                rows.add(changed, changedIds.get(id, -1));
+            }
+
+            final LibraryChangeSet changeSet = new LibraryChangeSet(toArray(addedIds), toArray(updatedIds), toArray(removedIds));
+            final LibrarySnapshot newSnapshot = changeSet.isEmpty() ? snapshot : new LibrarySnapshot(rows.build());
+            final SearchIndex searchIndex = snapshot.peekSearchIndex();
+            if (newSnapshot != snapshot && searchIndex != null) {
+                newSnapshot.setSearchIndex(searchIndex.update(snapshot.table, snapshot.idIndices, newSnapshot.table, newSnapshot.idIndices, changeSet));
+            }
+            synchronized (sPublishLock) {
+                if (generation != sGeneration) {
+                    return null;
+                }
+                sInstance = newSnapshot;
+                sLatest = newSnapshot;
+                if (!changeSet.isEmpty()) {
+                    sVersion++;
+                    sLastChangeSet = changeSet;
+                }
+            }
+            if (!changeSet.isEmpty()) {
+                writeMirror(context, newSnapshot, changeSet);
+            }
+            return changeSet;
+        }
+    }
+
+    /**
+     * @return the version of the shared snapshot, it changes whenever the library does
+     */
+    public static long getVersion() {
+        synchronized (sPublishLock) {
+            return sVersion;
+        }
+    }
+
+    /**
+     * Lets everyone showing the library find out what changed since it was loaded, no matter how many
+     * change events were merged or how late they arrive.
+     *
+     * @param version the {@link #getVersion()} the caller has applied
+     * @return the changes since that version, an empty change set if there are none or null if they are not
+     * known and everything has to be loaded again
+     */
+    @Nullable
+    public static LibraryChangeSet getChangesSince(final long version) {
+        synchronized (sPublishLock) {
+            if (version == sVersion) {
+                return LibraryChangeSet.EMPTY;
+            }
+            return version == sVersion - 1 ? sLastChangeSet : null;
+        }
+    }
+
+    /**
+     * @param listener told when the snapshot that was loaded from the mirror had to be changed, the changes
+     *                 the snapshot picks up otherwise are found by whoever synced it
+     */
+    public static void setOnLibraryChangedListener(@Nullable final OnLibraryChangedListener listener) {
+        sOnLibraryChangedListener = listener;
+    }
+
+    /**
+     * Syncs the snapshot that was loaded from the mirror and tells the listener if the library turned out to be different.
+     */
+    private static void reconcile(@NonNull final Context context) {
+        final Context appContext = context.getApplicationContext();
+        sIndexer.execute(new Runnable() {
+            @Override
+            public void run() {
+                LibraryChangeSet changeSet = sync(appContext);
+                final OnLibraryChangedListener listener = sOnLibraryChangedListener;
+                if (listener != null && (changeSet == null || !changeSet.isEmpty())) {
+                    listener.onLibraryChanged();
+                }
+            }
+        });
+    }
+
+    @Nullable
+    private static LibrarySnapshot loadMirror(@NonNull final Context context) {
+        final String mediaStoreVersion = getMediaStoreVersion(context);
+        if (mediaStoreVersion == null) {
+            return null;
+        }
+        try {
+            SongTable table = LibraryMirrorStore.getInstance(context).load(mediaStoreVersion);
+            return table == null ? null : new LibrarySnapshot(table);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Could not load the library mirror", e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the snapshot to the mirror in the background.
+     *
+     * @param changeSet the changes since the snapshot that was written last or null to write everything
+     */
+    private static void writeMirror(@NonNull final Context context, @NonNull final LibrarySnapshot snapshot, @Nullable final LibraryChangeSet changeSet) {
+        final Context appContext = context.getApplicationContext();
+        sIndexer.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String mediaStoreVersion = getMediaStoreVersion(appContext);
+                if (mediaStoreVersion == null) {
+                    return;
+                }
+                final LibraryMirrorStore store = LibraryMirrorStore.getInstance(appContext);
+                try {
+                    if (changeSet == null) {
+                        store.save(snapshot.table, mediaStoreVersion);
+                    } else {
+                        store.update(snapshot.table, snapshot.getRows(changeSet.addedIds, changeSet.updatedIds), changeSet.removedIds, mediaStoreVersion);
+                    }
+                } catch (SQLiteException e) {
+                    Log.w(TAG, "Could not write the library mirror", e);
+                    try {
+                        // a partially updated mirror must not be loaded on the next start
+                        store.clear();
+                    } catch (SQLiteException ignored) {
+                    }
+                }
+            }
+        });
+    }
+
+    @Nullable
+    private static String getMediaStoreVersion(@NonNull final Context context) {
+        try {
+            return MediaStore.getVersion(context);
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static LibrarySnapshot build(@NonNull final Context context) {
+        SongTable.Builder rows = new SongTable.Builder(0);
+        return query(context, SongLoader.BASE_SELECTION, null, rows) ? new LibrarySnapshot(rows.build()) : null;
+    }
+
+    /**
+     * Appends the songs matching the selection to the builder.
+     *
+     * @return false if the MediaStore could not be queried
+     */
+    private static boolean query(@NonNull final Context context, @NonNull final String selection, @Nullable final String[] selectionValues, @NonNull final SongTable.Builder rows) {
+        Cursor cursor;
+        try {
+            cursor = context.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    PROJECTION, selection, selectionValues, null);
+        } catch (SecurityException e) {
+            return false;
+        }
+        if (cursor == null) {
+            return false;
+        }
+
+        try {
+            if (cursor.moveToFirst()) {
+                do {
+                    rows.add(SongLoader.getSongFromCursorImpl(cursor),
+                            cursor.getLong(11),
+                            cursor.getString(12),
+                            cursor.getString(13),
+                            cursor.getString(14));
+                } while (cursor.moveToNext());
+            }
+            return true;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Nullable
+    private static LongIntHashMap queryIds(@NonNull final Context context) {
+        Cursor cursor;
+        try {
+            cursor = context.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    new String[]{AudioColumns._ID}, SongLoader.BASE_SELECTION, null, null);
+        } catch (SecurityException e) {
+            return null;
+        }
+        if (cursor == null) {
+            return null;
+        }
+
+        try {
+            LongIntHashMap ids = new LongIntHashMap(cursor.getCount());
+            if (cursor.moveToFirst()) {
+                do {
+                    ids.put(cursor.getLong(0), 0);
+                } while (cursor.moveToNext());
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @NonNull
+    private static String makeInSelection(@NonNull final String column, final int count) {
+        StringBuilder selection = new StringBuilder(column).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        return selection.append(")").toString();
+    }
+
+    @NonNull
+    private static String[] toSelectionArgs(@NonNull final List<Long> ids) {
+        String[] args = new String[ids.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = String.valueOf(ids.get(i));
+        }
+        return args;
+    }
+
+    @NonNull
+    private static long[] toArray(@NonNull final List<Long> list) {
+        long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    private LibrarySnapshot(@NonNull final SongTable table) {
+        this.table = table;
+
+        final int size = table.size();
+        idIndices = new LongIntHashMap(size);
+        albumSongCounts = new LongIntHashMap();
+        albumFirstYears = new LongIntHashMap();
+        artistSongCounts = new LongIntHashMap();
+        artistAlbumCounts = new LongIntHashMap();
+        // keys are (albumId, artistId) pairs, used as a set to count the distinct albums of an artist
+        LongIntHashMap artistAlbums = new LongIntHashMap();
+
+        long watermark = 0;
+        for (int row = 0; row < size; row++) {
+            final long albumId = table.getAlbumId(row);
+            final long artistId = table.getArtistId(row);
+            final int year = table.getYear(row);
+            watermark = Math.max(watermark, Math.max(table.getDateModified(row), table.getDateAdded(row)));
+            idIndices.put(table.getId(row), row);
+            albumSongCounts.put(albumId, albumSongCounts.get(albumId, 0) + 1);
+            artistSongCounts.put(artistId, artistSongCounts.get(artistId, 0) + 1);
+
+            final int firstYear = albumFirstYears.get(albumId, Integer.MAX_VALUE);
+            if (year > 0 && year < firstYear) {
+                albumFirstYears.put(albumId, year);
+            }
+
+            final long artistAlbumKey = (albumId << 32) ^ artistId;
+            if (!artistAlbums.containsKey(artistAlbumKey)) {
+                artistAlbums.put(artistAlbumKey, 0);
+                artistAlbumCounts.put(artistId, artistAlbumCounts.get(artistId, 0) + 1);
+            }
+        }
+        this.watermark = watermark;
+    }
+
+    @NonNull
+    private int[] getRows(@NonNull final long[] ids1, @NonNull final long[] ids2) {
+        int[] rows = new int[ids1.length + ids2.length];
+        for (int i = 0; i < ids1.length; i++) {
+            rows[i] = idIndices.get(ids1[i], -1);
+        }
+        for (int i = 0; i < ids2.length; i++) {
+            rows[ids1.length + i] = idIndices.get(ids2[i], -1);
+        }
+        return rows;
+    }
+
+    public int getSongCount() {
+        return table.size();
+    }
+
+    public boolean contains(final long songId) {
+        return idIndices.containsKey(songId);
+    }
+
+    /**
+     * @return the song with the given id or {@link Song#EMPTY_SONG} if it is not part of the library
+     */
+    @NonNull
+    public Song getSong(final long songId) {
+        final int row = idIndices.get(songId, -1);
+        return row == -1 ? Song.EMPTY_SONG : table.getSong(row);
+    }
+
+    /**
+     * @return the duration of the song in ms or -1 if it is not part of the library
+     */
+    public long getDuration(final long songId) {
+        final int row = idIndices.get(songId, -1);
+        return row == -1 ? -1 : table.getDuration(row);
+    }
+
+    /**
+     * @param sortOrder a MediaStore sort order as found in {@link com.kabouzeid.gramophone.helper.SortOrder}
+     * @return a new list with all songs, sorted like the MediaStore would have sorted them
+     */
+    @NonNull
+    public ArrayList<Song> getSongs(@Nullable final String sortOrder) {
+        return new ArrayList<>(getSongList(sortOrder));
+    }
+
+    /**
+     * Like {@link #getSongs(String)} but the songs are only created when they are accessed.
+     */
+    @NonNull
+    public SongTableList getSongList(@Nullable final String sortOrder) {
+        return new SongTableList(table, getSortedRows(sortOrder));
+    }
+
+    /**
+     * Searches the words of the titles, album and artist names, every word of the query has to match.
+     * For {@link #FIELD_TITLE} a word may match any field as long as one of them matches the title,
+     * for {@link #FIELD_ALBUM} the album or artist name and for {@link #FIELD_ARTIST} only the artist name.
+     *
+     * @return the matching songs, best matches first and equally good matches in the sort order
+     */
+    @NonNull
+    public SongTableList getSongs(final int field, @NonNull final String query, @Nullable final String sortOrder) {
+        return new SongTableList(table, getMatchingRows(field, query, sortOrder));
+    }
+
+    /**
+     * The albums with a song matching the query, see {@link #getSongs(int, String, String)}.
+     */
+    @NonNull
+    public ArrayList<Album> getAlbums(final int field, @NonNull final String query, @Nullable final String sortOrder) {
+        return groupIntoAlbums(getMatchingRows(field, query, sortOrder));
+    }
+
+    @NonNull
+    private int[] getMatchingRows(final int field, @NonNull final String query, @Nullable final String sortOrder) {
+        final int[] none = new int[0];
+        final String[] words = SearchIndex.tokenize(query);
+        if (words.length == 0) {
+            return none;
+        }
+
+        final SearchIndex searchIndex = getSearchIndex();
+        final LongIntHashMap[] matches = new LongIntHashMap[words.length];
+        int rarest = 0;
+        for (int i = 0; i < words.length; i++) {
+            matches[i] = searchIndex.match(words[i]);
+            if (matches[i].isEmpty()) {
+                return none;
+            }
+            if (matches[i].size() < matches[rarest].size()) {
+                rarest = i;
+            }
+        }
+
+        // only songs matching the rarest word can match all words
+        final long[] candidates = matches[rarest].keys();
+        final int[] positions = getSortPositions(sortOrder);
+        // score in the high bits and position in the sort order in the low bits, so a plain sort ranks them
+        final long[] ranking = new long[candidates.length];
+        int count = 0;
+        for (long id : candidates) {
+            final int row = idIndices.get(id, -1);
+            if (row == -1) continue;
+            final int score = getScore(field, matches, id);
+            if (score > 0) {
+                ranking[count++] = ((long) (Integer.MAX_VALUE - score) << 32) | positions[row];
+            }
+        }
+        Arrays.sort(ranking, 0, count);
+
+        final int[] rows = getSortedRows(sortOrder);
+        final int[] matchingRows = new int[count];
+        for (int i = 0; i < count; i++) {
+            matchingRows[i] = rows[(int) ranking[i]];
+        }
+        return matchingRows;
+    }
+
+    private static int getScore(final int field, @NonNull final LongIntHashMap[] matches, final long id) {
+        int score = 0;
+        boolean fieldMatched = false;
+        for (LongIntHashMap wordMatches : matches) {
+            final int qualities = wordMatches.get(id, 0);
+            final int primary;
+            final int secondary;
+            switch (field) {
+                case FIELD_TITLE:
+                    primary = SearchIndex.getQuality(qualities, FIELD_TITLE);
+                    secondary = Math.max(SearchIndex.getQuality(qualities, FIELD_ALBUM), SearchIndex.getQuality(qualities, FIELD_ARTIST));
+                    break;
+                case FIELD_ALBUM:
+                    primary = SearchIndex.getQuality(qualities, FIELD_ALBUM);
+                    secondary = SearchIndex.getQuality(qualities, FIELD_ARTIST);
+                    break;
+                default:
+                    primary = SearchIndex.getQuality(qualities, FIELD_ARTIST);
+                    secondary = SearchIndex.QUALITY_NONE;
+                    break;
+            }
+            if (primary == SearchIndex.QUALITY_NONE && secondary == SearchIndex.QUALITY_NONE) {
+                return 0;
+            }
+            fieldMatched |= primary != SearchIndex.QUALITY_NONE;
+            // a match in the searched field weighs more than any match in the others
+            score += primary * (SearchIndex.QUALITY_EXACT + 1) + secondary;
+        }
+        return fieldMatched ? score : 0;
+    }
+
+    @NonNull
+    public SongTableList getAlbumSongs(final long albumId, @Nullable final String sortOrder) {
+        final int[] rows = getSortedRows(sortOrder);
+        final int[] albumRows = new int[albumSongCounts.get(albumId, 0)];
+        int count = 0;
+        for (int row : rows) {
+            if (count < albumRows.length && table.getAlbumId(row) == albumId) {
+                albumRows[count++] = row;
+            }
+        }
+        return new SongTableList(table, count == albumRows.length ? albumRows : Arrays.copyOf(albumRows, count));
+    }
+
+    /**
+     * @return the albums of the artist, each one backed by the table
+     */
+    @NonNull
+    public ArrayList<Album> getArtistAlbums(final long artistId, @Nullable final String sortOrder) {
+        final int[] rows = getSortedRows(sortOrder);
+        final int[] artistRows = new int[artistSongCounts.get(artistId, 0)];
+        int count = 0;
+        for (int row : rows) {
+            if (count < artistRows.length && table.getArtistId(row) == artistId) {
+                artistRows[count++] = row;
+            }
+        }
+        return groupIntoAlbums(count == artistRows.length ? artistRows : Arrays.copyOf(artistRows, count));
+    }
+
+    /**
+     * @return all albums in the sort order of their first song, the songs are only created when they are accessed
+     */
+    @NonNull
+    public ArrayList<Album> getAlbums(@Nullable final String sortOrder) {
+        return groupIntoAlbums(getSortedRows(sortOrder));
+    }
+
+    /**
+     * Splits the rows into albums, keeping the order of the rows within each album and the order in which the
+     * albums first appear. Each row costs one lookup of its album index, so this is linear in the number of rows.
+     */
+    @NonNull
+    private ArrayList<Album> groupIntoAlbums(@NonNull final int[] rows) {
+        // maps album ids to their index in the albums list
+        final LongIntHashMap albumIndices = new LongIntHashMap();
+        final int[] albumOfRow = new int[rows.length];
+        final int[] albumSizes = new int[rows.length];
+        int albumCount = 0;
+        for (int i = 0; i < rows.length; i++) {
+            final long albumId = table.getAlbumId(rows[i]);
+            int album = albumIndices.get(albumId, -1);
+            if (album == -1) {
+                album = albumCount++;
+                albumIndices.put(albumId, album);
+            }
+            albumOfRow[i] = album;
+            albumSizes[album]++;
+        }
+
+        final int[][] albumRows = new int[albumCount][];
+        for (int album = 0; album < albumCount; album++) {
+            albumRows[album] = new int[albumSizes[album]];
+            albumSizes[album] = 0;
+        }
+        for (int i = 0; i < rows.length; i++) {
+            final int album = albumOfRow[i];
+            albumRows[album][albumSizes[album]++] = rows[i];
+        }
+
+        final ArrayList<Album> albums = new ArrayList<>(albumCount);
+        for (int album = 0; album < albumCount; album++) {
+            albums.add(new Album(new SongTableList(table, albumRows[album])));
+        }
+        return albums;
+    }
+
+    @NonNull
+    private int[] getSortPositions(@Nullable final String sortOrder) {
+        final String key = sortOrder == null ? "" : sortOrder;
+        synchronized (sortedRows) {
+            int[] positions = sortPositions.get(key);
+            if (positions == null) {
+                final int[] rows = getSortedRows(sortOrder);
+                positions = new int[rows.length];
+                for (int i = 0; i < rows.length; i++) {
+                    positions[rows[i]] = i;
+                }
+                sortPositions.put(key, positions);
+            }
+            return positions;
+        }
+    }
+
+    @NonNull
+    private SearchIndex getSearchIndex() {
+        synchronized (searchIndexLock) {
+            if (searchIndex == null) {
+                searchIndex = SearchIndex.build(table);
+            }
+            return searchIndex;
+        }
+    }
+
+    @Nullable
+    private SearchIndex peekSearchIndex() {
+        synchronized (searchIndexLock) {
+            return searchIndex;
+        }
+    }
+
+    private void setSearchIndex(@NonNull final SearchIndex searchIndex) {
+        synchronized (searchIndexLock) {
+            this.searchIndex = searchIndex;
+        }
+    }
+
+    @NonNull
+    private int[] getSortedRows(@Nullable final String sortOrder) {
+        final String key = sortOrder == null ? "" : sortOrder;
+        synchronized (sortedRows) {
+            int[] rows = sortedRows.get(key);
+            if (rows == null) {
+                rows = new int[table.size()];
+                for (int i = 0; i < rows.length; i++) {
+                    rows[i] = i;
+                }
+                new SortOrderComparator(key).sort(rows);
+                sortedRows.put(key, rows);
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Evaluates the SQL sort orders from {@link com.kabouzeid.gramophone.helper.SortOrder} in memory
+     * on table rows. Unknown columns are ignored.
+     */
+    private class SortOrderComparator {
+        private static final int TITLE_KEY = 0;
+        private static final int ALBUM_KEY = 1;
+        private static final int ARTIST_KEY = 2;
+        private static final int TITLE = 3;
+        private static final int ALBUM = 4;
+        private static final int ARTIST = 5;
+        private static final int TRACK = 6;
+        private static final int YEAR = 7;
+        private static final int DURATION = 8;
+        private static final int DATE_ADDED = 9;
+        private static final int ID = 10;
+        private static final int ALBUM_SONG_COUNT = 11;
+        private static final int ALBUM_FIRST_YEAR = 12;
+        private static final int ARTIST_SONG_COUNT = 13;
+        private static final int ARTIST_ALBUM_COUNT = 14;
+
+        private final int[] columns;
+        private final boolean[] descending;
+
+        SortOrderComparator(@NonNull final String sortOrder) {
+            ArrayList<Integer> columns = new ArrayList<>();
+            ArrayList<Boolean> descending = new ArrayList<>();
+            for (String term : sortOrder.split(",")) {
+                String[] tokens = term.trim().split("\\s+");
+                int column = getColumn(tokens[0].toLowerCase(Locale.ROOT));
+                if (column != -1) {
+                    columns.add(column);
+                    descending.add(tokens.length > 1 && "desc".equalsIgnoreCase(tokens[tokens.length - 1]));
+                }
+            }
+            this.columns = new int[columns.size()];
+            this.descending = new boolean[columns.size()];
+            for (int i = 0; i < this.columns.length; i++) {
+                this.columns[i] = columns.get(i);
+                this.descending[i] = descending.get(i);
+            }
+        }
+
+        /**
+         * Stable merge sort of the rows, so ties keep the cursor order just like in SQLite.
+         */
+        void sort(@NonNull final int[] rows) {
+            if (columns.length == 0 || rows.length < 2) return;
+            int[] source = rows;
+            int[] destination = new int[rows.length];
+            for (int width = 1; width < rows.length; width <<= 1) {
+                for (int start = 0; start < rows.length; start += width << 1) {
+                    final int middle = Math.min(start + width, rows.length);
+                    final int end = Math.min(start + (width << 1), rows.length);
+                    int left = start;
+                    int right = middle;
+                    for (int i = start; i < end; i++) {
+                        if (left < middle && (right >= end || compare(source[left], source[right]) <= 0)) {
+                            destination[i] = source[left++];
+                        } else {
+                            destination[i] = source[right++];
+                        }
+                    }
+                }
+                int[] swap = source;
+                source = destination;
+                destination = swap;
+            }
+            if (source != rows) {
+                System.arraycopy(source, 0, rows, 0, rows.length);
+            }
+        }
+
+        int compare(int row1, int row2) {
+            for (int i = 0; i < columns.length; i++) {
+                int result = compare(columns[i], row1, row2);
+                if (result != 0) {
+                    return descending[i] ? -result : result;
+                }
+            }
+            return 0;
+        }
+
+        private int compare(int column, int row1, int row2) {
+            switch (column) {
+                case TITLE_KEY:
+                    return compareStrings(table.getTitleKey(row1), table.getTitleKey(row2));
+                case ALBUM_KEY:
+                    return compareStrings(table.getAlbumKey(row1), table.getAlbumKey(row2));
+                case ARTIST_KEY:
+                    return compareStrings(table.getArtistKey(row1), table.getArtistKey(row2));
+                case TITLE:
+                    return compareStrings(table.getTitle(row1), table.getTitle(row2));
+                case ALBUM:
+                    return compareStrings(table.getAlbumName(row1), table.getAlbumName(row2));
+                case ARTIST:
+                    return compareStrings(table.getArtistName(row1), table.getArtistName(row2));
+                case TRACK:
+                    return compareLongs(table.getTrackNumber(row1), table.getTrackNumber(row2));
+                case YEAR:
+                    return compareLongs(table.getYear(row1), table.getYear(row2));
+                case DURATION:
+                    return compareLongs(table.getDuration(row1), table.getDuration(row2));
+                case DATE_ADDED:
+                    return compareLongs(table.getDateAdded(row1), table.getDateAdded(row2));
+                case ID:
+                    return compareLongs(table.getId(row1), table.getId(row2));
+                case ALBUM_SONG_COUNT:
+                    return compareLongs(albumSongCounts.get(table.getAlbumId(row1), 0), albumSongCounts.get(table.getAlbumId(row2), 0));
+                case ALBUM_FIRST_YEAR:
+                    return compareLongs(albumFirstYears.get(table.getAlbumId(row1), 0), albumFirstYears.get(table.getAlbumId(row2), 0));
+                case ARTIST_SONG_COUNT:
+                    return compareLongs(artistSongCounts.get(table.getArtistId(row1), 0), artistSongCounts.get(table.getArtistId(row2), 0));
+                case ARTIST_ALBUM_COUNT:
+                    return compareLongs(artistAlbumCounts.get(table.getArtistId(row1), 0), artistAlbumCounts.get(table.getArtistId(row2), 0));
+                default:
+                    return 0;
+            }
+        }
+
+        private int getColumn(@NonNull final String name) {
+            switch (name) {
+                case AudioColumns.TITLE_KEY:
+                    return TITLE_KEY;
+                case AudioColumns.ALBUM_KEY:
+                    return ALBUM_KEY;
+                case AudioColumns.ARTIST_KEY:
+                    return ARTIST_KEY;
+                case AudioColumns.TITLE:
+                    return TITLE;
+                case AudioColumns.ALBUM:
+                    return ALBUM;
+                case AudioColumns.ARTIST:
+                    return ARTIST;
+                case AudioColumns.TRACK:
+                    return TRACK;
+                case AudioColumns.YEAR:
+                    return YEAR;
+                case AudioColumns.DURATION:
+                    return DURATION;
+                case AudioColumns.DATE_ADDED:
+                    return DATE_ADDED;
+                case AudioColumns._ID:
+                    return ID;
+                case MediaStore.Audio.Albums.NUMBER_OF_SONGS:
+                    return ALBUM_SONG_COUNT;
+                case MediaStore.Audio.Albums.FIRST_YEAR:
+                    return ALBUM_FIRST_YEAR;
+                case MediaStore.Audio.Artists.NUMBER_OF_TRACKS:
+                    return ARTIST_SONG_COUNT;
+                case MediaStore.Audio.Artists.NUMBER_OF_ALBUMS:
+                    return ARTIST_ALBUM_COUNT;
+                default:
+                    return -1;
+            }
+        }
+    }
+
+    private static int compareStrings(@Nullable String s1, @Nullable String s2) {
+        // SQLite sorts NULL before everything else
+        if (s1 == null) return s2 == null ? 0 : -1;
+        if (s2 == null) return 1;
+        return s1.compareTo(s2);
+    }
+
+    private static int compareLongs(long l1, long l2) {
+        return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+    }
+}
@@ -0,0 +1,379 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
+import com.kabouzeid.gramophone.model.SongTable;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable inverted index from the words of song titles, album and artist names to song ids.
+ * Words are lower cased and stripped of diacritics, so "Beyonce" finds "Beyonc&eacute;".
+ * A query word matches index words exactly, as a prefix, with a typo or anywhere inside them. The last one keeps
+ * mid-word queries working, as well as scripts that don't separate words with spaces and are indexed as one word.
+ */
+class SearchIndex {
+    static final int QUALITY_NONE = 0;
+    static final int QUALITY_FUZZY = 1;
+    static final int QUALITY_PREFIX = 2;
+    static final int QUALITY_EXACT = 3;
+
+    private static final int FIELD_COUNT = 3;
+    /**
+     * Query words shorter than this are never matched with typos, there would be too many matches.
+     */
+    private static final int MIN_FUZZY_LENGTH = 4;
+    private static final int MIN_TWO_TYPOS_LENGTH = 8;
+    /**
+     * Latin query words shorter than this only match at the start of a word, other scripts match anywhere.
+     */
+    private static final int MIN_SUBSTRING_LENGTH = 3;
+
+    private static final long[] EMPTY_IDS = new long[0];
+    private static final String[] EMPTY_WORDS = new String[0];
+
+    // ids of the songs that contain the word, one array per field
+    private final HashMap<String, long[][]> postings;
+    private final String[] sortedWords;
+
+    private SearchIndex(@NonNull HashMap<String, long[][]> postings) {
+        this.postings = postings;
+        sortedWords = postings.keySet().toArray(new String[postings.size()]);
+        Arrays.sort(sortedWords);
+    }
+
+    @NonNull
+    static SearchIndex build(@NonNull SongTable table) {
+        HashMap<String, PostingsBuilder> builders = new HashMap<>();
+        Tokenizer tokenizer = new Tokenizer(table);
+        for (int row = 0; row < table.size(); row++) {
+            final long id = table.getId(row);
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                for (String word : tokenizer.getWords(row, field)) {
+                    getBuilder(builders, word, null).add(field, id);
+                }
+            }
+        }
+
+        HashMap<String, long[][]> postings = new HashMap<>(builders.size() * 2);
+        for (Map.Entry<String, PostingsBuilder> entry : builders.entrySet()) {
+            postings.put(entry.getKey(), entry.getValue().build());
+        }
+        return new SearchIndex(postings);
+    }
+
+    /**
+     * @return a new index for the new table, only the words of the changed songs are re-indexed
+     */
+    @NonNull
+    SearchIndex update(@NonNull SongTable oldTable, @NonNull LongIntHashMap oldRows,
+                       @NonNull SongTable newTable, @NonNull LongIntHashMap newRows,
+                       @NonNull LibraryChangeSet changeSet) {
+        HashMap<String, PostingsBuilder> builders = new HashMap<>();
+        Tokenizer oldTokenizer = new Tokenizer(oldTable);
+        Tokenizer newTokenizer = new Tokenizer(newTable);
+
+        for (long[] ids : new long[][]{changeSet.removedIds, changeSet.updatedIds}) {
+            for (long id : ids) {
+                final int row = oldRows.get(id, -1);
+                if (row == -1) continue;
+                for (int field = 0; field < FIELD_COUNT; field++) {
+                    for (String word : oldTokenizer.getWords(row, field)) {
+                        getBuilder(builders, word, postings.get(word)).remove(field, id);
+                    }
+                }
+            }
+        }
+        for (long[] ids : new long[][]{changeSet.addedIds, changeSet.updatedIds}) {
+            for (long id : ids) {
+                final int row = newRows.get(id, -1);
+                if (row == -1) continue;
+                for (int field = 0; field < FIELD_COUNT; field++) {
+                    for (String word : newTokenizer.getWords(row, field)) {
+                        getBuilder(builders, word, postings.get(word)).add(field, id);
+                    }
+                }
+            }
+        }
+
+        HashMap<String, long[][]> newPostings = new HashMap<>(postings);
+        for (Map.Entry<String, PostingsBuilder> entry : builders.entrySet()) {
+            long[][] wordPostings = entry.getValue().build();
+            if (isEmpty(wordPostings)) {
+                newPostings.remove(entry.getKey());
+            } else {
+                newPostings.put(entry.getKey(), wordPostings);
+            }
+        }
+        return new SearchIndex(newPostings);
+    }
+
+    /**
+     * @return the words of the query, folded like the indexed words
+     */
+    @NonNull
+    static String[] tokenize(@Nullable String text) {
+        if (text == null || text.isEmpty()) return EMPTY_WORDS;
+        final String folded = fold(text);
+        ArrayList<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            final boolean letterOrDigit = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (letterOrDigit && start == -1) {
+                start = i;
+            } else if (!letterOrDigit && start != -1) {
+                String word = folded.substring(start, i);
+                if (!words.contains(word)) {
+                    words.add(word);
+                }
+                start = -1;
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    /**
+     * Collects the songs that contain a word matching the query word.
+     *
+     * @return song id to the best match quality per field, packed by {@link #pack(int, int)}
+     */
+    @NonNull
+    LongIntHashMap match(@NonNull String queryWord) {
+        LongIntHashMap matches = new LongIntHashMap();
+
+        // exact and prefix matches are a contiguous range of the sorted words
+        int index = lowerBound(queryWord);
+        while (index < sortedWords.length && sortedWords[index].startsWith(queryWord)) {
+            final String word = sortedWords[index];
+            addMatches(matches, postings.get(word), word.length() == queryWord.length() ? QUALITY_EXACT : QUALITY_PREFIX);
+            index++;
+        }
+
+        if (queryWord.length() >= MIN_FUZZY_LENGTH) {
+            final int maxTypos = queryWord.length() >= MIN_TWO_TYPOS_LENGTH ? 2 : 1;
+            // people rarely get the first letter wrong, only words starting with it are considered
+            final char first = queryWord.charAt(0);
+            final int[][] rows = new int[3][queryWord.length() + 1];
+            for (int i = lowerBound(String.valueOf(first)); i < sortedWords.length && sortedWords[i].charAt(0) == first; i++) {
+                final String word = sortedWords[i];
+                if (word.startsWith(queryWord)) continue;
+                // the query may be an unfinished word, so a typo in the word's prefix counts too
+                if (isWithinTypos(queryWord, word, Math.min(word.length(), queryWord.length()), maxTypos, rows)
+                        || isWithinTypos(queryWord, word, word.length(), maxTypos, rows)) {
+                    addMatches(matches, postings.get(word), QUALITY_FUZZY);
+                }
+            }
+        }
+
+        if (queryWord.length() >= MIN_SUBSTRING_LENGTH || !isLatin(queryWord)) {
+            // a linear scan over the distinct words, ranked like a typo since it is a weaker match than a prefix
+            for (String word : sortedWords) {
+                if (word.length() > queryWord.length() && word.indexOf(queryWord, 1) != -1) {
+                    addMatches(matches, postings.get(word), QUALITY_FUZZY);
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static boolean isLatin(@NonNull String word) {
+        for (int i = 0; i < word.length(); i++) {
+            // everything up to Latin Extended-B
+            if (word.charAt(i) >= 0x0250) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the match quality of the field in a value returned by {@link #match(String)}
+     */
+    static int getQuality(int packedQualities, int field) {
+        return (packedQualities >> (field * 2)) & 3;
+    }
+
+    private static int pack(int quality, int field) {
+        return quality << (field * 2);
+    }
+
+    private static void addMatches(@NonNull LongIntHashMap matches, @NonNull long[][] wordPostings, int quality) {
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            for (long id : wordPostings[field]) {
+                final int packed = matches.get(id, 0);
+                if (getQuality(packed, field) < quality) {
+                    matches.put(id, (packed & ~pack(3, field)) | pack(quality, field));
+                }
+            }
+        }
+    }
+
+    private int lowerBound(@NonNull String key) {
+        int low = 0;
+        int high = sortedWords.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (sortedWords[middle].compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Edit distance between the query and the first {@code length} chars of the word, where swapping two
+     * adjacent chars counts as one typo. Gives up as soon as it can't stay within {@code maxTypos}.
+     */
+    private static boolean isWithinTypos(@NonNull String query, @NonNull String word, int length, int maxTypos, @NonNull int[][] rows) {
+        if (Math.abs(query.length() - length) > maxTypos) return false;
+        int[] beforePrevious = rows[0];
+        int[] previous = rows[1];
+        int[] current = rows[2];
+        for (int i = 0; i <= query.length(); i++) {
+            previous[i] = i;
+        }
+        int previousMin = 0;
+        for (int j = 1; j <= length; j++) {
+            current[0] = j;
+            int rowMin = j;
+            final char c = word.charAt(j - 1);
+            for (int i = 1; i <= query.length(); i++) {
+                final int cost = query.charAt(i - 1) == c ? 0 : 1;
+                int distance = Math.min(Math.min(current[i - 1] + 1, previous[i] + 1), previous[i - 1] + cost);
+                if (i > 1 && j > 1 && query.charAt(i - 1) == word.charAt(j - 2) && query.charAt(i - 2) == c) {
+                    distance = Math.min(distance, beforePrevious[i - 2] + 1);
+                }
+                current[i] = distance;
+                rowMin = Math.min(rowMin, distance);
+            }
+            // a swap reaches back two rows, so both have to be out of reach
+            if (rowMin > maxTypos && previousMin > maxTypos) return false;
+            previousMin = rowMin;
+            int[] swap = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[query.length()] <= maxTypos;
+    }
+
+    @NonNull
+    private static String fold(@NonNull String text) {
+        final String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            final char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                folded.append(c);
+            }
+        }
+        return folded.toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isEmpty(@NonNull long[][] wordPostings) {
+        for (long[] ids : wordPostings) {
+            if (ids.length > 0) return false;
+        }
+        return true;
+    }
+
+    @NonNull
+    private static PostingsBuilder getBuilder(@NonNull HashMap<String, PostingsBuilder> builders, @NonNull String word, @Nullable long[][] existing) {
+        PostingsBuilder builder = builders.get(word);
+        if (builder == null) {
+            builder = new PostingsBuilder(existing);
+            builders.put(word, builder);
+        }
+        return builder;
+    }
+
+    /**
+     * Splits the titles and names of a table into words, each distinct string of the table is only split once.
+     */
+    private static class Tokenizer {
+        private final SongTable table;
+        private final String[][] words;
+
+        Tokenizer(@NonNull SongTable table) {
+            this.table = table;
+            words = new String[table.getStringCount()][];
+        }
+
+        @NonNull
+        String[] getWords(int row, int field) {
+            final int index;
+            switch (field) {
+                case LibrarySnapshot.FIELD_TITLE:
+                    index = table.getTitleIndex(row);
+                    break;
+                case LibrarySnapshot.FIELD_ALBUM:
+                    index = table.getAlbumNameIndex(row);
+                    break;
+                default:
+                    index = table.getArtistNameIndex(row);
+                    break;
+            }
+            if (words[index] == null) {
+                words[index] = tokenize(table.getString(index));
+            }
+            return words[index];
+        }
+    }
+
+    private static class PostingsBuilder {
+        @Nullable
+        private final long[][] existing;
+        private final long[][] added = new long[FIELD_COUNT][];
+        private final int[] addedCounts = new int[FIELD_COUNT];
+        // id to the fields it was removed from
+        @Nullable
+        private LongIntHashMap removed;
+
+        PostingsBuilder(@Nullable long[][] existing) {
+            this.existing = existing;
+        }
+
+        void add(int field, long id) {
+            if (added[field] == null) {
+                added[field] = new long[4];
+            } else if (addedCounts[field] == added[field].length) {
+                added[field] = Arrays.copyOf(added[field], addedCounts[field] << 1);
+            }
+            added[field][addedCounts[field]++] = id;
+        }
+
+        void remove(int field, long id) {
+            if (removed == null) {
+                removed = new LongIntHashMap();
+            }
+            removed.put(id, removed.get(id, 0) | (1 << field));
+        }
+
+        @NonNull
+        long[][] build() {
+            long[][] result = new long[FIELD_COUNT][];
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                final long[] old = existing == null ? EMPTY_IDS : existing[field];
+                long[] ids = new long[old.length + addedCounts[field]];
+                int count = 0;
+                for (long id : old) {
+                    if (removed == null || (removed.get(id, 0) & (1 << field)) == 0) {
+                        ids[count++] = id;
+                    }
+                }
+                for (int i = 0; i < addedCounts[field]; i++) {
+                    ids[count++] = added[field][i];
+                }
+                result[field] = count == 0 ? EMPTY_IDS : (count == ids.length ? ids : Arrays.copyOf(ids, count));
+            }
+            return result;
+        }
+    }
+}
@@ -12,6 +12,7 @@ import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author Karim Abou Zeid (kabouzeid)
@@ -19,22 +20,33 @@ import java.util.ArrayList;
 public class SongLoader {
     protected static final String BASE_SELECTION = AudioColumns.IS_MUSIC + "=1" + " AND " + AudioColumns.TITLE + " != ''";
 
+    protected static final String[] BASE_PROJECTION = new String[]{
+            BaseColumns._ID,// 0
+            AudioColumns.TITLE,// 1
+            AudioColumns.TRACK,// 2
+            AudioColumns.YEAR,// 3
+            AudioColumns.DURATION,// 4
+            AudioColumns.DATA,// 5
+            AudioColumns.DATE_MODIFIED,// 6
+            AudioColumns.ALBUM_ID,// 7
+            AudioColumns.ALBUM,// 8
+            AudioColumns.ARTIST_ID,// 9
+            AudioColumns.ARTIST,// 10
+    };
+
     @NonNull
     public static ArrayList<Song> getAllSongs(@NonNull Context context) {
-        Cursor cursor = makeSongCursor(context, null, null);
-        return getSongs(cursor);
+        return LibrarySnapshot.getInstance(context).getSongs(PreferenceUtil.getInstance(context).getSongSortOrder());
     }
 
     @NonNull
-    public static ArrayList<Song> getSongs(@NonNull final Context context, final String query) {
-        Cursor cursor = makeSongCursor(context, AudioColumns.TITLE + " LIKE ?", new String[]{"%" + query + "%"});
-        return getSongs(cursor);
+    public static List<Song> getSongs(@NonNull final Context context, final String query) {
+        return LibrarySnapshot.getInstance(context).getSongs(LibrarySnapshot.FIELD_TITLE, query, PreferenceUtil.getInstance(context).getSongSortOrder());
     }
 
     @NonNull
     public static Song getSong(@NonNull final Context context, final long queryId) {
-        Cursor cursor = makeSongCursor(context, AudioColumns._ID + "=?", new String[]{String.valueOf(queryId)});
-        return getSong(cursor);
+        return LibrarySnapshot.getInstance(context).getSong(queryId);
     }
 
     @NonNull
@@ -66,7 +78,7 @@ public class SongLoader {
     }
 
     @NonNull
-    private static Song getSongFromCursorImpl(@NonNull Cursor cursor) {
+    static Song getSongFromCursorImpl(@NonNull Cursor cursor) {
         final long id = cursor.getLong(0);
         final String title = cursor.getString(1);
         final int trackNumber = cursor.getInt(2);
@@ -96,20 +108,7 @@ public class SongLoader {
 
         try {
             return context.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                    new String[]{
-                            BaseColumns._ID,// 0
-                            AudioColumns.TITLE,// 1
-                            AudioColumns.TRACK,// 2
-                            AudioColumns.YEAR,// 3
-                            AudioColumns.DURATION,// 4
-                            AudioColumns.DATA,// 5
-                            AudioColumns.DATE_MODIFIED,// 6
-                            AudioColumns.ALBUM_ID,// 7
-                            AudioColumns.ALBUM,// 8
-                            AudioColumns.ARTIST_ID,// 9
-                            AudioColumns.ARTIST,// 10
-
-                    }, baseSelection, selectionValues, sortOrder);
+                    BASE_PROJECTION, baseSelection, selectionValues, sortOrder);
         } catch (SecurityException e) {
             return null;
         }
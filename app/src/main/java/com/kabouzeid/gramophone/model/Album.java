@@ -5,14 +5,15 @@ import android.os.Parcelable;
 import android.support.annotation.NonNull;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author Karim Abou Zeid (kabouzeid)
  */
 public class Album implements Parcelable {
-    public final ArrayList<Song> songs;
+    public final List<Song> songs;
 
-    public Album(ArrayList<Song> songs) {
+    public Album(List<Song> songs) {
         this.songs = songs;
     }
 
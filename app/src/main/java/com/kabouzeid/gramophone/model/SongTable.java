@@ -0,0 +1,306 @@
+package com.kabouzeid.gramophone.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Column oriented, immutable table of songs for library sized data.
+ * The numeric attributes live in primitive arrays and titles, album and artist names are interned
+ * into a string pool, so a hundred thousand songs don't need a hundred thousand {@link Song} objects.
+ * {@link Song} views are only created on demand by {@link #getSong(int)}.
+ */
+public class SongTable {
+    public static final SongTable EMPTY = new Builder(0).build();
+
+    private final int size;
+    private final long[] ids;
+    private final int[] trackNumbers;
+    private final int[] years;
+    private final long[] durations;
+    private final long[] datesModified;
+    private final long[] datesAdded;
+    private final long[] albumIds;
+    private final long[] artistIds;
+    // paths are unique per song, interning them would not save anything
+    private final String[] data;
+
+    // indices into the string pool
+    private final int[] titles;
+    private final int[] albumNames;
+    private final int[] artistNames;
+    private final int[] titleKeys;
+    private final int[] albumKeys;
+    private final int[] artistKeys;
+    private final String[] strings;
+
+    private SongTable(@NonNull Builder builder) {
+        size = builder.size;
+        ids = Arrays.copyOf(builder.ids, size);
+        trackNumbers = Arrays.copyOf(builder.trackNumbers, size);
+        years = Arrays.copyOf(builder.years, size);
+        durations = Arrays.copyOf(builder.durations, size);
+        datesModified = Arrays.copyOf(builder.datesModified, size);
+        datesAdded = Arrays.copyOf(builder.datesAdded, size);
+        albumIds = Arrays.copyOf(builder.albumIds, size);
+        artistIds = Arrays.copyOf(builder.artistIds, size);
+        data = Arrays.copyOf(builder.data, size);
+        titles = Arrays.copyOf(builder.titles, size);
+        albumNames = Arrays.copyOf(builder.albumNames, size);
+        artistNames = Arrays.copyOf(builder.artistNames, size);
+        titleKeys = Arrays.copyOf(builder.titleKeys, size);
+        albumKeys = Arrays.copyOf(builder.albumKeys, size);
+        artistKeys = Arrays.copyOf(builder.artistKeys, size);
+        strings = builder.strings.toArray(new String[builder.strings.size()]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return a new {@link Song} view of the row
+     */
+    @NonNull
+    public Song getSong(int row) {
+        return new Song(ids[row], getTitle(row), trackNumbers[row], years[row], durations[row], data[row], datesModified[row], albumIds[row], getAlbumName(row), artistIds[row], getArtistName(row));
+    }
+
+    public long getId(int row) {
+        return ids[row];
+    }
+
+    public int getTrackNumber(int row) {
+        return trackNumbers[row];
+    }
+
+    public int getYear(int row) {
+        return years[row];
+    }
+
+    public long getDuration(int row) {
+        return durations[row];
+    }
+
+    public long getDateModified(int row) {
+        return datesModified[row];
+    }
+
+    public long getDateAdded(int row) {
+        return datesAdded[row];
+    }
+
+    public long getAlbumId(int row) {
+        return albumIds[row];
+    }
+
+    public long getArtistId(int row) {
+        return artistIds[row];
+    }
+
+    public String getData(int row) {
+        return data[row];
+    }
+
+    public String getTitle(int row) {
+        return strings[titles[row]];
+    }
+
+    public String getAlbumName(int row) {
+        return strings[albumNames[row]];
+    }
+
+    public String getArtistName(int row) {
+        return strings[artistNames[row]];
+    }
+
+    public String getTitleKey(int row) {
+        return strings[titleKeys[row]];
+    }
+
+    public String getAlbumKey(int row) {
+        return strings[albumKeys[row]];
+    }
+
+    public String getArtistKey(int row) {
+        return strings[artistKeys[row]];
+    }
+
+    /**
+     * Index of the row's title in the string pool, equal titles share the same index.
+     */
+    public int getTitleIndex(int row) {
+        return titles[row];
+    }
+
+    /**
+     * Index of the row's album name in the string pool, equal names share the same index.
+     */
+    public int getAlbumNameIndex(int row) {
+        return albumNames[row];
+    }
+
+    /**
+     * Index of the row's artist name in the string pool, equal names share the same index.
+     */
+    public int getArtistNameIndex(int row) {
+        return artistNames[row];
+    }
+
+    /**
+     * @return the size of the string pool, all string indices are below it
+     */
+    public int getStringCount() {
+        return strings.length;
+    }
+
+    public String getString(int index) {
+        return strings[index];
+    }
+
+    /**
+     * @return whether the row holds exactly the same values as the row of the other table
+     */
+    public boolean isSameRow(int row, @NonNull SongTable other, int otherRow) {
+        return ids[row] == other.ids[otherRow]
+                && trackNumbers[row] == other.trackNumbers[otherRow]
+                && years[row] == other.years[otherRow]
+                && durations[row] == other.durations[otherRow]
+                && datesModified[row] == other.datesModified[otherRow]
+                && datesAdded[row] == other.datesAdded[otherRow]
+                && albumIds[row] == other.albumIds[otherRow]
+                && artistIds[row] == other.artistIds[otherRow]
+                && TextUtils.equals(data[row], other.data[otherRow])
+                && TextUtils.equals(getTitle(row), other.getTitle(otherRow))
+                && TextUtils.equals(getAlbumName(row), other.getAlbumName(otherRow))
+                && TextUtils.equals(getArtistName(row), other.getArtistName(otherRow))
+                && TextUtils.equals(getTitleKey(row), other.getTitleKey(otherRow))
+                && TextUtils.equals(getAlbumKey(row), other.getAlbumKey(otherRow))
+                && TextUtils.equals(getArtistKey(row), other.getArtistKey(otherRow));
+    }
+
+    public static class Builder {
+        private int size;
+        private long[] ids;
+        private int[] trackNumbers;
+        private int[] years;
+        private long[] durations;
+        private long[] datesModified;
+        private long[] datesAdded;
+        private long[] albumIds;
+        private long[] artistIds;
+        private String[] data;
+        private int[] titles;
+        private int[] albumNames;
+        private int[] artistNames;
+        private int[] titleKeys;
+        private int[] albumKeys;
+        private int[] artistKeys;
+
+        private final ArrayList<String> strings = new ArrayList<>();
+        private final HashMap<String, Integer> stringIndices = new HashMap<>();
+
+        public Builder(int expectedSize) {
+            allocate(Math.max(expectedSize, 16));
+        }
+
+        @NonNull
+        public Builder add(@NonNull Song song, long dateAdded, @Nullable String titleKey, @Nullable String albumKey, @Nullable String artistKey) {
+            ensureCapacity();
+            ids[size] = song.id;
+            trackNumbers[size] = song.trackNumber;
+            years[size] = song.year;
+            durations[size] = song.duration;
+            datesModified[size] = song.dateModified;
+            datesAdded[size] = dateAdded;
+            albumIds[size] = song.albumId;
+            artistIds[size] = song.artistId;
+            data[size] = song.data;
+            titles[size] = intern(song.title);
+            albumNames[size] = intern(song.albumName);
+            artistNames[size] = intern(song.artistName);
+            titleKeys[size] = intern(titleKey);
+            albumKeys[size] = intern(albumKey);
+            artistKeys[size] = intern(artistKey);
+            size++;
+            return this;
+        }
+
+        /**
+         * Copies a row from another table.
+         */
+        @NonNull
+        public Builder add(@NonNull SongTable table, int row) {
+            return add(table.getSong(row), table.datesAdded[row], table.getTitleKey(row), table.getAlbumKey(row), table.getArtistKey(row));
+        }
+
+        public int size() {
+            return size;
+        }
+
+        @NonNull
+        public SongTable build() {
+            return new SongTable(this);
+        }
+
+        private int intern(@Nullable String string) {
+            Integer index = stringIndices.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.add(string);
+                stringIndices.put(string, index);
+            }
+            return index;
+        }
+
+        private void ensureCapacity() {
+            if (size == ids.length) {
+                allocate(size << 1);
+            }
+        }
+
+        private void allocate(int capacity) {
+            if (ids == null) {
+                ids = new long[capacity];
+                trackNumbers = new int[capacity];
+                years = new int[capacity];
+                durations = new long[capacity];
+                datesModified = new long[capacity];
+                datesAdded = new long[capacity];
+                albumIds = new long[capacity];
+                artistIds = new long[capacity];
+                data = new String[capacity];
+                titles = new int[capacity];
+                albumNames = new int[capacity];
+                artistNames = new int[capacity];
+                titleKeys = new int[capacity];
+                albumKeys = new int[capacity];
+                artistKeys = new int[capacity];
+            } else {
+                ids = Arrays.copyOf(ids, capacity);
+                trackNumbers = Arrays.copyOf(trackNumbers, capacity);
+                years = Arrays.copyOf(years, capacity);
+                durations = Arrays.copyOf(durations, capacity);
+                datesModified = Arrays.copyOf(datesModified, capacity);
+                datesAdded = Arrays.copyOf(datesAdded, capacity);
+                albumIds = Arrays.copyOf(albumIds, capacity);
+                artistIds = Arrays.copyOf(artistIds, capacity);
+                data = Arrays.copyOf(data, capacity);
+                titles = Arrays.copyOf(titles, capacity);
+                albumNames = Arrays.copyOf(albumNames, capacity);
+                artistNames = Arrays.copyOf(artistNames, capacity);
+                titleKeys = Arrays.copyOf(titleKeys, capacity);
+                albumKeys = Arrays.copyOf(albumKeys, capacity);
+                artistKeys = Arrays.copyOf(artistKeys, capacity);
+            }
+        }
+    }
+}
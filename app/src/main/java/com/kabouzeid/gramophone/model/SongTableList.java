@@ -0,0 +1,56 @@
+package com.kabouzeid.gramophone.model;
+
+import android.support.annotation.NonNull;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Read only list of songs backed by rows of a {@link SongTable}.
+ * Adapters can bind straight from it, a {@link Song} is only created the first time an item is accessed
+ * and reused for every later bind.
+ */
+public class SongTableList extends AbstractList<Song> implements RandomAccess {
+    @NonNull
+    private final SongTable table;
+    @NonNull
+    private final int[] rows;
+    // the songs created so far, null for the items that were never accessed
+    @NonNull
+    private final Song[] songs;
+
+    /**
+     * @param rows the rows of the table in the order they should appear in the list
+     */
+    public SongTableList(@NonNull SongTable table, @NonNull int[] rows) {
+        this.table = table;
+        this.rows = rows;
+        this.songs = new Song[rows.length];
+    }
+
+    @Override
+    public Song get(int index) {
+        if (index < 0 || index >= rows.length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + rows.length);
+        }
+        // songs are immutable, a race only creates one twice
+        Song song = songs[index];
+        if (song == null) {
+            song = table.getSong(rows[index]);
+            songs[index] = song;
+        }
+        return song;
+    }
+
+    /**
+     * @return the id of the song at the index without creating a {@link Song}
+     */
+    public long getId(int index) {
+        return table.getId(rows[index]);
+    }
+
+    @Override
+    public int size() {
+        return rows.length;
+    }
+}
@@ -0,0 +1,326 @@
+package com.kabouzeid.gramophone.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The embedded covers of audio files, extracted once and kept on disk in several sizes.
+ * <p/>
+ * The index maps a file and its modification date to the hash of its embedded picture, the pictures themselves are
+ * stored by that hash. Songs of an album that embed the same picture share one set of files, and loading a cover
+ * that was extracted before only reads the variant that fits the requested size, never the audio file.
+ */
+public class EmbeddedCoverStore extends SQLiteOpenHelper {
+    private static final String TAG = EmbeddedCoverStore.class.getSimpleName();
+
+    @Nullable
+    private static EmbeddedCoverStore sInstance = null;
+    public static final String DATABASE_NAME = "embedded_covers.db";
+    private static final int VERSION = 1;
+
+    private static final String DIRECTORY_NAME = "embedded_covers";
+    // the scaled variants, the original picture is kept as well
+    private static final int[] SIZES = {96, 256, 512};
+    private static final int JPEG_QUALITY = 90;
+
+    /**
+     * Returned for files without an embedded picture.
+     */
+    public static final String NO_COVER = "";
+
+    @NonNull
+    private final File mDirectory;
+    // the whole index in memory once mHashesLoaded, a path and a hash per file
+    @NonNull
+    private final ConcurrentHashMap<String, Entry> mHashes = new ConcurrentHashMap<>();
+    private volatile boolean mHashesLoaded;
+
+    public EmbeddedCoverStore(final Context context) {
+        super(context, DATABASE_NAME, null, VERSION);
+        mDirectory = new File(context.getCacheDir(), DIRECTORY_NAME);
+
+        // covers are keyed by album on the UI thread, which needs the hashes without touching the database
+        final HandlerThread thread = new HandlerThread("EmbeddedCoverStore", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        new Handler(thread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                loadHashes();
+                thread.quit();
+            }
+        });
+    }
+
+    @Override
+    public void onCreate(@NonNull final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + CoverColumns.NAME + " ("
+                + CoverColumns.PATH + " TEXT PRIMARY KEY,"
+                + CoverColumns.DATE_MODIFIED + " INTEGER NOT NULL,"
+                + CoverColumns.HASH + " TEXT);");
+    }
+
+    @Override
+    public void onUpgrade(@NonNull final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+        // the covers can always be extracted again
+        db.execSQL("DROP TABLE IF EXISTS " + CoverColumns.NAME);
+        onCreate(db);
+    }
+
+    @Override
+    public void onDowngrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
+        onUpgrade(db, oldVersion, newVersion);
+    }
+
+    @NonNull
+    public static synchronized EmbeddedCoverStore getInstance(@NonNull final Context context) {
+        if (sInstance == null) {
+            sInstance = new EmbeddedCoverStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param dateModified the modification date of the file in seconds, like the MediaStore has it
+     * @return the hash of the embedded picture, {@link #NO_COVER} if the file has none or null if it was not
+     * extracted since the file was last modified
+     */
+    @Nullable
+    public String getHash(@NonNull final String path, final long dateModified) {
+        final Entry entry = mHashes.get(path);
+        if (entry != null && entry.dateModified == dateModified) {
+            return entry.hash;
+        }
+        if (mHashesLoaded) {
+            return null;
+        }
+        final Cursor cursor = getReadableDatabase().query(CoverColumns.NAME,
+                new String[]{CoverColumns.DATE_MODIFIED, CoverColumns.HASH},
+                CoverColumns.PATH + "=?", new String[]{path}, null, null, null);
+        try {
+            if (!cursor.moveToFirst() || cursor.getLong(0) != dateModified) {
+                return null;
+            }
+            final String hash = cursor.isNull(1) ? NO_COVER : cursor.getString(1);
+            mHashes.put(path, new Entry(dateModified, hash));
+            return hash;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Doesn't touch the database, so it can be called on the UI thread.
+     *
+     * @return the hash like {@link #getHash(String, long)}, but also null while the index is not loaded yet
+     */
+    @Nullable
+    public String peekHash(@NonNull final String path, final long dateModified) {
+        final Entry entry = mHashes.get(path);
+        return entry != null && entry.dateModified == dateModified ? entry.hash : null;
+    }
+
+    private void loadHashes() {
+        try {
+            final Cursor cursor = getReadableDatabase().query(CoverColumns.NAME,
+                    new String[]{CoverColumns.PATH, CoverColumns.DATE_MODIFIED, CoverColumns.HASH},
+                    null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    // files that were stored in the meantime are newer
+                    mHashes.putIfAbsent(cursor.getString(0), new Entry(cursor.getLong(1), cursor.isNull(2) ? NO_COVER : cursor.getString(2)));
+                }
+            } finally {
+                cursor.close();
+            }
+            mHashesLoaded = true;
+        } catch (RuntimeException e) {
+            // getHash() keeps querying the database
+            Log.w(TAG, "Could not load the cover index", e);
+        }
+    }
+
+    /**
+     * Stores the embedded picture of the file in all sizes, unless a file with the same picture did already.
+     *
+     * @param picture the embedded picture, null if there is none
+     * @return the hash of the picture or {@link #NO_COVER}
+     */
+    @NonNull
+    public String put(@NonNull final String path, final long dateModified, @Nullable final byte[] picture) {
+        String hash = NO_COVER;
+        if (picture != null && picture.length > 0) {
+            hash = hash(picture);
+            if (!writeVariants(hash, picture)) {
+                // try again next time instead of remembering a cover that isn't there
+                return hash;
+            }
+        }
+        final ContentValues values = new ContentValues(3);
+        values.put(CoverColumns.PATH, path);
+        values.put(CoverColumns.DATE_MODIFIED, dateModified);
+        if (hash.isEmpty()) {
+            values.putNull(CoverColumns.HASH);
+        } else {
+            values.put(CoverColumns.HASH, hash);
+        }
+        getWritableDatabase().insertWithOnConflict(CoverColumns.NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        mHashes.put(path, new Entry(dateModified, hash));
+        return hash;
+    }
+
+    /**
+     * @param size the requested width or height in pixels, 0 or less for the original picture
+     * @return the smallest stored variant that is at least that large or null if the files are gone
+     */
+    @Nullable
+    public File getVariant(@NonNull final String hash, final int size) {
+        if (size > 0) {
+            for (int variantSize : SIZES) {
+                if (variantSize >= size) {
+                    final File file = getFile(hash, variantSize);
+                    if (file.exists()) {
+                        return file;
+                    }
+                }
+            }
+        }
+        final File original = getFile(hash, 0);
+        return original.exists() ? original : null;
+    }
+
+    @NonNull
+    private File getFile(@NonNull final String hash, final int size) {
+        return new File(mDirectory, size > 0 ? hash + "_" + size : hash);
+    }
+
+    private boolean writeVariants(@NonNull final String hash, @NonNull final byte[] picture) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return false;
+        }
+        final File original = getFile(hash, 0);
+        if (original.exists()) {
+            // another song of the album embeds the same picture
+            return true;
+        }
+        try {
+            final BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(picture, 0, picture.length, bounds);
+            final int originalSize = Math.max(bounds.outWidth, bounds.outHeight);
+            for (int size : SIZES) {
+                if (size < originalSize) {
+                    writeScaled(getFile(hash, size), picture, bounds, size);
+                }
+            }
+            // written last, it marks the variants as complete
+            write(original, picture);
+            return true;
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            Log.w(TAG, "Can't store the cover " + hash, e);
+            return false;
+        }
+    }
+
+    private static void writeScaled(@NonNull final File file, @NonNull final byte[] picture, @NonNull final BitmapFactory.Options bounds, final int size) throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (Math.max(bounds.outWidth, bounds.outHeight) / (options.inSampleSize * 2) >= size) {
+            options.inSampleSize *= 2;
+        }
+        final Bitmap sampled = BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+        if (sampled == null) {
+            throw new IOException("Can't decode the picture");
+        }
+        final float scale = (float) size / Math.max(sampled.getWidth(), sampled.getHeight());
+        final Bitmap scaled = scale < 1
+                ? Bitmap.createScaledBitmap(sampled, Math.max(1, Math.round(sampled.getWidth() * scale)), Math.max(1, Math.round(sampled.getHeight() * scale)), true)
+                : sampled;
+        final File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        final OutputStream out = new FileOutputStream(tempFile);
+        try {
+            scaled.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } finally {
+            out.close();
+            if (scaled != sampled) {
+                scaled.recycle();
+            }
+            sampled.recycle();
+        }
+        rename(tempFile, file);
+    }
+
+    private static void write(@NonNull final File file, @NonNull final byte[] data) throws IOException {
+        final File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        final OutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        rename(tempFile, file);
+    }
+
+    /**
+     * Files are written to a temporary file first, so a variant is either complete or missing.
+     */
+    private static void rename(@NonNull final File tempFile, @NonNull final File file) throws IOException {
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not rename " + tempFile + " to " + file);
+        }
+    }
+
+    @NonNull
+    private static String hash(@NonNull final byte[] data) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        final long dateModified;
+        @NonNull
+        final String hash;
+
+        Entry(long dateModified, @NonNull String hash) {
+            this.dateModified = dateModified;
+            this.hash = hash;
+        }
+    }
+
+    public interface CoverColumns {
+        String NAME = "covers";
+
+        String PATH = "path";
+
+        String DATE_MODIFIED = "date_modified";
+
+        String HASH = "hash";
+    }
+}
@@ -16,37 +16,88 @@
 
 package com.kabouzeid.gramophone.provider;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
+import com.kabouzeid.gramophone.util.PreferenceUtil;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+
+/**
+ * The recently played songs, at most one entry per song and at most {@link PreferenceUtil#getHistorySize()} entries.
+ * <p/>
+ * Songs are looked up by their primary key and the oldest entries are found through the index on the time played,
+ * so recording a song doesn't get slower with the size of the history. The table may grow by a few entries over
+ * the limit before it is trimmed, so the trimming is only paid for every once in a while.
+ */
 public class HistoryStore extends SQLiteOpenHelper {
-    private static final int MAX_ITEMS_IN_DB = 100;
+    private static final String TAG = HistoryStore.class.getSimpleName();
 
     public static final String DATABASE_NAME = "history.db";
-    private static final int VERSION = 1;
+    private static final int VERSION = 2;
     @Nullable
     private static HistoryStore sInstance = null;
 
+    // how long recorded songs are collected before they are written in one transaction
+    private static final long FLUSH_DELAY_MILLIS = 1000;
+
+    private static final int FLUSH = 0;
+
+    @NonNull
+    private final Context mContext;
+
+    @NonNull
+    private final FlushHandler mFlushHandler;
+
+    // song id to time played of the songs that are not written yet, in the order they were played
+    private final LinkedHashMap<Long, Long> mPendingSongIds = new LinkedHashMap<>();
+
+    // number of rows in the table, -1 if not counted yet
+    private int mSize = -1;
+
     public HistoryStore(final Context context) {
         super(context, DATABASE_NAME, null, VERSION);
+        mContext = context;
+
+        HandlerThread thread = new HandlerThread("HistoryStore", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mFlushHandler = new FlushHandler(this, thread.getLooper());
     }
 
     @Override
     public void onCreate(@NonNull final SQLiteDatabase db) {
         db.execSQL("CREATE TABLE IF NOT EXISTS " + RecentStoreColumns.NAME + " ("
-                + RecentStoreColumns.ID + " LONG NOT NULL," + RecentStoreColumns.TIME_PLAYED
-                + " LONG NOT NULL);");
+                + RecentStoreColumns.ID + " INTEGER PRIMARY KEY," + RecentStoreColumns.TIME_PLAYED
+                + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + RecentStoreColumns.TIME_PLAYED_INDEX + " ON "
+                + RecentStoreColumns.NAME + "(" + RecentStoreColumns.TIME_PLAYED + ");");
     }
 
     @Override
     public void onUpgrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + RecentStoreColumns.NAME);
-        onCreate(db);
+        if (oldVersion < 2) {
+            // keep the history, the old table may hold a song more than once
+            final String oldName = RecentStoreColumns.NAME + "_old";
+            db.execSQL("ALTER TABLE " + RecentStoreColumns.NAME + " RENAME TO " + oldName);
+            onCreate(db);
+            db.execSQL("INSERT OR REPLACE INTO " + RecentStoreColumns.NAME + " SELECT "
+                    + RecentStoreColumns.ID + ", MAX(" + RecentStoreColumns.TIME_PLAYED + ") FROM " + oldName
+                    + " GROUP BY " + RecentStoreColumns.ID);
+            db.execSQL("DROP TABLE IF EXISTS " + oldName);
+        }
     }
 
     @Override
@@ -68,60 +119,142 @@ public class HistoryStore extends SQLiteOpenHelper {
             return;
         }
 
-        final SQLiteDatabase database = getWritableDatabase();
-        database.beginTransaction();
+        synchronized (mPendingSongIds) {
+            mPendingSongIds.remove(songId);
+            mPendingSongIds.put(songId, System.currentTimeMillis());
+        }
+        flush();
+    }
 
-        try {
-            // remove previous entries
-            removeSongId(songId);
+    /**
+     * Records the song on a background thread, songs played in quick succession are written together.
+     */
+    public void addSongIdAsync(final long songId) {
+        if (songId == -1) {
+            return;
+        }
 
-            // add the entry
-            final ContentValues values = new ContentValues(2);
-            values.put(RecentStoreColumns.ID, songId);
-            values.put(RecentStoreColumns.TIME_PLAYED, System.currentTimeMillis());
-            database.insert(RecentStoreColumns.NAME, null, values);
+        synchronized (mPendingSongIds) {
+            mPendingSongIds.remove(songId);
+            mPendingSongIds.put(songId, System.currentTimeMillis());
+            if (!mFlushHandler.hasMessages(FLUSH)) {
+                mFlushHandler.sendEmptyMessageDelayed(FLUSH, FLUSH_DELAY_MILLIS);
+            }
+        }
+    }
 
-            // if our db is too large, delete the extra items
-            Cursor oldest = null;
-            try {
-                oldest = database.query(RecentStoreColumns.NAME,
-                        new String[]{RecentStoreColumns.TIME_PLAYED}, null, null, null, null,
-                        RecentStoreColumns.TIME_PLAYED + " ASC");
+    /**
+     * Writes the songs recorded with {@link #addSongIdAsync(long)} on the background thread as soon as possible,
+     * e.g. because the service is shutting down.
+     */
+    public void requestFlush() {
+        mFlushHandler.removeMessages(FLUSH);
+        mFlushHandler.sendEmptyMessage(FLUSH);
+    }
 
-                if (oldest != null && oldest.getCount() > MAX_ITEMS_IN_DB) {
-                    oldest.moveToPosition(oldest.getCount() - MAX_ITEMS_IN_DB);
-                    long timeOfRecordToKeep = oldest.getLong(0);
+    /**
+     * Writes the pending songs to the database and trims the history if it grew too large.
+     * Blocks until they are written.
+     */
+    public synchronized void flush() {
+        final Long[] songIds;
+        final Long[] times;
+        synchronized (mPendingSongIds) {
+            if (mPendingSongIds.isEmpty()) {
+                return;
+            }
+            songIds = mPendingSongIds.keySet().toArray(new Long[mPendingSongIds.size()]);
+            times = mPendingSongIds.values().toArray(new Long[mPendingSongIds.size()]);
+            mPendingSongIds.clear();
+        }
 
-                    database.delete(RecentStoreColumns.NAME,
-                            RecentStoreColumns.TIME_PLAYED + " < ?",
-                            new String[]{String.valueOf(timeOfRecordToKeep)});
+        try {
+            final SQLiteDatabase database = getWritableDatabase();
+            database.beginTransaction();
+            try {
+                int size = getSize(database);
+                final SQLiteStatement update = database.compileStatement("UPDATE " + RecentStoreColumns.NAME
+                        + " SET " + RecentStoreColumns.TIME_PLAYED + "=? WHERE " + RecentStoreColumns.ID + "=?");
+                final SQLiteStatement insert = database.compileStatement("INSERT INTO " + RecentStoreColumns.NAME
+                        + " (" + RecentStoreColumns.ID + "," + RecentStoreColumns.TIME_PLAYED + ") VALUES (?,?)");
+                try {
+                    for (int i = 0; i < songIds.length; i++) {
+                        update.bindLong(1, times[i]);
+                        update.bindLong(2, songIds[i]);
+                        if (update.executeUpdateDelete() == 0) {
+                            insert.bindLong(1, songIds[i]);
+                            insert.bindLong(2, times[i]);
+                            insert.executeInsert();
+                            size++;
+                        }
+                    }
+                } finally {
+                    update.close();
+                    insert.close();
+                }
 
+                // let the table grow a bit over the limit, so the oldest entries are only skipped over once in a while
+                final int maxItems = PreferenceUtil.getInstance(mContext).getHistorySize();
+                if (size > maxItems + Math.max(maxItems / 8, 1)) {
+                    size -= database.delete(RecentStoreColumns.NAME, RecentStoreColumns.ID + " IN (SELECT "
+                            + RecentStoreColumns.ID + " FROM " + RecentStoreColumns.NAME + " ORDER BY "
+                            + RecentStoreColumns.TIME_PLAYED + " DESC LIMIT -1 OFFSET " + maxItems + ")", null);
                 }
+
+                database.setTransactionSuccessful();
+                mSize = size;
             } finally {
-                if (oldest != null) {
-                    oldest.close();
-                }
+                database.endTransaction();
             }
-        } finally {
-            database.setTransactionSuccessful();
-            database.endTransaction();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Could not write the history", e);
         }
     }
 
-    public void removeSongId(final long songId) {
-        final SQLiteDatabase database = getWritableDatabase();
-        database.delete(RecentStoreColumns.NAME, RecentStoreColumns.ID + " = ?", new String[]{
-                String.valueOf(songId)
-        });
+    private int getSize(@NonNull final SQLiteDatabase database) {
+        if (mSize == -1) {
+            Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM " + RecentStoreColumns.NAME, null);
+            try {
+                mSize = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+            } finally {
+                cursor.close();
+            }
+        }
+        return mSize;
+    }
 
+    public void removeSongId(final long songId) {
+        synchronized (mPendingSongIds) {
+            mPendingSongIds.remove(songId);
+        }
+        synchronized (this) {
+            final SQLiteDatabase database = getWritableDatabase();
+            if (database.delete(RecentStoreColumns.NAME, RecentStoreColumns.ID + " = ?", new String[]{
+                    String.valueOf(songId)
+            }) > 0 && mSize != -1) {
+                mSize--;
+            }
+        }
     }
 
     public void clear() {
-        final SQLiteDatabase database = getWritableDatabase();
-        database.delete(RecentStoreColumns.NAME, null, null);
+        synchronized (mPendingSongIds) {
+            mPendingSongIds.clear();
+        }
+        synchronized (this) {
+            final SQLiteDatabase database = getWritableDatabase();
+            database.delete(RecentStoreColumns.NAME, null, null);
+            mSize = 0;
+        }
     }
 
     public boolean contains(long id) {
+        synchronized (mPendingSongIds) {
+            if (mPendingSongIds.containsKey(id)) {
+                return true;
+            }
+        }
+
         final SQLiteDatabase database = getReadableDatabase();
         Cursor cursor = database.query(RecentStoreColumns.NAME,
                 new String[]{RecentStoreColumns.ID},
@@ -137,10 +270,36 @@ public class HistoryStore extends SQLiteOpenHelper {
     }
 
     public Cursor queryRecentIds() {
+        flush();
+
         final SQLiteDatabase database = getReadableDatabase();
         return database.query(RecentStoreColumns.NAME,
                 new String[]{RecentStoreColumns.ID}, null, null, null, null,
-                RecentStoreColumns.TIME_PLAYED + " DESC");
+                RecentStoreColumns.TIME_PLAYED + " DESC",
+                String.valueOf(PreferenceUtil.getInstance(mContext).getHistorySize()));
+    }
+
+    private static final class FlushHandler extends Handler {
+        @NonNull
+        private final WeakReference<HistoryStore> mStore;
+
+        public FlushHandler(final HistoryStore store, @NonNull final Looper looper) {
+            super(looper);
+            mStore = new WeakReference<>(store);
+        }
+
+        @Override
+        public void handleMessage(@NonNull Message msg) {
+            final HistoryStore store = mStore.get();
+            if (store == null) {
+                return;
+            }
+            switch (msg.what) {
+                case FLUSH:
+                    store.flush();
+                    break;
+            }
+        }
     }
 
     public interface RecentStoreColumns {
@@ -149,5 +308,7 @@ public class HistoryStore extends SQLiteOpenHelper {
         String ID = "song_id";
 
         String TIME_PLAYED = "time_played";
+
+        String TIME_PLAYED_INDEX = "recent_history_time_played_index";
     }
 }
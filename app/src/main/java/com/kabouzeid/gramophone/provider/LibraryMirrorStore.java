@@ -0,0 +1,260 @@
+package com.kabouzeid.gramophone.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+import android.provider.MediaStore.Audio.AudioColumns;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.model.SongTable;
+
+/**
+ * Local copy of the music library, so the library can be shown right after a cold start
+ * without waiting for the MediaStore. The copy is stamped with the MediaStore version
+ * it was read from and is ignored once the MediaStore reports another version.
+ */
+public class LibraryMirrorStore extends SQLiteOpenHelper {
+    @Nullable
+    private static LibraryMirrorStore sInstance = null;
+    public static final String DATABASE_NAME = "library_mirror.db";
+    private static final int VERSION = 1;
+
+    private static final String SONGS_TABLE_NAME = "songs";
+    private static final String META_TABLE_NAME = "meta";
+
+    private static final String META_KEY = "key";
+    private static final String META_VALUE = "value";
+    private static final String KEY_MEDIA_STORE_VERSION = "media_store_version";
+
+    private static final String[] COLUMNS = new String[]{
+            BaseColumns._ID,// 0
+            AudioColumns.TITLE,// 1
+            AudioColumns.TRACK,// 2
+            AudioColumns.YEAR,// 3
+            AudioColumns.DURATION,// 4
+            AudioColumns.DATA,// 5
+            AudioColumns.DATE_MODIFIED,// 6
+            AudioColumns.ALBUM_ID,// 7
+            AudioColumns.ALBUM,// 8
+            AudioColumns.ARTIST_ID,// 9
+            AudioColumns.ARTIST,// 10
+            AudioColumns.DATE_ADDED,// 11
+            AudioColumns.TITLE_KEY,// 12
+            AudioColumns.ALBUM_KEY,// 13
+            AudioColumns.ARTIST_KEY,// 14
+    };
+
+    public LibraryMirrorStore(final Context context) {
+        super(context, DATABASE_NAME, null, VERSION);
+    }
+
+    @Override
+    public void onCreate(@NonNull final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + SONGS_TABLE_NAME + " ("
+                + BaseColumns._ID + " INTEGER PRIMARY KEY,"
+                + AudioColumns.TITLE + " TEXT,"
+                + AudioColumns.TRACK + " INTEGER NOT NULL,"
+                + AudioColumns.YEAR + " INTEGER NOT NULL,"
+                + AudioColumns.DURATION + " INTEGER NOT NULL,"
+                + AudioColumns.DATA + " TEXT,"
+                + AudioColumns.DATE_MODIFIED + " INTEGER NOT NULL,"
+                + AudioColumns.ALBUM_ID + " INTEGER NOT NULL,"
+                + AudioColumns.ALBUM + " TEXT,"
+                + AudioColumns.ARTIST_ID + " INTEGER NOT NULL,"
+                + AudioColumns.ARTIST + " TEXT,"
+                + AudioColumns.DATE_ADDED + " INTEGER NOT NULL,"
+                + AudioColumns.TITLE_KEY + " TEXT,"
+                + AudioColumns.ALBUM_KEY + " TEXT,"
+                + AudioColumns.ARTIST_KEY + " TEXT);");
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + META_TABLE_NAME + " ("
+                + META_KEY + " TEXT PRIMARY KEY,"
+                + META_VALUE + " TEXT);");
+    }
+
+    @Override
+    public void onUpgrade(@NonNull final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+        // the mirror can always be read again from the MediaStore
+        db.execSQL("DROP TABLE IF EXISTS " + SONGS_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + META_TABLE_NAME);
+        onCreate(db);
+    }
+
+    @Override
+    public void onDowngrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
+        onUpgrade(db, oldVersion, newVersion);
+    }
+
+    @NonNull
+    public static synchronized LibraryMirrorStore getInstance(@NonNull final Context context) {
+        if (sInstance == null) {
+            sInstance = new LibraryMirrorStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param mediaStoreVersion the current {@link android.provider.MediaStore#getVersion(Context)}
+     * @return the mirrored library or null if there is none or it was written for another MediaStore version
+     */
+    @Nullable
+    public synchronized SongTable load(@NonNull final String mediaStoreVersion) {
+        final SQLiteDatabase database = getReadableDatabase();
+        if (!mediaStoreVersion.equals(getMediaStoreVersion(database))) {
+            return null;
+        }
+
+        Cursor cursor = database.query(SONGS_TABLE_NAME, COLUMNS, null, null, null, null, BaseColumns._ID);
+        try {
+            SongTable.Builder rows = new SongTable.Builder(cursor.getCount());
+            if (cursor.moveToFirst()) {
+                do {
+                    rows.add(new Song(cursor.getLong(0), cursor.getString(1), cursor.getInt(2), cursor.getInt(3),
+                                    cursor.getLong(4), cursor.getString(5), cursor.getLong(6), cursor.getLong(7),
+                                    cursor.getString(8), cursor.getLong(9), cursor.getString(10)),
+                            cursor.getLong(11),
+                            cursor.getString(12),
+                            cursor.getString(13),
+                            cursor.getString(14));
+                } while (cursor.moveToNext());
+            }
+            return rows.size() == 0 ? null : rows.build();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Replaces the whole mirror with the table.
+     */
+    public synchronized void save(@NonNull final SongTable table, @NonNull final String mediaStoreVersion) {
+        final SQLiteDatabase database = getWritableDatabase();
+        database.beginTransaction();
+        try {
+            database.delete(SONGS_TABLE_NAME, null, null);
+            SQLiteStatement insert = compileInsert(database);
+            try {
+                for (int row = 0; row < table.size(); row++) {
+                    insert(insert, table, row);
+                }
+            } finally {
+                insert.close();
+            }
+            setMediaStoreVersion(database, mediaStoreVersion);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Writes only the given rows of the table and deletes the removed songs.
+     * The mirror must hold the library the table was synced from.
+     */
+    public synchronized void update(@NonNull final SongTable table, @NonNull final int[] changedRows, @NonNull final long[] removedIds, @NonNull final String mediaStoreVersion) {
+        final SQLiteDatabase database = getWritableDatabase();
+        database.beginTransaction();
+        try {
+            SQLiteStatement delete = database.compileStatement("DELETE FROM " + SONGS_TABLE_NAME + " WHERE " + BaseColumns._ID + "=?");
+            try {
+                for (long id : removedIds) {
+                    delete.bindLong(1, id);
+                    delete.executeUpdateDelete();
+                }
+            } finally {
+                delete.close();
+            }
+            SQLiteStatement insert = compileInsert(database);
+            try {
+                for (int row : changedRows) {
+                    insert(insert, table, row);
+                }
+            } finally {
+                insert.close();
+            }
+            setMediaStoreVersion(database, mediaStoreVersion);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Drops the mirror, e.g. because a write failed and it no longer matches the library.
+     */
+    public synchronized void clear() {
+        final SQLiteDatabase database = getWritableDatabase();
+        database.beginTransaction();
+        try {
+            database.delete(SONGS_TABLE_NAME, null, null);
+            database.delete(META_TABLE_NAME, null, null);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    @NonNull
+    private static SQLiteStatement compileInsert(@NonNull final SQLiteDatabase database) {
+        StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ").append(SONGS_TABLE_NAME).append(" (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(i == 0 ? "" : ",").append(COLUMNS[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return database.compileStatement(sql.append(")").toString());
+    }
+
+    private static void insert(@NonNull final SQLiteStatement insert, @NonNull final SongTable table, final int row) {
+        insert.bindLong(1, table.getId(row));
+        bindString(insert, 2, table.getTitle(row));
+        insert.bindLong(3, table.getTrackNumber(row));
+        insert.bindLong(4, table.getYear(row));
+        insert.bindLong(5, table.getDuration(row));
+        bindString(insert, 6, table.getData(row));
+        insert.bindLong(7, table.getDateModified(row));
+        insert.bindLong(8, table.getAlbumId(row));
+        bindString(insert, 9, table.getAlbumName(row));
+        insert.bindLong(10, table.getArtistId(row));
+        bindString(insert, 11, table.getArtistName(row));
+        insert.bindLong(12, table.getDateAdded(row));
+        bindString(insert, 13, table.getTitleKey(row));
+        bindString(insert, 14, table.getAlbumKey(row));
+        bindString(insert, 15, table.getArtistKey(row));
+        insert.executeInsert();
+    }
+
+    private static void bindString(@NonNull final SQLiteStatement statement, final int index, @Nullable final String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    @Nullable
+    private static String getMediaStoreVersion(@NonNull final SQLiteDatabase database) {
+        Cursor cursor = database.query(META_TABLE_NAME, new String[]{META_VALUE}, META_KEY + "=?",
+                new String[]{KEY_MEDIA_STORE_VERSION}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void setMediaStoreVersion(@NonNull final SQLiteDatabase database, @NonNull final String mediaStoreVersion) {
+        ContentValues values = new ContentValues(2);
+        values.put(META_KEY, KEY_MEDIA_STORE_VERSION);
+        values.put(META_VALUE, mediaStoreVersion);
+        database.insertWithOnConflict(META_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+}
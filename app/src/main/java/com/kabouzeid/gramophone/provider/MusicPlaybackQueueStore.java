@@ -15,33 +15,89 @@
 */
 package com.kabouzeid.gramophone.provider;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.preference.PreferenceManager;
 import android.provider.BaseColumns;
-import android.provider.MediaStore.Audio.AudioColumns;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
-import com.kabouzeid.gramophone.loader.SongLoader;
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
+import com.kabouzeid.gramophone.helper.ShuffleOrder;
 import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.service.MusicService;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * @author Andrew Neal, modified for Phonograph by Karim Abou Zeid
  *         <p/>
  *         This keeps track of the music playback and history state of the playback service
+ *         <p/>
+ *         Only the song ids of the original playing queue and the {@link ShuffleOrder} of the playing queue are
+ *         stored, so the shuffled order survives a restart exactly. A snapshot of them is written to a binary file when a
+ *         new queue is opened, every edit after that is appended to a journal of {@link QueueOperation}s in the
+ *         database, so editing a queue doesn't rewrite it. Once the journal grows as long as the snapshot it is
+ *         compacted into a new snapshot. Journal entries belong to the generation of the snapshot they were
+ *         appended to, so entries of an older snapshot are never replayed, even if the app died while compacting.
+ *         <p/>
+ *         The snapshot starts with a fixed size header:
+ *         magic, format version, generation, position, position in track, shuffle mode, queue length, whether the
+ *         queue is shuffled and the shuffle seed. The song ids follow as zigzag varints of the difference to the
+ *         previous id, then the index of the song at every position the same way if the queue is shuffled.
  */
 public class MusicPlaybackQueueStore extends SQLiteOpenHelper {
+    private static final String TAG = MusicPlaybackQueueStore.class.getSimpleName();
+
     @Nullable
     private static MusicPlaybackQueueStore sInstance = null;
     public static final String DATABASE_NAME = "music_playback_state.db";
-    public static final String PLAYING_QUEUE_TABLE_NAME = "playing_queue";
-    public static final String ORIGINAL_PLAYING_QUEUE_TABLE_NAME = "original_playing_queue";
-    private static final int VERSION = 3;
+    public static final String JOURNAL_TABLE_NAME = "queue_journal";
+    private static final int VERSION = 6;
+
+    public static final String SNAPSHOT_FILE_NAME = "queue_snapshot";
+
+    private static final int SNAPSHOT_MAGIC = 0x50515331; // PQS1
+    private static final int SNAPSHOT_FORMAT_VERSION = 2;
+    private static final int SNAPSHOT_POSITION_OFFSET = 16;
+    private static final int SNAPSHOT_HEADER_SIZE = 44;
+
+    // the journal is never compacted before it has this many entries
+    private static final int MIN_JOURNAL_LENGTH_TO_COMPACT = 256;
+
+    private static final String GENERATION = "generation";
+    private static final String OPERATION = "operation";
+    private static final String POSITION = "position";
+    private static final String ARGUMENT = "argument";
+
+    @NonNull
+    private final Context mContext;
+
+    @NonNull
+    private final File mSnapshotFile;
+
+    // generation of the current snapshot, -1 if not read yet
+    private long mGeneration = -1;
+
+    // number of songs in the snapshot and of entries in the journal, -1 if not counted yet
+    private int mSnapshotLength = -1;
+    private int mJournalLength = -1;
 
     /**
      * Constructor of <code>MusicPlaybackState</code>
@@ -50,70 +106,66 @@ public class MusicPlaybackQueueStore extends SQLiteOpenHelper {
      */
     public MusicPlaybackQueueStore(final Context context) {
         super(context, DATABASE_NAME, null, VERSION);
+        mContext = context;
+        mSnapshotFile = new File(context.getFilesDir(), SNAPSHOT_FILE_NAME);
     }
 
     @Override
     public void onCreate(@NonNull final SQLiteDatabase db) {
-        createTable(db, PLAYING_QUEUE_TABLE_NAME);
-        createTable(db, ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + JOURNAL_TABLE_NAME + "("
+                + GENERATION + " INTEGER NOT NULL,"
+                + OPERATION + " INTEGER NOT NULL,"
+                + POSITION + " INTEGER NOT NULL,"
+                + ARGUMENT + " INTEGER NOT NULL);");
     }
 
-    private void createTable(@NonNull final SQLiteDatabase db, final String tableName) {
-        //noinspection StringBufferReplaceableByString
-        StringBuilder builder = new StringBuilder();
-        builder.append("CREATE TABLE IF NOT EXISTS ");
-        builder.append(tableName);
-        builder.append("(");
-
-        builder.append(BaseColumns._ID);
-        builder.append(" INT NOT NULL,");
-
-        builder.append(AudioColumns.TITLE);
-        builder.append(" STRING NOT NULL,");
-
-        builder.append(AudioColumns.TRACK);
-        builder.append(" INT NOT NULL,");
-
-        builder.append(AudioColumns.YEAR);
-        builder.append(" INT NOT NULL,");
-
-        builder.append(AudioColumns.DURATION);
-        builder.append(" LONG NOT NULL,");
-
-        builder.append(AudioColumns.DATA);
-        builder.append(" STRING NOT NULL,");
-
-        builder.append(AudioColumns.DATE_MODIFIED);
-        builder.append(" LONG NOT NULL,");
-
-        builder.append(AudioColumns.ALBUM_ID);
-        builder.append(" INT NOT NULL,");
-
-        builder.append(AudioColumns.ALBUM);
-        builder.append(" STRING NOT NULL,");
-
-        builder.append(AudioColumns.ARTIST_ID);
-        builder.append(" INT NOT NULL,");
+    @Override
+    public void onUpgrade(@NonNull final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+        if (oldVersion == 3) {
+            migrateQueueTables(db);
+        }
+        db.execSQL("DROP TABLE IF EXISTS " + LegacyColumns.PLAYING_QUEUE_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + LegacyColumns.ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + JOURNAL_TABLE_NAME);
+        onCreate(db);
+    }
 
-        builder.append(AudioColumns.ARTIST);
-        builder.append(" STRING NOT NULL);");
+    /**
+     * Moves the queues saved in the database by earlier versions into a snapshot.
+     */
+    private void migrateQueueTables(@NonNull final SQLiteDatabase db) {
+        final ArrayList<Long> playingQueue = new ArrayList<>();
+        final ArrayList<Long> originalPlayingQueue = new ArrayList<>();
+        readLegacyQueue(db, LegacyColumns.PLAYING_QUEUE_TABLE_NAME, playingQueue);
+        readLegacyQueue(db, LegacyColumns.ORIGINAL_PLAYING_QUEUE_TABLE_NAME, originalPlayingQueue);
 
-        db.execSQL(builder.toString());
+        // the shuffle mode and the positions used to be saved in the preferences
+        final int shuffleMode = PreferenceManager.getDefaultSharedPreferences(mContext).getInt(MusicService.SAVED_SHUFFLE_MODE, 0);
+        final int position = PreferenceManager.getDefaultSharedPreferences(mContext).getInt(LegacyColumns.SAVED_POSITION, -1);
+        final int positionInTrack = PreferenceManager.getDefaultSharedPreferences(mContext).getInt(LegacyColumns.SAVED_POSITION_IN_TRACK, -1);
+        try {
+            writeSnapshot(toSavedQueues(toArray(playingQueue), toArray(originalPlayingQueue), position, positionInTrack, shuffleMode), 1);
+            mGeneration = 1;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not migrate the saved queues", e);
+        }
     }
 
-    @Override
-    public void onUpgrade(@NonNull final SQLiteDatabase db, final int oldVersion, final int newVersion) {
-        // not necessary yet
-        db.execSQL("DROP TABLE IF EXISTS " + PLAYING_QUEUE_TABLE_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
-        onCreate(db);
+    private static void readLegacyQueue(@NonNull final SQLiteDatabase db, final String tableName, @NonNull final List<Long> queue) {
+        final Cursor cursor = db.query(tableName, new String[]{BaseColumns._ID}, null, null, null, null, "rowid");
+        try {
+            while (cursor.moveToNext()) {
+                queue.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
     public void onDowngrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
         // If we ever have downgrade, drop the table to be safe
-        db.execSQL("DROP TABLE IF EXISTS " + PLAYING_QUEUE_TABLE_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + JOURNAL_TABLE_NAME);
         onCreate(db);
     }
 
@@ -129,73 +181,472 @@ public class MusicPlaybackQueueStore extends SQLiteOpenHelper {
         return sInstance;
     }
 
-    public synchronized void saveQueues(@NonNull final ArrayList<Song> playingQueue, @NonNull final ArrayList<Song> originalPlayingQueue) {
-        saveQueue(PLAYING_QUEUE_TABLE_NAME, playingQueue);
-        saveQueue(ORIGINAL_PLAYING_QUEUE_TABLE_NAME, originalPlayingQueue);
+    /**
+     * Replaces the saved queues and the journal with a snapshot of the queues.
+     */
+    public synchronized void saveQueues(@NonNull final SavedQueues savedQueues) {
+        try {
+            startNextGeneration(savedQueues);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save the queues", e);
+        }
+    }
+
+    /**
+     * Updates the positions of the saved queues in place.
+     */
+    public synchronized void savePositions(final int position, final int positionInTrack) {
+        if (!mSnapshotFile.exists()) {
+            // only edits of an empty queue have been saved so far, they belong to this snapshot
+            try {
+                writeSnapshot(new SavedQueues(new long[0], null, 0, position, positionInTrack, MusicService.SHUFFLE_MODE_NONE),
+                        mGeneration == -1 ? 0 : mGeneration);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not save the queue positions", e);
+            }
+            return;
+        }
+        try {
+            final RandomAccessFile file = new RandomAccessFile(mSnapshotFile, "rw");
+            try {
+                file.seek(SNAPSHOT_POSITION_OFFSET);
+                file.writeInt(position);
+                file.writeInt(positionInTrack);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save the queue positions", e);
+        }
     }
 
     /**
-     * Clears the existing database and saves the queue into the db so that when the
-     * app is restarted, the tracks you were listening to is restored
-     *
-     * @param queue the queue to save
+     * Appends an edit of the queues to the journal, compacting the journal if it got too long.
      */
-    private synchronized void saveQueue(final String tableName, @NonNull final ArrayList<Song> queue) {
+    public synchronized void appendOperation(@NonNull final QueueOperation operation) {
         final SQLiteDatabase database = getWritableDatabase();
-        database.beginTransaction();
+        if (mJournalLength == -1) {
+            final SavedQueues savedQueues = readSnapshot();
+            mGeneration = savedQueues == null ? 0 : savedQueues.generation;
+            mSnapshotLength = savedQueues == null ? 0 : savedQueues.originalPlayingQueue.length;
+            mJournalLength = count(database, mGeneration);
+        }
 
+        database.beginTransaction();
         try {
-            database.delete(tableName, null, null);
+            final SQLiteStatement insert = database.compileStatement("INSERT INTO " + JOURNAL_TABLE_NAME
+                    + " (" + GENERATION + "," + OPERATION + "," + POSITION + "," + ARGUMENT + ") VALUES (?,?,?,?)");
+            try {
+                if (operation.type == QueueOperation.INSERT) {
+                    // one entry per song, every song is inserted behind the previous one
+                    for (int i = 0; i < operation.songIds.length; i++) {
+                        insertOperation(insert, operation.type,
+                                operation.position == -1 ? -1 : operation.position + i, operation.songIds[i]);
+                    }
+                    mJournalLength += operation.songIds.length;
+                } else {
+                    insertOperation(insert, operation.type, operation.position, operation.argument);
+                    mJournalLength++;
+                }
+            } finally {
+                insert.close();
+            }
             database.setTransactionSuccessful();
         } finally {
             database.endTransaction();
         }
 
-        final int NUM_PROCESS = 20;
-        int position = 0;
-        while (position < queue.size()) {
-            database.beginTransaction();
+        if (mJournalLength >= Math.max(MIN_JOURNAL_LENGTH_TO_COMPACT, mSnapshotLength)) {
+            final SavedQueues savedQueues = getSavedQueues();
+            if (savedQueues != null) {
+                try {
+                    startNextGeneration(savedQueues);
+                } catch (IOException e) {
+                    // the journal is still there, try again with the next edit
+                    Log.e(TAG, "Could not compact the queue journal", e);
+                }
+            }
+        }
+    }
+
+    private void insertOperation(@NonNull final SQLiteStatement insert, final int type, final int position, final long argument) {
+        insert.bindLong(1, mGeneration);
+        insert.bindLong(2, type);
+        insert.bindLong(3, position);
+        insert.bindLong(4, argument);
+        insert.executeInsert();
+    }
+
+    /**
+     * Writes the queues as the snapshot of a new generation, then drops the journal of the old generation.
+     */
+    private void startNextGeneration(@NonNull final SavedQueues savedQueues) throws IOException {
+        if (mGeneration == -1) {
+            final SavedQueues oldSavedQueues = readSnapshot();
+            mGeneration = oldSavedQueues == null ? 0 : oldSavedQueues.generation;
+        }
+        final long generation = mGeneration + 1;
+        writeSnapshot(savedQueues, generation);
+        mGeneration = generation;
+        mSnapshotLength = savedQueues.originalPlayingQueue.length;
+        mJournalLength = 0;
+
+        getWritableDatabase().delete(JOURNAL_TABLE_NAME, GENERATION + "<?", new String[]{String.valueOf(generation)});
+    }
+
+    /**
+     * Writes the snapshot to a temporary file first and renames it, so there is always a complete snapshot.
+     */
+    private void writeSnapshot(@NonNull final SavedQueues savedQueues, final long generation) throws IOException {
+        final File tempFile = new File(mSnapshotFile.getPath() + ".tmp");
+        final FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_FORMAT_VERSION);
+            out.writeLong(generation);
+            out.writeInt(savedQueues.position);
+            out.writeInt(savedQueues.positionInTrack);
+            out.writeInt(savedQueues.shuffleMode);
+            out.writeInt(savedQueues.originalPlayingQueue.length);
+            out.writeInt(savedQueues.shuffleOrder == null ? 0 : 1);
+            out.writeLong(savedQueues.shuffleSeed);
+            long previous = 0;
+            for (long id : savedQueues.originalPlayingQueue) {
+                writeVarLong(out, id - previous);
+                previous = id;
+            }
+            if (savedQueues.shuffleOrder != null) {
+                previous = 0;
+                for (int index : savedQueues.shuffleOrder) {
+                    writeVarLong(out, index - previous);
+                    previous = index;
+                }
+            }
+            out.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        if (!tempFile.renameTo(mSnapshotFile)) {
+            throw new IOException("Could not rename " + tempFile + " to " + mSnapshotFile);
+        }
+    }
+
+    private static void writeVarLong(@NonNull final DataOutputStream out, final long delta) throws IOException {
+        // zigzag, so small negative differences stay small too
+        long value = (delta << 1) ^ (delta >> 63);
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * @return the snapshot without the journal applied, null if there is none or it can't be read
+     */
+    @Nullable
+    private SavedQueues readSnapshot() {
+        if (!mSnapshotFile.exists()) {
+            return null;
+        }
+        try {
+            final FileInputStream in = new FileInputStream(mSnapshotFile);
             try {
-                for (int i = position; i < queue.size() && i < position + NUM_PROCESS; i++) {
-                    Song song = queue.get(i);
-                    ContentValues values = new ContentValues(4);
-
-                    values.put(BaseColumns._ID, song.id);
-                    values.put(AudioColumns.TITLE, song.title);
-                    values.put(AudioColumns.TRACK, song.trackNumber);
-                    values.put(AudioColumns.YEAR, song.year);
-                    values.put(AudioColumns.DURATION, song.duration);
-                    values.put(AudioColumns.DATA, song.data);
-                    values.put(AudioColumns.DATE_MODIFIED, song.dateModified);
-                    values.put(AudioColumns.ALBUM_ID, song.albumId);
-                    values.put(AudioColumns.ALBUM, song.albumName);
-                    values.put(AudioColumns.ARTIST_ID, song.artistId);
-                    values.put(AudioColumns.ARTIST, song.artistName);
-
-                    database.insert(tableName, null, values);
+                final FileChannel channel = in.getChannel();
+                final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.remaining() < SNAPSHOT_HEADER_SIZE || buffer.getInt() != SNAPSHOT_MAGIC
+                        || buffer.getInt() != SNAPSHOT_FORMAT_VERSION) {
+                    Log.e(TAG, "Ignoring the queue snapshot, it has an unknown format");
+                    return null;
                 }
-                database.setTransactionSuccessful();
+                final long generation = buffer.getLong();
+                final int position = buffer.getInt();
+                final int positionInTrack = buffer.getInt();
+                final int shuffleMode = buffer.getInt();
+                final long[] originalPlayingQueue = new long[buffer.getInt()];
+                final boolean shuffled = buffer.getInt() != 0;
+                final long shuffleSeed = buffer.getLong();
+                readIds(buffer, originalPlayingQueue);
+                int[] shuffleOrder = null;
+                if (shuffled) {
+                    shuffleOrder = new int[originalPlayingQueue.length];
+                    int previous = 0;
+                    for (int i = 0; i < shuffleOrder.length; i++) {
+                        previous += (int) readVarLong(buffer);
+                        shuffleOrder[i] = previous;
+                    }
+                }
+                final SavedQueues savedQueues = new SavedQueues(originalPlayingQueue, shuffleOrder, shuffleSeed, position, positionInTrack, shuffleMode);
+                savedQueues.generation = generation;
+                return savedQueues;
             } finally {
-                database.endTransaction();
-                position += NUM_PROCESS;
+                in.close();
             }
+        } catch (IOException | BufferUnderflowException | NegativeArraySizeException e) {
+            Log.e(TAG, "Could not read the queue snapshot", e);
+            return null;
         }
     }
 
+    private static void readIds(@NonNull final ByteBuffer buffer, @NonNull final long[] ids) {
+        long previousId = 0;
+        for (int i = 0; i < ids.length; i++) {
+            previousId += readVarLong(buffer);
+            ids[i] = previousId;
+        }
+    }
+
+    private static long readVarLong(@NonNull final ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Turns the playing queue and the original playing queue of version 3 into a {@link ShuffleOrder}.
+     * The k-th occurrence of a song in the playing queue is matched to its k-th occurrence in the original one.
+     * If the playing queue is no permutation of the original one it becomes the new original one.
+     */
     @NonNull
-    public ArrayList<Song> getSavedPlayingQueue() {
-        return getQueue(PLAYING_QUEUE_TABLE_NAME);
+    private static SavedQueues toSavedQueues(@NonNull final long[] playingQueue, @NonNull final long[] originalPlayingQueue,
+                                             final int position, final int positionInTrack, final int shuffleMode) {
+        final int n = originalPlayingQueue.length;
+        if (playingQueue.length == n && !Arrays.equals(playingQueue, originalPlayingQueue)) {
+            final LongIntHashMap firstIndices = new LongIntHashMap(n);
+            final int[] nextIndices = new int[n];
+            for (int i = n - 1; i >= 0; i--) {
+                nextIndices[i] = firstIndices.get(originalPlayingQueue[i], -1);
+                firstIndices.put(originalPlayingQueue[i], i);
+            }
+            final int[] shuffleOrder = new int[n];
+            for (int p = 0; p < n; p++) {
+                final int index = firstIndices.get(playingQueue[p], -1);
+                if (index == -1) {
+                    return new SavedQueues(playingQueue, null, 0, position, positionInTrack, MusicService.SHUFFLE_MODE_NONE);
+                }
+                firstIndices.put(playingQueue[p], nextIndices[index]);
+                shuffleOrder[p] = index;
+            }
+            return new SavedQueues(originalPlayingQueue, shuffleOrder, 0, position, positionInTrack, shuffleMode);
+        }
+        return new SavedQueues(playingQueue, null, 0, position, positionInTrack,
+                playingQueue.length == n ? shuffleMode : MusicService.SHUFFLE_MODE_NONE);
+    }
+
+    /**
+     * @return the saved queues with all edits applied or null if there are none or they can't be restored
+     */
+    @Nullable
+    public synchronized SavedQueues getSavedQueues() {
+        SavedQueues savedQueues = readSnapshot();
+        final long generation = savedQueues == null ? 0 : savedQueues.generation;
+
+        final Cursor cursor = getReadableDatabase().query(JOURNAL_TABLE_NAME, new String[]{OPERATION, POSITION, ARGUMENT},
+                GENERATION + "=?", new String[]{String.valueOf(generation)}, null, null, "rowid");
+        try {
+            if (!cursor.moveToFirst()) {
+                return savedQueues;
+            }
+
+            final ArrayList<Long> originalPlayingQueue = savedQueues == null ? new ArrayList<Long>() : toList(savedQueues.originalPlayingQueue);
+            final ShuffleOrder shuffleOrder = new ShuffleOrder();
+            if (savedQueues != null && !shuffleOrder.restore(originalPlayingQueue.size(), savedQueues.shuffleOrder, savedQueues.shuffleSeed)) {
+                Log.e(TAG, "Ignoring the saved queues, the shuffle order doesn't fit the queue");
+                return null;
+            }
+            int shuffleMode = savedQueues == null ? 0 : savedQueues.shuffleMode;
+            do {
+                shuffleMode = replay(originalPlayingQueue, shuffleOrder, shuffleMode, cursor.getInt(0), cursor.getInt(1), cursor.getLong(2));
+            } while (cursor.moveToNext());
+
+            savedQueues = new SavedQueues(toArray(originalPlayingQueue), shuffleOrder.getOrder(), shuffleOrder.getSeed(),
+                    savedQueues == null ? -1 : savedQueues.position,
+                    savedQueues == null ? -1 : savedQueues.positionInTrack,
+                    shuffleMode);
+            savedQueues.generation = generation;
+            return savedQueues;
+        } catch (IndexOutOfBoundsException e) {
+            // the journal doesn't fit the snapshot, better to lose the queue than to restore a wrong one
+            Log.e(TAG, "Could not replay the queue journal", e);
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Applies a journal entry to the queue.
+     *
+     * @return the shuffle mode after the entry
+     */
+    private static int replay(@NonNull final List<Long> originalPlayingQueue, @NonNull final ShuffleOrder shuffleOrder, final int shuffleMode,
+                              final int type, final int position, final long argument) {
+        switch (type) {
+            case QueueOperation.INSERT:
+                final int index = position == -1 ? originalPlayingQueue.size() : position;
+                originalPlayingQueue.add(index, argument);
+                shuffleOrder.insert(position, 1);
+                break;
+            case QueueOperation.REMOVE:
+                originalPlayingQueue.remove(shuffleOrder.remove(position));
+                break;
+            case QueueOperation.MOVE:
+                if (!shuffleOrder.isShuffled()) {
+                    originalPlayingQueue.add((int) argument, originalPlayingQueue.remove(position));
+                }
+                shuffleOrder.move(position, (int) argument);
+                break;
+            case QueueOperation.SHUFFLE:
+                shuffleOrder.shuffle(position, argument);
+                return MusicService.SHUFFLE_MODE_SHUFFLE;
+            case QueueOperation.RESTORE_ORIGINAL:
+                shuffleOrder.unshuffle(position);
+                return MusicService.SHUFFLE_MODE_NONE;
+            case QueueOperation.CLEAR:
+                originalPlayingQueue.clear();
+                shuffleOrder.clear();
+                break;
+        }
+        return shuffleMode;
+    }
+
+    private static int count(@NonNull final SQLiteDatabase database, final long generation) {
+        final Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM " + JOURNAL_TABLE_NAME + " WHERE " + GENERATION + "=?",
+                new String[]{String.valueOf(generation)});
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
     }
 
     @NonNull
-    public ArrayList<Song> getSavedOriginalPlayingQueue() {
-        return getQueue(ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
+    private static ArrayList<Long> toList(@NonNull final long[] array) {
+        final ArrayList<Long> list = new ArrayList<>(array.length);
+        for (long value : array) {
+            list.add(value);
+        }
+        return list;
     }
 
     @NonNull
-    private ArrayList<Song> getQueue(@NonNull final String tableName) {
-        Cursor cursor = getReadableDatabase().query(tableName, null,
-                null, null, null, null, null);
-        return SongLoader.getSongs(cursor);
+    private static long[] toArray(@NonNull final List<Long> list) {
+        final long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * The song ids of the saved queues, the songs themselves are looked up in the library when they are needed.
+     */
+    public static final class SavedQueues {
+        @NonNull
+        public final long[] originalPlayingQueue;
+        // the index of the song at every position of the playing queue, null if not shuffled
+        @Nullable
+        public final int[] shuffleOrder;
+        public final long shuffleSeed;
+        // -1 if unknown
+        public final int position;
+        public final int positionInTrack;
+        public final int shuffleMode;
+
+        private long generation;
+
+        public SavedQueues(@NonNull final long[] originalPlayingQueue, @Nullable final int[] shuffleOrder, final long shuffleSeed,
+                           final int position, final int positionInTrack, final int shuffleMode) {
+            this.originalPlayingQueue = originalPlayingQueue;
+            this.shuffleOrder = shuffleOrder;
+            this.shuffleSeed = shuffleSeed;
+            this.position = position;
+            this.positionInTrack = positionInTrack;
+            this.shuffleMode = shuffleMode;
+        }
+    }
+
+    /**
+     * An edit of the queue, positions are positions in the playing queue.
+     */
+    public static final class QueueOperation {
+        // inserts the songs at the position of both queues, -1 appends them
+        static final int INSERT = 0;
+        // removes the song at the position from both queues
+        static final int REMOVE = 1;
+        // moves the song at the position to the argument, only in the playing queue while shuffled
+        static final int MOVE = 2;
+        // shuffles the queue with the argument as seed, the song at the position is moved to the front
+        static final int SHUFFLE = 3;
+        // restores the order of the original playing queue
+        static final int RESTORE_ORIGINAL = 4;
+        static final int CLEAR = 5;
+
+        final int type;
+        final int position;
+        final long argument;
+        final long[] songIds;
+
+        private QueueOperation(final int type, final int position, final long argument, @Nullable final long[] songIds) {
+            this.type = type;
+            this.position = position;
+            this.argument = argument;
+            this.songIds = songIds;
+        }
+
+        @NonNull
+        public static QueueOperation insert(final int position, @NonNull final List<Song> songs) {
+            final long[] songIds = new long[songs.size()];
+            for (int i = 0; i < songIds.length; i++) {
+                songIds[i] = songs.get(i).id;
+            }
+            return new QueueOperation(INSERT, position, 0, songIds);
+        }
+
+        @NonNull
+        public static QueueOperation remove(final int position) {
+            return new QueueOperation(REMOVE, position, 0, null);
+        }
+
+        @NonNull
+        public static QueueOperation move(final int from, final int to) {
+            return new QueueOperation(MOVE, from, to, null);
+        }
+
+        @NonNull
+        public static QueueOperation shuffle(final int current, final long seed) {
+            return new QueueOperation(SHUFFLE, current, seed, null);
+        }
+
+        @NonNull
+        public static QueueOperation restoreOriginal() {
+            return new QueueOperation(RESTORE_ORIGINAL, 0, 0, null);
+        }
+
+        @NonNull
+        public static QueueOperation clear() {
+            return new QueueOperation(CLEAR, 0, 0, null);
+        }
+    }
+
+    /**
+     * Where and how the queues were saved by earlier versions, only used for the migration.
+     */
+    private interface LegacyColumns {
+        String PLAYING_QUEUE_TABLE_NAME = "playing_queue";
+
+        String ORIGINAL_PLAYING_QUEUE_TABLE_NAME = "original_playing_queue";
+
+        String SAVED_POSITION = "POSITION";
+
+        String SAVED_POSITION_IN_TRACK = "POSITION_IN_TRACK";
     }
 }
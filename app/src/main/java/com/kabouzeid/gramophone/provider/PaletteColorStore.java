@@ -0,0 +1,214 @@
+package com.kabouzeid.gramophone.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v7.graphics.Palette;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The swatches of the palettes generated for album and artist art, keyed by the cache key of the art.
+ * <p/>
+ * A cover that was seen before gets its palette back without generating it again, and the palettes read lately
+ * are kept in memory, so a list item can show its footer color before its cover is loaded.
+ */
+public class PaletteColorStore extends SQLiteOpenHelper {
+    private static final String TAG = PaletteColorStore.class.getSimpleName();
+
+    @Nullable
+    private static PaletteColorStore sInstance = null;
+    public static final String DATABASE_NAME = "palette_colors.db";
+    private static final int VERSION = 1;
+
+    private static final int MAX_ENTRIES = 4096;
+    // the table is trimmed after this many inserts
+    private static final int TRIM_INTERVAL = 64;
+    private static final int MAX_CACHED_PALETTES = 1024;
+
+    @NonNull
+    private final LruCache<String, Palette> mPalettes = new LruCache<>(MAX_CACHED_PALETTES);
+    private int mInsertsSinceTrim;
+
+    public PaletteColorStore(final Context context) {
+        super(context, DATABASE_NAME, null, VERSION);
+
+        // warms the memory cache with the newest palettes, so the first screen already has its colors
+        final HandlerThread thread = new HandlerThread("PaletteColorStore", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        new Handler(thread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                preload();
+                thread.quit();
+            }
+        });
+    }
+
+    @Override
+    public void onCreate(@NonNull final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + PaletteColumns.NAME + " ("
+                + PaletteColumns.KEY + " TEXT PRIMARY KEY,"
+                + PaletteColumns.SWATCHES + " TEXT NOT NULL,"
+                + PaletteColumns.TIME_ADDED + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + PaletteColumns.NAME + "_" + PaletteColumns.TIME_ADDED
+                + " ON " + PaletteColumns.NAME + " (" + PaletteColumns.TIME_ADDED + ");");
+    }
+
+    @Override
+    public void onUpgrade(@NonNull final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+        // the palettes can always be generated again
+        db.execSQL("DROP TABLE IF EXISTS " + PaletteColumns.NAME);
+        onCreate(db);
+    }
+
+    @Override
+    public void onDowngrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
+        onUpgrade(db, oldVersion, newVersion);
+    }
+
+    @NonNull
+    public static synchronized PaletteColorStore getInstance(@NonNull final Context context) {
+        if (sInstance == null) {
+            sInstance = new PaletteColorStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Doesn't touch the database, so it can be called on the UI thread.
+     *
+     * @return the palette if it is in memory, null otherwise
+     */
+    @Nullable
+    public Palette peekPalette(@NonNull final String key) {
+        return mPalettes.get(key);
+    }
+
+    /**
+     * @return the stored palette or null if there is none for the key
+     */
+    @Nullable
+    public synchronized Palette getPalette(@NonNull final String key) {
+        final Palette cached = mPalettes.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final Cursor cursor = getReadableDatabase().query(PaletteColumns.NAME,
+                new String[]{PaletteColumns.SWATCHES}, PaletteColumns.KEY + "=?", new String[]{key},
+                null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            final Palette palette = decode(cursor.getString(0));
+            if (palette != null) {
+                mPalettes.put(key, palette);
+            }
+            return palette;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public synchronized void putPalette(@NonNull final String key, @NonNull final Palette palette) {
+        mPalettes.put(key, palette);
+
+        final ContentValues values = new ContentValues(3);
+        values.put(PaletteColumns.KEY, key);
+        values.put(PaletteColumns.SWATCHES, encode(palette));
+        values.put(PaletteColumns.TIME_ADDED, System.currentTimeMillis());
+        final SQLiteDatabase database = getWritableDatabase();
+        database.insertWithOnConflict(PaletteColumns.NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+        if (++mInsertsSinceTrim >= TRIM_INTERVAL) {
+            mInsertsSinceTrim = 0;
+            // keys of covers that changed are never asked for again, the oldest entries go first
+            database.delete(PaletteColumns.NAME, PaletteColumns.KEY + " NOT IN (SELECT " + PaletteColumns.KEY
+                    + " FROM " + PaletteColumns.NAME + " ORDER BY " + PaletteColumns.TIME_ADDED + " DESC LIMIT "
+                    + MAX_ENTRIES + ")", null);
+        }
+    }
+
+    private synchronized void preload() {
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().query(PaletteColumns.NAME,
+                    new String[]{PaletteColumns.KEY, PaletteColumns.SWATCHES}, null, null, null, null,
+                    PaletteColumns.TIME_ADDED + " DESC", String.valueOf(MAX_CACHED_PALETTES));
+            // oldest first, so the newest end up as the most recently used
+            if (cursor.moveToLast()) {
+                do {
+                    final String key = cursor.getString(0);
+                    if (mPalettes.get(key) == null) {
+                        final Palette palette = decode(cursor.getString(1));
+                        if (palette != null) {
+                            mPalettes.put(key, palette);
+                        }
+                    }
+                } while (cursor.moveToPrevious());
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Can't preload the palettes", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Only the color and the population of the swatches are stored, the targets are resolved again from those.
+     */
+    @NonNull
+    private static String encode(@NonNull final Palette palette) {
+        final StringBuilder builder = new StringBuilder();
+        for (Palette.Swatch swatch : palette.getSwatches()) {
+            if (builder.length() > 0) {
+                builder.append(';');
+            }
+            builder.append(swatch.getRgb()).append(',').append(swatch.getPopulation());
+        }
+        return builder.toString();
+    }
+
+    @Nullable
+    private static Palette decode(@NonNull final String swatches) {
+        final List<Palette.Swatch> list = new ArrayList<>();
+        try {
+            for (String swatch : swatches.split(";")) {
+                if (swatch.isEmpty()) {
+                    continue;
+                }
+                final int separator = swatch.indexOf(',');
+                list.add(new Palette.Swatch(Integer.parseInt(swatch.substring(0, separator)),
+                        Integer.parseInt(swatch.substring(separator + 1))));
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Invalid palette " + swatches, e);
+            return null;
+        }
+        return Palette.from(list);
+    }
+
+    public interface PaletteColumns {
+        String NAME = "palettes";
+
+        String KEY = "key";
+
+        String SWATCHES = "swatches";
+
+        String TIME_ADDED = "time_added";
+    }
+}
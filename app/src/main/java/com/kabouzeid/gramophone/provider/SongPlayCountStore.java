@@ -20,98 +20,219 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.view.animation.AccelerateInterpolator;
-import android.view.animation.Interpolator;
+import android.util.Log;
+
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 
 /**
  * This database tracks the number of play counts for an individual song.  This is used to drive
  * the top played tracks as well as the playlist images
+ * <p/>
+ * Every song has a single score that decays exponentially, a play counts half as much after {@link #HALF_LIFE_MS}.
+ * The score is stored as its logarithm relative to the epoch, so plays at different times stay comparable
+ * without rewriting old rows and the top tracks are a range scan over the score index.
+ * <p/>
+ * Play counts are written behind: {@link #bumpPlayCount(long)} only appends the song id to a journal file
+ * and collects it in memory, a background thread writes the collected counts to the database in one transaction.
+ * Journals that were not written to the database yet, e.g. because the process was killed, are replayed on the next flush.
+ * A journal counts as applied once a later one is, so the counts of a flush that failed are kept pending and
+ * go with the next one.
  */
 public class SongPlayCountStore extends SQLiteOpenHelper {
+    private static final String TAG = SongPlayCountStore.class.getSimpleName();
+
     @Nullable
     private static SongPlayCountStore sInstance = null;
 
     public static final String DATABASE_NAME = "song_play_count.db";
-    private static final int VERSION = 2;
+    private static final int VERSION = 4;
 
-    // interpolator curve applied for measuring the curve
-    @NonNull
-    private static Interpolator sInterpolator = new AccelerateInterpolator(1.5f);
+    private static final String JOURNAL_FILE_PREFIX = "song_play_count.journal.";
 
-    // how many weeks worth of playback to track
-    private static final int NUM_WEEKS = 52;
+    // how long play counts may stay in memory and the journal before they are written to the db
+    private static final long FLUSH_DELAY_MILLIS = 30 * 1000;
 
-    // how high to multiply the interpolation curve
-    @SuppressWarnings("FieldCanBeLocal")
-    private static int INTERPOLATOR_HEIGHT = 50;
+    // flush right away once this many play counts are pending
+    private static final int MAX_PENDING_PLAY_COUNTS = 32;
 
-    // how high the base value is. The ratio of the Height to Base is what really matters
-    @SuppressWarnings("FieldCanBeLocal")
-    private static int INTERPOLATOR_BASE = 25;
+    private static final int FLUSH = 0;
+
+    // a play counts half as much after this time
+    private static final long HALF_LIFE_MS = 1000L * 60 * 60 * 24 * 7 * 6;
+
+    // how fast the log score of a play decays per ms
+    private static final double DECAY_PER_MS = Math.log(2) / HALF_LIFE_MS;
+
+    // songs whose plays decayed below this are not top tracks anymore
+    private static final double MIN_SCORE = 1d / 64;
 
     @SuppressWarnings("FieldCanBeLocal")
-    private static int ONE_WEEK_IN_MS = 1000 * 60 * 60 * 24 * 7;
+    private static long ONE_WEEK_IN_MS = 1000L * 60 * 60 * 24 * 7;
 
     @NonNull
     private static String WHERE_ID_EQUALS = SongPlayCountColumns.ID + "=?";
 
-    // number of weeks since epoch time
-    private int mNumberOfWeeksSinceEpoch;
+    // used to track if we've deleted the entries that decayed below MIN_SCORE
+    private boolean mDecayedEntriesDeleted;
 
-    // used to track if we've walked through the db and updated all the rows
-    private boolean mDatabaseUpdated;
+    @NonNull
+    private final File mJournalDir;
+
+    @NonNull
+    private final FlushHandler mFlushHandler;
+
+    // guards the pending play counts and the journal they are appended to
+    private final Object mPendingLock = new Object();
+
+    // held while play counts are written to the db
+    private final Object mWriteLock = new Object();
+
+    @NonNull
+    private LongIntHashMap mPendingPlayCounts = new LongIntHashMap();
+
+    private int mPendingPlayCountTotal;
+
+    // sequence number of the journal new play counts are appended to
+    private long mJournalSequence;
+
+    // the journals before this one were written by earlier processes
+    private final long mFirstJournalSequence;
+
+    @Nullable
+    private FileOutputStream mJournal;
+
+    // whether the journals of earlier processes were written to the db
+    private boolean mJournalsReplayed;
 
     public SongPlayCountStore(final Context context) {
         super(context, DATABASE_NAME, null, VERSION);
 
-        long msSinceEpoch = System.currentTimeMillis();
-        mNumberOfWeeksSinceEpoch = (int) (msSinceEpoch / ONE_WEEK_IN_MS);
+        mDecayedEntriesDeleted = false;
+
+        mJournalDir = context.getFilesDir();
+        long[] sequences = getJournalSequences();
+        // the journals are all gone after a clean flush, the sequence must still continue after the applied one or
+        // the journals of this process would count as applied already
+        long appliedSequence = -1;
+        try {
+            appliedSequence = getAppliedJournalSequence(getReadableDatabase());
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Could not read the applied play count journal", e);
+        }
+        mJournalSequence = Math.max(appliedSequence + 1, sequences.length == 0 ? 0 : sequences[sequences.length - 1] + 1);
+        mFirstJournalSequence = mJournalSequence;
 
-        mDatabaseUpdated = false;
+        HandlerThread thread = new HandlerThread("SongPlayCountStore", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mFlushHandler = new FlushHandler(this, thread.getLooper());
     }
 
     @Override
     public void onCreate(@NonNull final SQLiteDatabase db) {
-        // create the play count table
-        // WARNING: If you change the order of these columns
-        // please update getColumnIndexForWeek
-        StringBuilder builder = new StringBuilder();
-        builder.append("CREATE TABLE IF NOT EXISTS ");
-        builder.append(SongPlayCountColumns.NAME);
-        builder.append("(");
-        builder.append(SongPlayCountColumns.ID);
-        builder.append(" INT UNIQUE,");
-
-        for (int i = 0; i < NUM_WEEKS; i++) {
-            builder.append(getColumnNameForWeek(i));
-            builder.append(" INT DEFAULT 0,");
-        }
-
-        builder.append(SongPlayCountColumns.LAST_UPDATED_WEEK_INDEX);
-        builder.append(" INT NOT NULL,");
+        createScoreTable(db);
+        createJournalStateTable(db);
+    }
 
-        builder.append(SongPlayCountColumns.PLAY_COUNT_SCORE);
-        builder.append(" REAL DEFAULT 0);");
+    private void createScoreTable(@NonNull final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + SongPlayCountColumns.NAME + "("
+                + SongPlayCountColumns.ID + " INTEGER PRIMARY KEY,"
+                + SongPlayCountColumns.SCORE + " REAL NOT NULL,"
+                + SongPlayCountColumns.LAST_UPDATED + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + SongPlayCountColumns.SCORE_INDEX + " ON "
+                + SongPlayCountColumns.NAME + "(" + SongPlayCountColumns.SCORE + ");");
+    }
 
-        db.execSQL(builder.toString());
+    private void createJournalStateTable(@NonNull final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + JournalStateColumns.NAME + "("
+                + JournalStateColumns.APPLIED_SEQUENCE + " INT NOT NULL);");
     }
 
     @Override
     public void onUpgrade(@NonNull final SQLiteDatabase db, final int oldVersion, final int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + SongPlayCountColumns.NAME);
-        onCreate(db);
+        if (oldVersion < 2) {
+            db.execSQL("DROP TABLE IF EXISTS " + WeeklyPlayCountColumns.NAME);
+            onCreate(db);
+            return;
+        }
+        if (oldVersion < 3) {
+            // keep the play counts, only the journal bookkeeping is new
+            createJournalStateTable(db);
+        }
+        if (oldVersion < 4) {
+            createScoreTable(db);
+            migrateWeeklyPlayCounts(db);
+            db.execSQL("DROP TABLE IF EXISTS " + WeeklyPlayCountColumns.NAME);
+        }
     }
 
     @Override
     public void onDowngrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
         // If we ever have downgrade, drop the table to be safe
         db.execSQL("DROP TABLE IF EXISTS " + SongPlayCountColumns.NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + WeeklyPlayCountColumns.NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + JournalStateColumns.NAME);
         onCreate(db);
     }
 
+    /**
+     * Turns the play counts of the last 52 weeks into decayed scores, every play counts as if it
+     * happened at the start of its week.
+     */
+    private static void migrateWeeklyPlayCounts(@NonNull final SQLiteDatabase db) {
+        final Cursor cursor = db.query(WeeklyPlayCountColumns.NAME, null, null, null, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            final int idColumn = cursor.getColumnIndex(WeeklyPlayCountColumns.ID);
+            final int weekIndexColumn = cursor.getColumnIndex(WeeklyPlayCountColumns.LAST_UPDATED_WEEK_INDEX);
+            final int[] weekColumns = new int[WeeklyPlayCountColumns.NUM_WEEKS];
+            for (int i = 0; i < weekColumns.length; i++) {
+                weekColumns[i] = cursor.getColumnIndex(WeeklyPlayCountColumns.WEEK_PLAY_COUNT + i);
+            }
+
+            final ContentValues values = new ContentValues(3);
+            while (cursor.moveToNext()) {
+                final long weekStart = cursor.getLong(weekIndexColumn) * ONE_WEEK_IN_MS;
+                double logScore = Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < weekColumns.length; i++) {
+                    final int playCount = weekColumns[i] == -1 ? 0 : cursor.getInt(weekColumns[i]);
+                    if (playCount > 0) {
+                        logScore = logAdd(logScore, getLogScore(playCount, weekStart - i * ONE_WEEK_IN_MS));
+                    }
+                }
+                if (logScore == Double.NEGATIVE_INFINITY) {
+                    continue;
+                }
+
+                values.put(SongPlayCountColumns.ID, cursor.getLong(idColumn));
+                values.put(SongPlayCountColumns.SCORE, logScore);
+                values.put(SongPlayCountColumns.LAST_UPDATED, weekStart);
+                db.insertWithOnConflict(SongPlayCountColumns.NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * @param context The {@link Context} to use
      * @return A new instance of this class.
@@ -125,7 +246,8 @@ public class SongPlayCountStore extends SQLiteOpenHelper {
     }
 
     /**
-     * Increases the play count of a song by 1
+     * Increases the play count of a song by 1. Doesn't touch the database, the play count is
+     * journaled and written to the database later on a background thread.
      *
      * @param songId The song id to increase the play count
      */
@@ -134,199 +256,323 @@ public class SongPlayCountStore extends SQLiteOpenHelper {
             return;
         }
 
-        final SQLiteDatabase database = getWritableDatabase();
-        updateExistingRow(database, songId, true);
+        synchronized (mPendingLock) {
+            mPendingPlayCounts.put(songId, mPendingPlayCounts.get(songId, 0) + 1);
+            mPendingPlayCountTotal++;
+            appendToJournal(songId);
+
+            if (mPendingPlayCountTotal >= MAX_PENDING_PLAY_COUNTS) {
+                mFlushHandler.removeMessages(FLUSH);
+                mFlushHandler.sendEmptyMessage(FLUSH);
+            } else if (!mFlushHandler.hasMessages(FLUSH)) {
+                mFlushHandler.sendEmptyMessageDelayed(FLUSH, FLUSH_DELAY_MILLIS);
+            }
+        }
     }
 
     /**
-     * This creates a new entry that indicates a song has been played once as well as its score
-     *
-     * @param database a write able database
-     * @param songId   the id of the track
+     * Writes the pending play counts to the database on the background thread as soon as possible,
+     * e.g. because the service is shutting down.
      */
-    private void createNewPlayedEntry(@NonNull final SQLiteDatabase database, final long songId) {
-        // no row exists, create a new one
-        float newScore = getScoreMultiplierForWeek(0);
-        int newPlayCount = 1;
+    public void requestFlush() {
+        mFlushHandler.removeMessages(FLUSH);
+        mFlushHandler.sendEmptyMessage(FLUSH);
+    }
 
-        final ContentValues values = new ContentValues(3);
-        values.put(SongPlayCountColumns.ID, songId);
-        values.put(SongPlayCountColumns.PLAY_COUNT_SCORE, newScore);
-        values.put(SongPlayCountColumns.LAST_UPDATED_WEEK_INDEX, mNumberOfWeeksSinceEpoch);
-        values.put(getColumnNameForWeek(0), newPlayCount);
+    /**
+     * Writes the pending play counts and the journals of earlier processes to the database.
+     * Blocks until they are written.
+     */
+    public void flush() {
+        synchronized (mWriteLock) {
+            try {
+                replayJournals();
+
+                final LongIntHashMap playCounts;
+                final long sequence;
+                synchronized (mPendingLock) {
+                    if (mPendingPlayCountTotal == 0) {
+                        return;
+                    }
+                    playCounts = mPendingPlayCounts;
+                    sequence = mJournalSequence;
+                    mPendingPlayCounts = new LongIntHashMap();
+                    mPendingPlayCountTotal = 0;
+                    // new play counts go to a new journal, this one is deleted once it is in the db
+                    closeJournal();
+                    mJournalSequence++;
+                }
 
-        database.insert(SongPlayCountColumns.NAME, null, values);
+                try {
+                    applyPlayCounts(playCounts, sequence);
+                } catch (SQLiteException e) {
+                    // written with the next flush, which marks this journal as applied as well. Until then it
+                    // stays on disk and is replayed by the next process if this one dies first.
+                    restorePlayCounts(playCounts);
+                    throw e;
+                }
+                deleteJournals(mFirstJournalSequence, sequence);
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Could not write the play counts", e);
+            }
+        }
+    }
+
+    private void restorePlayCounts(@NonNull final LongIntHashMap playCounts) {
+        synchronized (mPendingLock) {
+            for (long songId : playCounts.keys()) {
+                final int playCount = playCounts.get(songId, 0);
+                mPendingPlayCounts.put(songId, mPendingPlayCounts.get(songId, 0) + playCount);
+                mPendingPlayCountTotal += playCount;
+            }
+            if (!mFlushHandler.hasMessages(FLUSH)) {
+                mFlushHandler.sendEmptyMessageDelayed(FLUSH, FLUSH_DELAY_MILLIS);
+            }
+        }
     }
 
     /**
-     * This function will take a song entry and update it to the latest week and increase the count
-     * for the current week by 1 if necessary
-     *
-     * @param database  a writeable database
-     * @param id        the id of the track to bump
-     * @param bumpCount whether to bump the current's week play count by 1 and adjust the score
+     * Writes the journals that earlier processes did not write to the database anymore. Tried again with the
+     * next flush if it fails, the play counts of this process are only written after these.
+     */
+    private void replayJournals() {
+        if (mJournalsReplayed) {
+            return;
+        }
+
+        final long appliedSequence = getAppliedJournalSequence(getReadableDatabase());
+
+        LongIntHashMap playCounts = new LongIntHashMap();
+        long lastSequence = -1;
+        for (long sequence : getJournalSequences()) {
+            // the journals of this process are still pending in memory
+            if (sequence >= mFirstJournalSequence) {
+                break;
+            }
+            // a journal that is already in the db but wasn't deleted before the process died
+            if (sequence > appliedSequence) {
+                readJournal(getJournalFile(sequence), playCounts);
+                lastSequence = sequence;
+            }
+        }
+
+        if (lastSequence != -1) {
+            applyPlayCounts(playCounts, lastSequence);
+        }
+        mJournalsReplayed = true;
+        deleteJournals(Long.MIN_VALUE, mFirstJournalSequence - 1);
+    }
+
+    /**
+     * Deletes the journals from the first to the last sequence, both inclusive.
      */
-    private void updateExistingRow(@NonNull final SQLiteDatabase database, final long id, boolean bumpCount) {
-        String stringId = String.valueOf(id);
+    private void deleteJournals(final long firstSequence, final long lastSequence) {
+        for (long sequence : getJournalSequences()) {
+            if (sequence >= firstSequence && sequence <= lastSequence) {
+                //noinspection ResultOfMethodCallIgnored
+                getJournalFile(sequence).delete();
+            }
+        }
+    }
 
-        // begin the transaction
+    /**
+     * Adds the play counts to the db and marks all journals up to the sequence as applied, in one transaction.
+     */
+    private void applyPlayCounts(@NonNull final LongIntHashMap playCounts, final long sequence) {
+        final SQLiteDatabase database = getWritableDatabase();
+        final long now = System.currentTimeMillis();
         database.beginTransaction();
+        try {
+            for (long songId : playCounts.keys()) {
+                addPlays(database, songId, playCounts.get(songId, 0), now);
+            }
 
-        // get the cursor of this content inside the transaction
-        final Cursor cursor = database.query(SongPlayCountColumns.NAME, null, WHERE_ID_EQUALS,
-                new String[]{stringId}, null, null, null);
-
-        // if we have a result
-        if (cursor != null && cursor.moveToFirst()) {
-            // figure how many weeks since we last updated
-            int lastUpdatedIndex = cursor.getColumnIndex(SongPlayCountColumns.LAST_UPDATED_WEEK_INDEX);
-            int lastUpdatedWeek = cursor.getInt(lastUpdatedIndex);
-            int weekDiff = mNumberOfWeeksSinceEpoch - lastUpdatedWeek;
-
-            // if it's more than the number of weeks we track, delete it and create a new entry
-            if (Math.abs(weekDiff) >= NUM_WEEKS) {
-                // this entry needs to be dropped since it is too outdated
-                deleteEntry(database, stringId);
-                if (bumpCount) {
-                    createNewPlayedEntry(database, id);
-                }
-            } else if (weekDiff != 0) {
-                // else, shift the weeks
-                int[] playCounts = new int[NUM_WEEKS];
-
-                if (weekDiff > 0) {
-                    // time is shifted forwards
-                    for (int i = 0; i < NUM_WEEKS - weekDiff; i++) {
-                        playCounts[i + weekDiff] = cursor.getInt(getColumnIndexForWeek(i));
-                    }
-                } else if (weekDiff < 0) {
-                    // time is shifted backwards (by user) - nor typical behavior but we
-                    // will still handle it
-
-                    // since weekDiff is -ve, NUM_WEEKS + weekDiff is the real # of weeks we have to
-                    // transfer.  Then we transfer the old week i - weekDiff to week i
-                    // for example if the user shifted back 2 weeks, ie -2, then for 0 to
-                    // NUM_WEEKS + (-2) we set the new week i = old week i - (-2) or i+2
-                    for (int i = 0; i < NUM_WEEKS + weekDiff; i++) {
-                        playCounts[i] = cursor.getInt(getColumnIndexForWeek(i - weekDiff));
-                    }
-                }
+            database.delete(JournalStateColumns.NAME, null, null);
+            final ContentValues values = new ContentValues(1);
+            values.put(JournalStateColumns.APPLIED_SEQUENCE, sequence);
+            database.insert(JournalStateColumns.NAME, null, values);
 
-                // bump the count
-                if (bumpCount) {
-                    playCounts[0]++;
-                }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
 
-                float score = calculateScore(playCounts);
+    private static long getAppliedJournalSequence(@NonNull final SQLiteDatabase database) {
+        final Cursor cursor = database.query(JournalStateColumns.NAME,
+                new String[]{JournalStateColumns.APPLIED_SEQUENCE}, null, null, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
 
-                // if the score is non-existant, then delete it
-                if (score < .01f) {
-                    deleteEntry(database, stringId);
-                } else {
-                    // create the content values
-                    ContentValues values = new ContentValues(NUM_WEEKS + 2);
-                    values.put(SongPlayCountColumns.LAST_UPDATED_WEEK_INDEX, mNumberOfWeeksSinceEpoch);
-                    values.put(SongPlayCountColumns.PLAY_COUNT_SCORE, score);
+    private void appendToJournal(final long songId) {
+        try {
+            if (mJournal == null) {
+                mJournal = new FileOutputStream(getJournalFile(mJournalSequence), true);
+            }
+            final byte[] record = new byte[8];
+            for (int i = 0; i < record.length; i++) {
+                record[i] = (byte) (songId >>> (56 - 8 * i));
+            }
+            // a single unbuffered write, so a killed process never leaves a torn record behind
+            mJournal.write(record);
+        } catch (IOException e) {
+            // the play count is still pending in memory, it is only lost if the process dies before the next flush
+            Log.w(TAG, "Could not journal the play count", e);
+        }
+    }
 
-                    for (int i = 0; i < NUM_WEEKS; i++) {
-                        values.put(getColumnNameForWeek(i), playCounts[i]);
-                    }
+    private void closeJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException ignored) {
+            }
+            mJournal = null;
+        }
+    }
 
-                    // update the entry
-                    database.update(SongPlayCountColumns.NAME, values, WHERE_ID_EQUALS,
-                            new String[]{stringId});
+    private static void readJournal(@NonNull final File file, @NonNull final LongIntHashMap playCounts) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                final long songId = in.readLong();
+                playCounts.put(songId, playCounts.get(songId, 0) + 1);
+            }
+        } catch (EOFException ignored) {
+            // end of the journal
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the play count journal " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
                 }
-            } else if (bumpCount) {
-                // else no shifting, just update the scores
-                ContentValues values = new ContentValues(2);
-
-                // increase the score by a single score amount
-                int scoreIndex = cursor.getColumnIndex(SongPlayCountColumns.PLAY_COUNT_SCORE);
-                float score = cursor.getFloat(scoreIndex) + getScoreMultiplierForWeek(0);
-                values.put(SongPlayCountColumns.PLAY_COUNT_SCORE, score);
+            }
+        }
+    }
 
-                // increase the play count by 1
-                values.put(getColumnNameForWeek(0), cursor.getInt(getColumnIndexForWeek(0)) + 1);
+    @NonNull
+    private File getJournalFile(final long sequence) {
+        return new File(mJournalDir, JOURNAL_FILE_PREFIX + sequence);
+    }
 
-                // update the entry
-                database.update(SongPlayCountColumns.NAME, values, WHERE_ID_EQUALS,
-                        new String[]{stringId});
+    /**
+     * @return the sequence numbers of all journals on disk in ascending order
+     */
+    @NonNull
+    private long[] getJournalSequences() {
+        final String[] names = mJournalDir.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] sequences = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(JOURNAL_FILE_PREFIX)) {
+                try {
+                    final long sequence = Long.parseLong(name.substring(JOURNAL_FILE_PREFIX.length()));
+                    sequences[count++] = sequence;
+                } catch (NumberFormatException ignored) {
+                }
             }
+        }
+        sequences = Arrays.copyOf(sequences, count);
+        Arrays.sort(sequences);
+        return sequences;
+    }
 
-            cursor.close();
-        } else if (bumpCount) {
-            // if we have no existing results, create a new one
-            createNewPlayedEntry(database, id);
+    /**
+     * Adds plays to the score of a song, this only reads and writes the song's own row.
+     *
+     * @param database  a writeable database
+     * @param songId    the id of the track
+     * @param playCount how often the track was played
+     * @param time      when the track was played
+     */
+    private void addPlays(@NonNull final SQLiteDatabase database, final long songId, final int playCount, final long time) {
+        final String stringId = String.valueOf(songId);
+        double logScore = getLogScore(playCount, time);
+
+        final Cursor cursor = database.query(SongPlayCountColumns.NAME, new String[]{SongPlayCountColumns.SCORE},
+                WHERE_ID_EQUALS, new String[]{stringId}, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    logScore = logAdd(logScore, cursor.getDouble(0));
+                }
+            } finally {
+                cursor.close();
+            }
         }
 
-        database.setTransactionSuccessful();
-        database.endTransaction();
+        final ContentValues values = new ContentValues(3);
+        values.put(SongPlayCountColumns.ID, songId);
+        values.put(SongPlayCountColumns.SCORE, logScore);
+        values.put(SongPlayCountColumns.LAST_UPDATED, time);
+        database.insertWithOnConflict(SongPlayCountColumns.NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
     }
 
     public void clear() {
-        final SQLiteDatabase database = getWritableDatabase();
-        database.delete(SongPlayCountColumns.NAME, null, null);
+        synchronized (mWriteLock) {
+            // play counts that are still pending would otherwise come back with the next flush
+            flush();
+            final SQLiteDatabase database = getWritableDatabase();
+            database.delete(SongPlayCountColumns.NAME, null, null);
+        }
     }
 
     /**
-     * Gets a cursor containing the top songs played.  Note this only returns songs that have been
-     * played at least once in the past NUM_WEEKS
+     * Gets a cursor containing the top songs played.  Note this only returns songs whose plays
+     * didn't decay below {@link #MIN_SCORE} yet
      *
      * @param numResults number of results to limit by.  If <= 0 it returns all results
      * @return the top tracks
      */
     public Cursor getTopPlayedResults(int numResults) {
-        updateResults();
+        flush();
+
+        // the decay is applied here instead of to the rows, a score is only relevant compared to now
+        final String minLogScore = String.valueOf(getLogScore(MIN_SCORE, System.currentTimeMillis()));
+        deleteDecayedEntries(minLogScore);
 
         final SQLiteDatabase database = getReadableDatabase();
         return database.query(SongPlayCountColumns.NAME, new String[]{SongPlayCountColumns.ID},
-                null, null, null, null, SongPlayCountColumns.PLAY_COUNT_SCORE + " DESC",
+                SongPlayCountColumns.SCORE + ">=?", new String[]{minLogScore}, null, null,
+                SongPlayCountColumns.SCORE + " DESC",
                 (numResults <= 0 ? null : String.valueOf(numResults)));
     }
 
     /**
-     * This updates all the results for the getTopPlayedResults so that we can get an
-     * accurate list of the top played results
+     * Deletes the songs that are not top tracks anymore, once per process. Only touches the rows
+     * that are deleted, found through the score index.
      */
-    private synchronized void updateResults() {
-        if (mDatabaseUpdated) {
-            return;
-        }
-
-        final SQLiteDatabase database = getWritableDatabase();
-
-        database.beginTransaction();
-
-        int oldestWeekWeCareAbout = mNumberOfWeeksSinceEpoch - NUM_WEEKS + 1;
-        // delete rows we don't care about anymore
-        database.delete(SongPlayCountColumns.NAME, SongPlayCountColumns.LAST_UPDATED_WEEK_INDEX
-                + " < " + oldestWeekWeCareAbout, null);
-
-        // get the remaining rows
-        Cursor cursor = database.query(SongPlayCountColumns.NAME,
-                new String[]{SongPlayCountColumns.ID},
-                null, null, null, null, null);
-
-        if (cursor != null && cursor.moveToFirst()) {
-            // for each row, update it
-            do {
-                updateExistingRow(database, cursor.getLong(0), false);
-            } while (cursor.moveToNext());
-
-            cursor.close();
+    private void deleteDecayedEntries(@NonNull final String minLogScore) {
+        synchronized (mWriteLock) {
+            if (mDecayedEntriesDeleted) {
+                return;
+            }
+            final SQLiteDatabase database = getWritableDatabase();
+            database.delete(SongPlayCountColumns.NAME, SongPlayCountColumns.SCORE + "<?", new String[]{minLogScore});
+            mDecayedEntriesDeleted = true;
         }
-
-        mDatabaseUpdated = true;
-        database.setTransactionSuccessful();
-        database.endTransaction();
     }
 
     /**
      * @param songId The song Id to remove.
      */
     public void removeItem(final long songId) {
-        final SQLiteDatabase database = getWritableDatabase();
-        deleteEntry(database, String.valueOf(songId));
+        synchronized (mWriteLock) {
+            flush();
+            final SQLiteDatabase database = getWritableDatabase();
+            deleteEntry(database, String.valueOf(songId));
+        }
     }
 
     /**
@@ -340,61 +586,72 @@ public class SongPlayCountStore extends SQLiteOpenHelper {
     }
 
     /**
-     * Calculates the score of the song given the play counts
-     *
-     * @param playCounts an array of the # of times a song has been played for each week
-     *                   where playCounts[N] is the # of times it was played N weeks ago
-     * @return the score
+     * @param score the weight of the plays at the given time
+     * @param time  when the plays happened
+     * @return the natural logarithm of the plays' weight relative to the epoch
      */
-    private static float calculateScore(@Nullable final int[] playCounts) {
-        if (playCounts == null) {
-            return 0;
-        }
-
-        float score = 0;
-        for (int i = 0; i < Math.min(playCounts.length, NUM_WEEKS); i++) {
-            score += playCounts[i] * getScoreMultiplierForWeek(i);
-        }
-
-        return score;
+    private static double getLogScore(final double score, final long time) {
+        return Math.log(score) + time * DECAY_PER_MS;
     }
 
     /**
-     * Gets the column name for each week #
-     *
-     * @param week number
-     * @return the column name
+     * @return log(e^a + e^b) without leaving the log space
      */
-    @NonNull
-    private static String getColumnNameForWeek(final int week) {
-        return SongPlayCountColumns.WEEK_PLAY_COUNT + String.valueOf(week);
+    private static double logAdd(final double a, final double b) {
+        if (a == Double.NEGATIVE_INFINITY) return b;
+        if (b == Double.NEGATIVE_INFINITY) return a;
+        final double max = Math.max(a, b);
+        return max + Math.log1p(Math.exp(Math.min(a, b) - max));
     }
 
-    /**
-     * Gets the score multiplier for each week
-     *
-     * @param week number
-     * @return the multiplier to apply
-     */
-    private static float getScoreMultiplierForWeek(final int week) {
-        return sInterpolator.getInterpolation(1 - (week / (float) NUM_WEEKS)) * INTERPOLATOR_HEIGHT
-                + INTERPOLATOR_BASE;
+    private static final class FlushHandler extends Handler {
+        @NonNull
+        private final WeakReference<SongPlayCountStore> mStore;
+
+        public FlushHandler(final SongPlayCountStore store, @NonNull final Looper looper) {
+            super(looper);
+            mStore = new WeakReference<>(store);
+        }
+
+        @Override
+        public void handleMessage(@NonNull Message msg) {
+            final SongPlayCountStore store = mStore.get();
+            if (store == null) {
+                return;
+            }
+            switch (msg.what) {
+                case FLUSH:
+                    store.flush();
+                    break;
+            }
+        }
     }
 
-    /**
-     * For some performance gain, return a static value for the column index for a week
-     * WARNING: This function assumes you have selected all columns for it to work
-     *
-     * @param week number
-     * @return column index of that week
-     */
-    private static int getColumnIndexForWeek(final int week) {
-        // ID, followed by the weeks columns
-        return 1 + week;
+    public interface JournalStateColumns {
+
+        String NAME = "journal_state";
+
+        String APPLIED_SEQUENCE = "applied_sequence";
     }
 
     public interface SongPlayCountColumns {
 
+        String NAME = "song_play_score";
+
+        String ID = "song_id";
+
+        String SCORE = "score";
+
+        String LAST_UPDATED = "last_update_ts";
+
+        String SCORE_INDEX = "song_play_score_score_index";
+    }
+
+    /**
+     * The table with 52 weekly play counts per song of version 3 and earlier, only used for the migration.
+     */
+    private interface WeeklyPlayCountColumns {
+
         String NAME = "song_play_count";
 
         String ID = "song_id";
@@ -403,6 +660,6 @@ public class SongPlayCountStore extends SQLiteOpenHelper {
 
         String LAST_UPDATED_WEEK_INDEX = "week_index";
 
-        String PLAY_COUNT_SCORE = "play_count_score";
+        int NUM_WEEKS = 52;
     }
 }
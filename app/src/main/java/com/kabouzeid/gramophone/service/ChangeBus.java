@@ -0,0 +1,144 @@
+package com.kabouzeid.gramophone.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the change events of the {@link MusicService} before they reach the widgets, the notification,
+ * the media session and the activities.
+ * <p/>
+ * The first event starts a window, all events emitted until it ends are merged and every subscriber gets them
+ * in one call on the main thread, each change once and in the order they first occurred. A change emitted with
+ * {@link #emitNow(String)} ends its window early.
+ */
+public class ChangeBus {
+    private static final long WINDOW_MILLIS = 100;
+
+    public interface Subscriber {
+        /**
+         * @param changes the changes of the window, read only
+         */
+        void onChanges(@NonNull Set<String> changes);
+    }
+
+    @NonNull
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    @NonNull
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    // guarded by this
+    @NonNull
+    private LinkedHashSet<String> pending = new LinkedHashSet<>();
+    private boolean flushScheduled;
+
+    private final AtomicLong emittedCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong windowCount = new AtomicLong();
+
+    @NonNull
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public void subscribe(@NonNull Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void unsubscribe(@NonNull Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Can be called from any thread.
+     */
+    public void emit(@NonNull String what) {
+        emittedCount.incrementAndGet();
+        synchronized (this) {
+            pending.add(what);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        handler.postDelayed(flushRunnable, WINDOW_MILLIS);
+    }
+
+    /**
+     * Ends the current window early, the change is delivered with the pending ones on the next turn of the main thread.
+     * Can be called from any thread.
+     */
+    public void emitNow(@NonNull String what) {
+        emittedCount.incrementAndGet();
+        synchronized (this) {
+            pending.add(what);
+            handler.removeCallbacks(flushRunnable);
+            flushScheduled = true;
+        }
+        handler.post(flushRunnable);
+    }
+
+    /**
+     * Delivers the pending changes right away on the calling thread.
+     */
+    public void flush() {
+        final Set<String> changes;
+        synchronized (this) {
+            handler.removeCallbacks(flushRunnable);
+            flushScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            changes = Collections.unmodifiableSet(pending);
+            pending = new LinkedHashSet<>();
+        }
+        windowCount.incrementAndGet();
+        for (Subscriber subscriber : subscribers) {
+            subscriber.onChanges(changes);
+            deliveredCount.addAndGet(changes.size());
+        }
+    }
+
+    /**
+     * Drops the pending changes and all subscribers.
+     */
+    public void release() {
+        synchronized (this) {
+            handler.removeCallbacks(flushRunnable);
+            flushScheduled = false;
+            pending.clear();
+        }
+        subscribers.clear();
+    }
+
+    /**
+     * @return the number of changes emitted so far
+     */
+    public long getEmittedCount() {
+        return emittedCount.get();
+    }
+
+    /**
+     * @return the number of changes handed to subscribers so far, counted once per subscriber
+     */
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    /**
+     * @return the number of windows that were delivered
+     */
+    public long getWindowCount() {
+        return windowCount.get();
+    }
+}
@@ -19,17 +19,29 @@ import org.omnirom.gramophone.R;
 /**
  * @author Andrew Neal, Karim Abou Zeid (kabouzeid)
  */
-public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener {
+public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener, MediaPlayer.OnPreparedListener {
     public static final String TAG = MultiPlayer.class.getSimpleName();
 
+    private static final int STATE_IDLE = 0;
+    // prepared asynchronously, starting and seeking is deferred until it is done
+    private static final int STATE_PREPARING = 1;
+    private static final int STATE_PREPARED = 2;
+
     private MediaPlayer mCurrentMediaPlayer = new MediaPlayer();
+    // created and released on the playback thread, handed over on the main thread, guarded by mStateLock
     private MediaPlayer mNextMediaPlayer;
+    private boolean mNextMediaPlayerPrepared;
 
     private Context context;
     @Nullable
     private Playback.PlaybackCallbacks callbacks;
 
-    private boolean mIsInitialized = false;
+    // the callbacks of the media players run on the main thread, the calls on the playback thread. Deferring a
+    // start or seek and running the deferred ones once prepared happen under this lock, so none gets lost.
+    private final Object mStateLock = new Object();
+    private volatile int mState = STATE_IDLE;
+    private volatile boolean mStartWhenPrepared;
+    private volatile int mSeekWhenPrepared = -1;
 
     /**
      * Constructor of <code>MultiPlayer</code>
@@ -47,20 +59,64 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public boolean setDataSource(final String path) {
-        mIsInitialized = false;
-        mIsInitialized = setDataSourceImpl(mCurrentMediaPlayer, path);
-        if (mIsInitialized) {
-            setNextDataSource(null);
+        synchronized (mStateLock) {
+            mState = STATE_IDLE;
+            clearDeferredActions();
+        }
+        if (!setDataSourceImpl(mCurrentMediaPlayer, path)) {
+            return false;
+        }
+        try {
+            mCurrentMediaPlayer.prepare();
+        } catch (Exception e) {
+            return false;
         }
-        return mIsInitialized;
+        synchronized (mStateLock) {
+            mState = STATE_PREPARED;
+        }
+        openAudioEffectSession();
+        setNextDataSource(null);
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean setDataSourceAsync(final String path) {
+        // onPrepared() must not see the new data source before the state that goes with it
+        synchronized (mStateLock) {
+            mState = STATE_IDLE;
+            clearDeferredActions();
+            // resetting the player cancels a prepare that is still running
+            if (!setDataSourceImpl(mCurrentMediaPlayer, path)) {
+                return false;
+            }
+            // the next player was chosen for the previous track
+            releaseNextMediaPlayer();
+            mCurrentMediaPlayer.setOnPreparedListener(this);
+            mState = STATE_PREPARING;
+            try {
+                mCurrentMediaPlayer.prepareAsync();
+            } catch (IllegalStateException e) {
+                mState = STATE_IDLE;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public boolean isPreparing() {
+        return mState == STATE_PREPARING;
     }
 
     /**
      * @param player The {@link MediaPlayer} to use
      * @param path   The path of the file, or the http/rtsp URL of the stream
      *               you want to play
-     * @return True if the <code>player</code> has been prepared and is
-     * ready to play, false otherwise
+     * @return True if the data source of the <code>player</code> has been set
+     * and it can be prepared, false otherwise
      */
     private boolean setDataSourceImpl(final MediaPlayer player, final String path) {
         if (context == null) {
@@ -75,22 +131,25 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
                 player.setDataSource(path);
             }
             player.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            player.prepare();
         } catch (Exception e) {
             return false;
         }
         player.setOnCompletionListener(this);
         player.setOnErrorListener(this);
+        return true;
+    }
+
+    private void openAudioEffectSession() {
         final Intent intent = new Intent(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION);
         intent.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, getAudioSessionId());
         intent.putExtra(AudioEffect.EXTRA_PACKAGE_NAME, context.getPackageName());
         intent.putExtra(AudioEffect.EXTRA_CONTENT_TYPE, AudioEffect.CONTENT_TYPE_MUSIC);
         context.sendBroadcast(intent);
-        return true;
     }
 
     /**
      * Set the MediaPlayer to start when this MediaPlayer finishes playback.
+     * The next MediaPlayer is prepared asynchronously and only set once it is prepared.
      *
      * @param path The path of the file, or the http/rtsp URL of the stream
      *             you want to play
@@ -100,44 +159,57 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
         if (context == null) {
             return;
         }
-        try {
-            mCurrentMediaPlayer.setNextMediaPlayer(null);
-        } catch (IllegalArgumentException e) {
-            Log.i(TAG, "Next media player is current one, continuing");
-        } catch (IllegalStateException e) {
-            Log.e(TAG, "Media player not initialized!");
-            return;
-        }
-        if (mNextMediaPlayer != null) {
-            mNextMediaPlayer.release();
-            mNextMediaPlayer = null;
+        synchronized (mStateLock) {
+            try {
+                mCurrentMediaPlayer.setNextMediaPlayer(null);
+            } catch (IllegalArgumentException e) {
+                Log.i(TAG, "Next media player is current one, continuing");
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Media player not initialized!");
+                return;
+            }
+            releaseNextMediaPlayer();
         }
         if (path == null) {
             return;
         }
         if (PreferenceUtil.getInstance(context).gaplessPlayback()) {
-            mNextMediaPlayer = new MediaPlayer();
-            mNextMediaPlayer.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
-            mNextMediaPlayer.setAudioSessionId(getAudioSessionId());
-            if (setDataSourceImpl(mNextMediaPlayer, path)) {
+            // setting the data source can take a while, the main thread doesn't wait for it
+            final MediaPlayer nextMediaPlayer = new MediaPlayer();
+            nextMediaPlayer.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
+            nextMediaPlayer.setAudioSessionId(getAudioSessionId());
+            if (!setDataSourceImpl(nextMediaPlayer, path)) {
+                nextMediaPlayer.release();
+                return;
+            }
+            nextMediaPlayer.setOnPreparedListener(this);
+            synchronized (mStateLock) {
+                mNextMediaPlayer = nextMediaPlayer;
                 try {
-                    mCurrentMediaPlayer.setNextMediaPlayer(mNextMediaPlayer);
-                } catch (IllegalArgumentException | IllegalStateException e) {
-                    Log.e(TAG, "setNextDataSource: setNextMediaPlayer()", e);
-                    if (mNextMediaPlayer != null) {
-                        mNextMediaPlayer.release();
-                        mNextMediaPlayer = null;
-                    }
-                }
-            } else {
-                if (mNextMediaPlayer != null) {
-                    mNextMediaPlayer.release();
-                    mNextMediaPlayer = null;
+                    mNextMediaPlayer.prepareAsync();
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "setNextDataSource: prepareAsync()", e);
+                    releaseNextMediaPlayer();
                 }
             }
         }
     }
 
+    private void releaseNextMediaPlayer() {
+        synchronized (mStateLock) {
+            if (mNextMediaPlayer != null) {
+                mNextMediaPlayer.release();
+                mNextMediaPlayer = null;
+            }
+            mNextMediaPlayerPrepared = false;
+        }
+    }
+
+    private void clearDeferredActions() {
+        mStartWhenPrepared = false;
+        mSeekWhenPrepared = -1;
+    }
+
     /**
      * Sets the callbacks
      *
@@ -153,7 +225,7 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public boolean isInitialized() {
-        return mIsInitialized;
+        return mState == STATE_PREPARED;
     }
 
     /**
@@ -161,11 +233,17 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public boolean start() {
-        try {
-            mCurrentMediaPlayer.start();
-            return true;
-        } catch (IllegalStateException e) {
-            return false;
+        synchronized (mStateLock) {
+            if (mState == STATE_PREPARING) {
+                mStartWhenPrepared = true;
+                return true;
+            }
+            try {
+                mCurrentMediaPlayer.start();
+                return true;
+            } catch (IllegalStateException e) {
+                return false;
+            }
         }
     }
 
@@ -174,8 +252,11 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public void stop() {
-        mCurrentMediaPlayer.reset();
-        mIsInitialized = false;
+        synchronized (mStateLock) {
+            mCurrentMediaPlayer.reset();
+            mState = STATE_IDLE;
+            clearDeferredActions();
+        }
     }
 
     /**
@@ -185,9 +266,7 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
     public void release() {
         stop();
         mCurrentMediaPlayer.release();
-        if (mNextMediaPlayer != null) {
-            mNextMediaPlayer.release();
-        }
+        releaseNextMediaPlayer();
     }
 
     /**
@@ -195,20 +274,31 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public boolean pause() {
-        try {
-            mCurrentMediaPlayer.pause();
-            return true;
-        } catch (IllegalStateException e) {
-            return false;
+        synchronized (mStateLock) {
+            if (mState == STATE_PREPARING) {
+                mStartWhenPrepared = false;
+                return true;
+            }
+            try {
+                mCurrentMediaPlayer.pause();
+                return true;
+            } catch (IllegalStateException e) {
+                return false;
+            }
         }
     }
 
     /**
-     * Checks whether the MultiPlayer is playing.
+     * Checks whether the MultiPlayer is playing, a track that is started once it is prepared counts as playing.
      */
     @Override
     public boolean isPlaying() {
-        return mIsInitialized && mCurrentMediaPlayer.isPlaying();
+        synchronized (mStateLock) {
+            if (mState == STATE_PREPARING) {
+                return mStartWhenPrepared;
+            }
+            return mState == STATE_PREPARED && mCurrentMediaPlayer.isPlaying();
+        }
     }
 
     /**
@@ -218,7 +308,7 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public int duration() {
-        if (!mIsInitialized) {
+        if (mState != STATE_PREPARED) {
             return -1;
         }
         try {
@@ -235,13 +325,19 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public int position() {
-        if (!mIsInitialized) {
-            return -1;
-        }
-        try {
-            return mCurrentMediaPlayer.getCurrentPosition();
-        } catch (IllegalStateException e) {
-            return -1;
+        synchronized (mStateLock) {
+            if (mState == STATE_PREPARING) {
+                // where the track will start
+                return Math.max(mSeekWhenPrepared, 0);
+            }
+            if (mState != STATE_PREPARED) {
+                return -1;
+            }
+            try {
+                return mCurrentMediaPlayer.getCurrentPosition();
+            } catch (IllegalStateException e) {
+                return -1;
+            }
         }
     }
 
@@ -253,11 +349,17 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public int seek(final int whereto) {
-        try {
-            mCurrentMediaPlayer.seekTo(whereto);
-            return whereto;
-        } catch (IllegalStateException e) {
-            return -1;
+        synchronized (mStateLock) {
+            if (mState == STATE_PREPARING) {
+                mSeekWhenPrepared = whereto;
+                return whereto;
+            }
+            try {
+                mCurrentMediaPlayer.seekTo(whereto);
+                return whereto;
+            } catch (IllegalStateException e) {
+                return -1;
+            }
         }
     }
 
@@ -296,15 +398,69 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
         return mCurrentMediaPlayer.getAudioSessionId();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onPrepared(final MediaPlayer mp) {
+        synchronized (mStateLock) {
+            if (mp == mNextMediaPlayer) {
+                try {
+                    mCurrentMediaPlayer.setNextMediaPlayer(mp);
+                    mNextMediaPlayerPrepared = true;
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    Log.e(TAG, "onPrepared: setNextMediaPlayer()", e);
+                    releaseNextMediaPlayer();
+                }
+                return;
+            }
+            if (mp != mCurrentMediaPlayer || mState != STATE_PREPARING) {
+                return;
+            }
+            mState = STATE_PREPARED;
+            try {
+                if (mSeekWhenPrepared > 0) {
+                    mp.seekTo(mSeekWhenPrepared);
+                }
+                if (mStartWhenPrepared) {
+                    mp.start();
+                }
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "onPrepared: deferred start or seek", e);
+            }
+            clearDeferredActions();
+        }
+        openAudioEffectSession();
+        if (callbacks != null) {
+            callbacks.onPrepared(true);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public boolean onError(final MediaPlayer mp, final int what, final int extra) {
-        mIsInitialized = false;
-        mCurrentMediaPlayer.release();
-        mCurrentMediaPlayer = new MediaPlayer();
-        mCurrentMediaPlayer.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
+        final boolean wasPreparing;
+        synchronized (mStateLock) {
+            if (mp == mNextMediaPlayer && !mNextMediaPlayerPrepared) {
+                // the current track just ends without a gapless transition
+                releaseNextMediaPlayer();
+                return true;
+            }
+            wasPreparing = mState == STATE_PREPARING;
+            mState = STATE_IDLE;
+            clearDeferredActions();
+            mCurrentMediaPlayer.release();
+            mCurrentMediaPlayer = new MediaPlayer();
+            mCurrentMediaPlayer.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
+        }
+        if (wasPreparing) {
+            if (callbacks != null) {
+                callbacks.onPrepared(false);
+            }
+            return true;
+        }
         if (context != null) {
             Toast.makeText(context, context.getResources().getString(R.string.unplayable_file), Toast.LENGTH_SHORT).show();
         }
@@ -316,12 +472,18 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public void onCompletion(final MediaPlayer mp) {
-        if (mp == mCurrentMediaPlayer && mNextMediaPlayer != null) {
-            mIsInitialized = false;
-            mCurrentMediaPlayer.release();
-            mCurrentMediaPlayer = mNextMediaPlayer;
-            mIsInitialized = true;
-            mNextMediaPlayer = null;
+        final boolean wentToNext;
+        synchronized (mStateLock) {
+            wentToNext = mp == mCurrentMediaPlayer && mNextMediaPlayer != null && mNextMediaPlayerPrepared;
+            if (wentToNext) {
+                mCurrentMediaPlayer.release();
+                mCurrentMediaPlayer = mNextMediaPlayer;
+                mState = STATE_PREPARED;
+                mNextMediaPlayer = null;
+                mNextMediaPlayerPrepared = false;
+            }
+        }
+        if (wentToNext) {
             if (callbacks != null)
                 callbacks.onTrackWentToNext();
         } else {
@@ -25,6 +25,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
@@ -44,14 +45,16 @@ import com.kabouzeid.gramophone.appwidgets.AppWidgetClassic;
 import com.kabouzeid.gramophone.appwidgets.AppWidgetSmall;
 import com.kabouzeid.gramophone.glide.BlurTransformation;
 import com.kabouzeid.gramophone.glide.SongGlideRequest;
-import com.kabouzeid.gramophone.helper.ShuffleHelper;
 import com.kabouzeid.gramophone.helper.StopWatch;
+import com.kabouzeid.gramophone.loader.LibrarySnapshot;
 import com.kabouzeid.gramophone.loader.PlaylistSongLoader;
 import com.kabouzeid.gramophone.model.AbsCustomPlaylist;
 import com.kabouzeid.gramophone.model.Playlist;
 import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.provider.HistoryStore;
 import com.kabouzeid.gramophone.provider.MusicPlaybackQueueStore;
+import com.kabouzeid.gramophone.provider.MusicPlaybackQueueStore.QueueOperation;
+import com.kabouzeid.gramophone.provider.MusicPlaybackQueueStore.SavedQueues;
 import com.kabouzeid.gramophone.provider.SongPlayCountStore;
 import com.kabouzeid.gramophone.service.notification.PlayingNotification;
 import com.kabouzeid.gramophone.service.notification.PlayingNotificationImpl;
@@ -65,8 +68,10 @@ import org.omnirom.gramophone.R;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 /**
  * @author Karim Abou Zeid (kabouzeid), Andrew Neal
@@ -100,8 +105,6 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     public static final String SHUFFLE_MODE_CHANGED = PHONOGRAPH_PACKAGE_NAME + ".shufflemodechanged";
     public static final String MEDIA_STORE_CHANGED = PHONOGRAPH_PACKAGE_NAME + ".mediastorechanged";
 
-    public static final String SAVED_POSITION = "POSITION";
-    public static final String SAVED_POSITION_IN_TRACK = "POSITION_IN_TRACK";
     public static final String SAVED_SHUFFLE_MODE = "SHUFFLE_MODE";
     public static final String SAVED_REPEAT_MODE = "REPEAT_MODE";
 
@@ -115,6 +118,8 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     private static final int DUCK = 7;
     private static final int UNDUCK = 8;
     public static final int RESTORE_QUEUES = 9;
+    public static final int TRACK_PREPARED = 10;
+    private static final int SWITCH_PLAYBACK = 11;
 
     public static final int SHUFFLE_MODE_NONE = 0;
     public static final int SHUFFLE_MODE_SHUFFLE = 1;
@@ -123,7 +128,12 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     public static final int REPEAT_MODE_ALL = 1;
     public static final int REPEAT_MODE_THIS = 2;
 
+    // how many of the following songs are read ahead
+    private static final int LOOKAHEAD_COUNT = 3;
+
     public static final int SAVE_QUEUES = 0;
+    public static final int APPEND_QUEUE_OPERATION = 1;
+    public static final int SAVE_POSITIONS = 2;
 
     private final IBinder musicBind = new MusicBinder();
 
@@ -133,10 +143,18 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     private AppWidgetCard appWidgetCard = AppWidgetCard.getInstance();
 
     private Playback playback;
-    private ArrayList<Song> playingQueue = new ArrayList<>();
-    private ArrayList<Song> originalPlayingQueue = new ArrayList<>();
+    private PlayingQueue playingQueue;
     private int position = -1;
     private int nextPosition = -1;
+    // the uri the playback prepared as its next track, null if it has none
+    @Nullable
+    private String preparedNextUri;
+    private TrackLookahead trackLookahead;
+    private final ChangeBus changeBus = new ChangeBus();
+
+    @NonNull
+    private volatile PlaybackState playbackState = PlaybackState.EMPTY;
+    private long playbackStateVersion;
     private int shuffleMode;
     private int repeatMode;
     private boolean queuesRestored;
@@ -169,7 +187,13 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         }
     };
     private ContentObserver mediaStoreObserver;
-    private boolean notHandledMetaChangedForCurrentTrack;
+    // written on the playback thread, read by the change subscribers on the main thread
+    private volatile boolean notHandledMetaChangedForCurrentTrack;
+    // when the first skip that is not prepared yet was requested, 0 if there is none
+    private volatile long skipRequestTime;
+    private volatile long lastSkipLatency = -1;
+    private long skipLatencySum;
+    private int skipCount;
 
     private Handler uiThreadHandler;
 
@@ -189,8 +213,11 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         musicPlayerHandlerThread.start();
         playerHandler = new PlaybackHandler(this, musicPlayerHandlerThread.getLooper());
 
-        playback = new MultiPlayer(this);
-        playback.setCallbacks(this);
+        playingQueue = new PlayingQueue();
+
+        playback = createPlayback();
+        trackLookahead = new TrackLookahead();
+        subscribeToChanges();
 
         setupMediaSession();
 
@@ -205,7 +232,8 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
 
         initNotification();
 
-        mediaStoreObserver = new MediaStoreObserver(playerHandler);
+        // syncing the library snapshot queries the MediaStore, so keep it off the playback handler thread
+        mediaStoreObserver = new MediaStoreObserver(queueSaveHandler);
         throttledSeekHandler = new ThrottledSeekHandler(playerHandler);
         getContentResolver().registerContentObserver(
                 MediaStore.Audio.Media.INTERNAL_CONTENT_URI, true, mediaStoreObserver);
@@ -355,9 +383,13 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         }
         mediaSession.setActive(false);
         quit();
+        changeBus.release();
         releaseResources();
         getContentResolver().unregisterContentObserver(mediaStoreObserver);
         PreferenceUtil.getInstance(this).unregisterOnSharedPreferenceChangedListener(this);
+        // the play counts are journaled anyway, this just doesn't leave them pending until the next start
+        SongPlayCountStore.getInstance(this).requestFlush();
+        HistoryStore.getInstance(this).requestFlush();
         wakeLock.release();
 
         sendBroadcast(new Intent("com.kabouzeid.gramophone.PHONOGRAPH_MUSIC_SERVICE_DESTROYED"));
@@ -382,33 +414,46 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
             final MusicService service = mService.get();
             switch (msg.what) {
                 case SAVE_QUEUES:
-                    service.saveQueuesImpl();
+                    MusicPlaybackQueueStore.getInstance(service).saveQueues((SavedQueues) msg.obj);
+                    break;
+                case SAVE_POSITIONS:
+                    MusicPlaybackQueueStore.getInstance(service).savePositions(msg.arg1, msg.arg2);
+                    break;
+                case APPEND_QUEUE_OPERATION:
+                    MusicPlaybackQueueStore.getInstance(service).appendOperation((QueueOperation) msg.obj);
                     break;
             }
         }
     }
 
-    private void saveQueuesImpl() {
-        MusicPlaybackQueueStore.getInstance(this).saveQueues(playingQueue, originalPlayingQueue);
-    }
-
-    private void savePosition() {
-        PreferenceManager.getDefaultSharedPreferences(this).edit().putInt(SAVED_POSITION, getPosition()).apply();
-    }
-
-    private void savePositionInTrack() {
-        PreferenceManager.getDefaultSharedPreferences(this).edit().putInt(SAVED_POSITION_IN_TRACK, getSongProgressMillis()).apply();
+    /**
+     * Saves the position and the position in track, this only updates the header of the saved queues.
+     */
+    private void savePositions() {
+        queueSaveHandler.removeMessages(SAVE_POSITIONS);
+        queueSaveHandler.obtainMessage(SAVE_POSITIONS, getPosition(), getSongProgressMillis()).sendToTarget();
     }
 
     public void saveState() {
-        saveQueues();
-        savePosition();
-        savePositionInTrack();
+        savePositions();
     }
 
+    /**
+     * Saves a snapshot of both queues, only needed when they were replaced as a whole.
+     */
     private void saveQueues() {
+        // the snapshot already contains the edits that are still pending
         queueSaveHandler.removeMessages(SAVE_QUEUES);
-        queueSaveHandler.sendEmptyMessage(SAVE_QUEUES);
+        queueSaveHandler.removeMessages(APPEND_QUEUE_OPERATION);
+        queueSaveHandler.obtainMessage(SAVE_QUEUES, new SavedQueues(playingQueue.getOriginalIds(), playingQueue.getShuffleOrder(), playingQueue.getShuffleSeed(),
+                getPosition(), getSongProgressMillis(), shuffleMode)).sendToTarget();
+    }
+
+    /**
+     * Saves an edit of the queues, the edit must already be applied to them.
+     */
+    private void appendQueueOperation(@NonNull final QueueOperation operation) {
+        queueSaveHandler.obtainMessage(APPEND_QUEUE_OPERATION, operation).sendToTarget();
     }
 
     private void restoreState() {
@@ -423,22 +468,39 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
 
     private synchronized void restoreQueuesAndPositionIfNecessary() {
         if (!queuesRestored && playingQueue.isEmpty()) {
-            ArrayList<Song> restoredQueue = MusicPlaybackQueueStore.getInstance(this).getSavedPlayingQueue();
-            ArrayList<Song> restoredOriginalQueue = MusicPlaybackQueueStore.getInstance(this).getSavedOriginalPlayingQueue();
-            int restoredPosition = PreferenceManager.getDefaultSharedPreferences(this).getInt(SAVED_POSITION, -1);
-            int restoredPositionInTrack = PreferenceManager.getDefaultSharedPreferences(this).getInt(SAVED_POSITION_IN_TRACK, -1);
-
-            if (restoredQueue.size() > 0 && restoredQueue.size() == restoredOriginalQueue.size() && restoredPosition != -1) {
-                this.originalPlayingQueue = restoredOriginalQueue;
-                this.playingQueue = restoredQueue;
+            SavedQueues savedQueues = MusicPlaybackQueueStore.getInstance(this).getSavedQueues();
+
+            // the songs are only looked up once they are needed, starting with the current one
+            final int restoredPosition = savedQueues == null ? -1
+                    : playingQueue.restore(LibrarySnapshot.getInstance(this), savedQueues.originalPlayingQueue, savedQueues.shuffleOrder, savedQueues.shuffleSeed, savedQueues.position);
+            if (restoredPosition != -1) {
+                final boolean songsLeftOut = playingQueue.size() != savedQueues.originalPlayingQueue.length;
+                // the current song might be gone, the one that took its place starts from the beginning
+                final long savedSongId = savedQueues.originalPlayingQueue[savedQueues.shuffleOrder == null ? savedQueues.position : savedQueues.shuffleOrder[savedQueues.position]];
+                int restoredPositionInTrack = savedSongId == playingQueue.getIdAt(restoredPosition) ? savedQueues.positionInTrack : 0;
+
+                if (savedQueues.shuffleMode != shuffleMode) {
+                    // the saved playing queue was built for this shuffle mode
+                    shuffleMode = savedQueues.shuffleMode;
+                    PreferenceManager.getDefaultSharedPreferences(this).edit()
+                            .putInt(SAVED_SHUFFLE_MODE, shuffleMode)
+                            .apply();
+                    handleAndSendChangeInternal(SHUFFLE_MODE_CHANGED);
+                }
 
                 position = restoredPosition;
+                playingQueue.setCurrentPosition(position);
+                if (songsLeftOut) {
+                    // the saved edits refer to the songs that were left out
+                    saveQueues();
+                }
+                // the next track is prepared once the current one is
                 openCurrent();
-                prepareNext();
 
                 if (restoredPositionInTrack > 0) seek(restoredPositionInTrack);
 
                 notHandledMetaChangedForCurrentTrack = true;
+                publishPlaybackState();
                 sendChangeInternal(META_CHANGED);
                 sendChangeInternal(QUEUE_CHANGED);
             }
@@ -448,6 +510,8 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
 
     private void quit() {
         pause();
+        // the pause still reaches the widgets and the activities, the notification is stopped after it
+        changeBus.flush();
         playingNotification.stop();
 
         closeAudioEffectSession();
@@ -462,7 +526,8 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         } else {
             musicPlayerHandlerThread.quit();
         }
-        queueSaveHandler.removeCallbacksAndMessages(null);
+        // let the queue edits that are still pending be saved
+        queueSaveHandler.removeCallbacks(mediaStoreObserver);
         if (Build.VERSION.SDK_INT >= 18) {
             queueSaveHandlerThread.quitSafely();
         } else {
@@ -470,6 +535,7 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         }
         playback.release();
         playback = null;
+        trackLookahead.release();
         mediaSession.release();
     }
 
@@ -488,24 +554,54 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     private boolean openTrackAndPrepareNextAt(int position) {
         synchronized (this) {
             this.position = position;
-            boolean prepared = openCurrent();
-            if (prepared) prepareNextImpl();
+            playingQueue.setCurrentPosition(position);
+            // the next track is prepared once the current one is
+            boolean opened = openCurrent();
             notifyChange(META_CHANGED);
             notHandledMetaChangedForCurrentTrack = false;
-            return prepared;
+            return opened;
         }
     }
 
     private boolean openCurrent() {
         synchronized (this) {
             try {
-                return playback.setDataSource(getTrackUri(getCurrentSong()));
+                // a new track drops the next one of the previous track
+                preparedNextUri = null;
+                return playback.setDataSourceAsync(getTrackUri(getCurrentSong()));
             } catch (Exception e) {
                 return false;
             }
         }
     }
 
+    @NonNull
+    private Playback createPlayback() {
+        final Playback newPlayback = PreferenceUtil.getInstance(this).decoderPlayback() ? new PcmPlayer(this) : new MultiPlayer(this);
+        newPlayback.setCallbacks(this);
+        return newPlayback;
+    }
+
+    /**
+     * Replaces the playback engine and continues the current track where it was with the new one.
+     */
+    private void switchPlayback() {
+        synchronized (this) {
+            final boolean wasPlaying = isPlaying();
+            final int progress = getSongProgressMillis();
+            closeAudioEffectSession();
+            playback.release();
+            playback = createPlayback();
+            if (position >= 0 && position < playingQueue.size()) {
+                // the next track is prepared once the current one is
+                openCurrent();
+                if (progress > 0) seek(progress);
+                if (wasPlaying) playback.start();
+            }
+        }
+        notifyChange(PLAY_STATE_CHANGED);
+    }
+
     private void prepareNext() {
         playerHandler.removeMessages(PREPARE_NEXT);
         playerHandler.obtainMessage(PREPARE_NEXT).sendToTarget();
@@ -515,8 +611,14 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         synchronized (this) {
             try {
                 int nextPosition = getNextPosition(false);
-                playback.setNextDataSource(getTrackUri(getSongAt(nextPosition)));
+                final String nextUri = getTrackUri(getSongAt(nextPosition));
+                // edits that leave the next song as it is keep its player prepared
+                if (!nextUri.equals(preparedNextUri)) {
+                    playback.setNextDataSource(nextUri);
+                    preparedNextUri = nextUri;
+                }
                 this.nextPosition = nextPosition;
+                trackLookahead.warm(getLookaheadSongs());
                 return true;
             } catch (Exception e) {
                 return false;
@@ -524,6 +626,59 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         }
     }
 
+    /**
+     * @return the songs that are played after the current one, as far as the lookahead reaches
+     */
+    @NonNull
+    private List<Song> getLookaheadSongs() {
+        final List<Song> songs = new ArrayList<>(LOOKAHEAD_COUNT);
+        final int size = playingQueue.size();
+        for (int i = 1; i <= LOOKAHEAD_COUNT && i < size; i++) {
+            int lookaheadPosition = position + i;
+            if (lookaheadPosition >= size) {
+                if (repeatMode != REPEAT_MODE_ALL) break;
+                lookaheadPosition -= size;
+            }
+            songs.add(getSongAt(lookaheadPosition));
+        }
+        return songs;
+    }
+
+    private void handleTrackPrepared(boolean success) {
+        if (playback.isPreparing()) {
+            // a later skip superseded this track while the message was queued
+            return;
+        }
+        final long requestTime = skipRequestTime;
+        skipRequestTime = 0;
+        if (success) {
+            if (requestTime != 0) {
+                final long latency = SystemClock.elapsedRealtime() - requestTime;
+                synchronized (this) {
+                    lastSkipLatency = latency;
+                    skipLatencySum += latency;
+                    skipCount++;
+                }
+            }
+            prepareNextImpl();
+            notifyChange(PLAY_STATE_CHANGED);
+        } else {
+            Toast.makeText(this, getResources().getString(R.string.unplayable_file), Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * @return the time in ms from a skip until its track was prepared, -1 if there was no skip yet.
+     * Skips that follow each other before a track was prepared are measured from the first one.
+     */
+    public long getLastSkipLatencyMillis() {
+        return lastSkipLatency;
+    }
+
+    public synchronized long getAverageSkipLatencyMillis() {
+        return skipCount == 0 ? -1 : skipLatencySum / skipCount;
+    }
+
     private void closeAudioEffectSession() {
         final Intent audioEffectsIntent = new Intent(AudioEffect.ACTION_CLOSE_AUDIO_EFFECT_CONTROL_SESSION);
         audioEffectsIntent.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, playback.getAudioSessionId());
@@ -636,8 +791,8 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     }
 
     public Song getSongAt(int position) {
-        if (position >= 0 && position < getPlayingQueue().size()) {
-            return getPlayingQueue().get(position);
+        if (position >= 0 && position < playingQueue.size()) {
+            return playingQueue.getSongAt(position);
         } else {
             return Song.EMPTY_SONG;
         }
@@ -671,11 +826,11 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     }
 
     private boolean isLastTrack() {
-        return getPosition() == getPlayingQueue().size() - 1;
+        return getPosition() == playingQueue.size() - 1;
     }
 
-    public ArrayList<Song> getPlayingQueue() {
-        return playingQueue;
+    public List<Song> getPlayingQueue() {
+        return playingQueue.getPlayingList();
     }
 
     public int getRepeatMode() {
@@ -697,15 +852,14 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         }
     }
 
-    public void openQueue(@Nullable final ArrayList<Song> playingQueue, final int startPosition, final boolean startPlaying) {
+    public void openQueue(@Nullable final List<Song> playingQueue, final int startPosition, final boolean startPlaying) {
         if (playingQueue != null && !playingQueue.isEmpty() && startPosition >= 0 && startPosition < playingQueue.size()) {
-            // it is important to copy the playing queue here first as we might add/remove songs later
-            originalPlayingQueue = new ArrayList<>(playingQueue);
-            this.playingQueue = new ArrayList<>(originalPlayingQueue);
+            // only the ids are copied, the songs are looked up again once they are needed
+            this.playingQueue.open(playingQueue);
 
             int position = startPosition;
             if (shuffleMode == SHUFFLE_MODE_SHUFFLE) {
-                ShuffleHelper.makeShuffleList(this.playingQueue, startPosition);
+                this.playingQueue.shuffle(startPosition, new Random().nextLong());
                 position = 0;
             }
             if (startPlaying) {
@@ -713,59 +867,51 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
             } else {
                 setPosition(position);
             }
+            saveQueues();
             notifyChange(QUEUE_CHANGED);
         }
     }
 
     public void addSong(int position, Song song) {
-        playingQueue.add(position, song);
-        originalPlayingQueue.add(position, song);
+        playingQueue.insert(position, Collections.singletonList(song));
+        appendQueueOperation(QueueOperation.insert(position, Collections.singletonList(song)));
         notifyChange(QUEUE_CHANGED);
     }
 
     public void addSong(Song song) {
-        playingQueue.add(song);
-        originalPlayingQueue.add(song);
+        playingQueue.insert(-1, Collections.singletonList(song));
+        appendQueueOperation(QueueOperation.insert(-1, Collections.singletonList(song)));
         notifyChange(QUEUE_CHANGED);
     }
 
     public void addSongs(int position, List<Song> songs) {
-        playingQueue.addAll(position, songs);
-        originalPlayingQueue.addAll(position, songs);
+        playingQueue.insert(position, songs);
+        appendQueueOperation(QueueOperation.insert(position, songs));
         notifyChange(QUEUE_CHANGED);
     }
 
     public void addSongs(List<Song> songs) {
-        playingQueue.addAll(songs);
-        originalPlayingQueue.addAll(songs);
+        playingQueue.insert(-1, songs);
+        appendQueueOperation(QueueOperation.insert(-1, songs));
         notifyChange(QUEUE_CHANGED);
     }
 
     public void removeSong(int position) {
-        if (getShuffleMode() == SHUFFLE_MODE_NONE) {
-            playingQueue.remove(position);
-            originalPlayingQueue.remove(position);
-        } else {
-            originalPlayingQueue.remove(playingQueue.remove(position));
-        }
-
+        playingQueue.remove(position);
+        appendQueueOperation(QueueOperation.remove(position));
         rePosition(position);
 
         notifyChange(QUEUE_CHANGED);
     }
 
     public void removeSong(@NonNull Song song) {
-        for (int i = 0; i < playingQueue.size(); i++) {
-            if (playingQueue.get(i).id == song.id) {
+        for (int i = playingQueue.size() - 1; i >= 0; i--) {
+            if (playingQueue.getIdAt(i) == song.id) {
                 playingQueue.remove(i);
+                appendQueueOperation(QueueOperation.remove(i));
                 rePosition(i);
             }
         }
-        for (int i = 0; i < originalPlayingQueue.size(); i++) {
-            if (originalPlayingQueue.get(i).id == song.id) {
-                originalPlayingQueue.remove(i);
-            }
-        }
         notifyChange(QUEUE_CHANGED);
     }
 
@@ -785,12 +931,8 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     public void moveSong(int from, int to) {
         if (from == to) return;
         final int currentPosition = getPosition();
-        Song songToMove = playingQueue.remove(from);
-        playingQueue.add(to, songToMove);
-        if (getShuffleMode() == SHUFFLE_MODE_NONE) {
-            Song tmpSong = originalPlayingQueue.remove(from);
-            originalPlayingQueue.add(to, tmpSong);
-        }
+        playingQueue.move(from, to);
+        appendQueueOperation(QueueOperation.move(from, to));
         if (from > currentPosition && to <= currentPosition) {
             position = currentPosition + 1;
         } else if (from < currentPosition && to >= currentPosition) {
@@ -803,14 +945,18 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
 
     public void clearQueue() {
         playingQueue.clear();
-        originalPlayingQueue.clear();
+        appendQueueOperation(QueueOperation.clear());
 
         setPosition(-1);
         notifyChange(QUEUE_CHANGED);
     }
 
     public void playSongAt(final int position) {
-        // handle this on the handlers thread to avoid blocking the ui thread
+        if (skipRequestTime == 0) {
+            skipRequestTime = SystemClock.elapsedRealtime();
+        }
+        // handle this on the handlers thread to avoid blocking the ui thread,
+        // a skip that was not handled yet is replaced and one that is still preparing is cancelled
         playerHandler.removeMessages(PLAY_SONG);
         playerHandler.obtainMessage(PLAY_SONG, position, 0).sendToTarget();
     }
@@ -825,6 +971,7 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         if (openTrackAndPrepareNextAt(position)) {
             play();
         } else {
+            skipRequestTime = 0;
             Toast.makeText(this, getResources().getString(R.string.unplayable_file), Toast.LENGTH_SHORT).show();
         }
     }
@@ -841,7 +988,7 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         synchronized (this) {
             if (requestFocus()) {
                 if (!playback.isPlaying()) {
-                    if (!playback.isInitialized()) {
+                    if (!playback.isInitialized() && !playback.isPreparing()) {
                         playSongAt(getPosition());
                     } else {
                         playback.start();
@@ -850,8 +997,8 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
                             becomingNoisyReceiverRegistered = true;
                         }
                         if (notHandledMetaChangedForCurrentTrack) {
-                            handleChangeInternal(META_CHANGED);
                             notHandledMetaChangedForCurrentTrack = false;
+                            handleAndSendChangeInternal(META_CHANGED);
                         }
                         notifyChange(PLAY_STATE_CHANGED);
 
@@ -923,6 +1070,26 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         return newPosition;
     }
 
+    /**
+     * @return the latest snapshot of the playback state, readers on other threads should prefer it over the other
+     * getters, which read the live state
+     */
+    @NonNull
+    public PlaybackState getPlaybackState() {
+        return playbackState;
+    }
+
+    private void publishPlaybackState() {
+        synchronized (this) {
+            if (playback == null) {
+                return;
+            }
+            final boolean playing = isPlaying();
+            playbackState = new PlaybackState(++playbackStateVersion, playingQueue.snapshot(), position, getCurrentSong(),
+                    playing, playing && !playback.isPreparing(), getSongProgressMillis(), getSongDurationMillis(), shuffleMode, repeatMode);
+        }
+    }
+
     public int getSongProgressMillis() {
         return playback.position();
     }
@@ -932,16 +1099,14 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     }
 
     public long getQueueDurationMillis(int position) {
-        long duration = 0;
-        for (int i = position + 1; i < playingQueue.size(); i++)
-            duration += playingQueue.get(i).duration;
-        return duration;
+        return playingQueue.getRemainingDuration(position);
     }
 
     public int seek(int millis) {
         synchronized (this) {
             try {
                 int newPosition = playback.seek(millis);
+                publishPlaybackState();
                 throttledSeekHandler.notifySeek();
                 return newPosition;
             } catch (Exception e) {
@@ -983,20 +1148,17 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         switch (shuffleMode) {
             case SHUFFLE_MODE_SHUFFLE:
                 this.shuffleMode = shuffleMode;
-                ShuffleHelper.makeShuffleList(this.getPlayingQueue(), getPosition());
+                final long seed = new Random().nextLong();
+                final int current = getPosition() < playingQueue.size() ? getPosition() : -1;
+                playingQueue.shuffle(current, seed);
+                appendQueueOperation(QueueOperation.shuffle(current, seed));
                 position = 0;
                 break;
             case SHUFFLE_MODE_NONE:
                 this.shuffleMode = shuffleMode;
-                long currentSongId = getCurrentSong().id;
-                playingQueue = new ArrayList<>(originalPlayingQueue);
-                int newPosition = 0;
-                for (Song song : getPlayingQueue()) {
-                    if (song.id == currentSongId) {
-                        newPosition = getPlayingQueue().indexOf(song);
-                    }
-                }
-                position = newPosition;
+                // the current song stays the same, it just moves to its original position
+                position = playingQueue.unshuffle(getPosition());
+                appendQueueOperation(QueueOperation.restoreOriginal());
                 break;
         }
         handleAndSendChangeInternal(SHUFFLE_MODE_CHANGED);
@@ -1005,10 +1167,10 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
 
     private void notifyChange(@NonNull final String what) {
         handleAndSendChangeInternal(what);
-        sendPublicIntent(what);
     }
 
     private void handleAndSendChangeInternal(@NonNull final String what) {
+        publishPlaybackState();
         handleChangeInternal(what);
         sendChangeInternal(what);
     }
@@ -1035,12 +1197,88 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         sendStickyBroadcast(intent);
     }
 
+    /**
+     * Hands the change to the {@link ChangeBus}, the subscribers get it merged with the other changes of its window.
+     * Play state changes are not held back, pressing play or pause has to show right away.
+     */
     private void sendChangeInternal(final String what) {
-        sendBroadcast(new Intent(what));
-        appWidgetBig.notifyChange(this, what);
-        appWidgetClassic.notifyChange(this, what);
-        appWidgetSmall.notifyChange(this, what);
-        appWidgetCard.notifyChange(this, what);
+        if (PLAY_STATE_CHANGED.equals(what)) {
+            changeBus.emitNow(what);
+        } else {
+            changeBus.emit(what);
+        }
+    }
+
+    private void subscribeToChanges() {
+        // the activities
+        changeBus.subscribe(new ChangeBus.Subscriber() {
+            @Override
+            public void onChanges(@NonNull Set<String> changes) {
+                for (String what : changes) {
+                    sendBroadcast(new Intent(what));
+                }
+            }
+        });
+        // other apps, the public intent always carries the complete state
+        changeBus.subscribe(new ChangeBus.Subscriber() {
+            @Override
+            public void onChanges(@NonNull Set<String> changes) {
+                if (changes.contains(META_CHANGED)) {
+                    sendPublicIntent(META_CHANGED);
+                } else if (changes.contains(PLAY_STATE_CHANGED)) {
+                    sendPublicIntent(PLAY_STATE_CHANGED);
+                } else if (changes.contains(QUEUE_CHANGED)) {
+                    sendPublicIntent(QUEUE_CHANGED);
+                }
+            }
+        });
+        // the widgets redraw completely for either change
+        changeBus.subscribe(new ChangeBus.Subscriber() {
+            @Override
+            public void onChanges(@NonNull Set<String> changes) {
+                final String what = changes.contains(META_CHANGED) ? META_CHANGED
+                        : changes.contains(PLAY_STATE_CHANGED) ? PLAY_STATE_CHANGED : null;
+                if (what == null) return;
+                appWidgetBig.notifyChange(MusicService.this, what);
+                appWidgetClassic.notifyChange(MusicService.this, what);
+                appWidgetSmall.notifyChange(MusicService.this, what);
+                appWidgetCard.notifyChange(MusicService.this, what);
+            }
+        });
+        // the notification
+        changeBus.subscribe(new ChangeBus.Subscriber() {
+            @Override
+            public void onChanges(@NonNull Set<String> changes) {
+                if (changes.contains(QUEUE_CHANGED) && playingQueue.isEmpty()) {
+                    playingNotification.stop();
+                } else if (changes.contains(META_CHANGED) && !notHandledMetaChangedForCurrentTrack) {
+                    updateNotification();
+                } else if (changes.contains(PLAY_STATE_CHANGED)) {
+                    updateNotificationState();
+                }
+            }
+        });
+        // the media session
+        changeBus.subscribe(new ChangeBus.Subscriber() {
+            @Override
+            public void onChanges(@NonNull Set<String> changes) {
+                if (changes.contains(PLAY_STATE_CHANGED)) {
+                    updateMediaSessionPlaybackState();
+                }
+                // the playing queue size is part of the meta data
+                if ((changes.contains(META_CHANGED) || changes.contains(QUEUE_CHANGED)) && !notHandledMetaChangedForCurrentTrack) {
+                    updateMediaSessionMetaData();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the change events emitted and the updates delivered to subscribers so far
+     */
+    @NonNull
+    public ChangeBus getChangeBus() {
+        return changeBus;
     }
 
     private static final long MEDIA_SESSION_ACTIONS = PlaybackStateCompat.ACTION_PLAY
@@ -1054,33 +1292,25 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     private void handleChangeInternal(@NonNull final String what) {
         switch (what) {
             case PLAY_STATE_CHANGED:
-                updateNotificationState();
-                updateMediaSessionPlaybackState();
                 final boolean isPlaying = isPlaying();
                 if (!isPlaying && getSongProgressMillis() > 0) {
-                    savePositionInTrack();
+                    savePositions();
                 }
                 songPlayCountHelper.notifyPlayStateChanged(isPlaying);
                 break;
             case META_CHANGED:
-                updateNotification();
-                updateMediaSessionMetaData();
-                savePosition();
-                savePositionInTrack();
+                savePositions();
                 final Song currentSong = getCurrentSong();
-                HistoryStore.getInstance(this).addSongId(currentSong.id);
+                HistoryStore.getInstance(this).addSongIdAsync(currentSong.id);
                 if (songPlayCountHelper.shouldBumpPlayCount()) {
                     SongPlayCountStore.getInstance(this).bumpPlayCount(songPlayCountHelper.getSong().id);
                 }
                 songPlayCountHelper.notifySongChanged(currentSong);
                 break;
             case QUEUE_CHANGED:
-                updateMediaSessionMetaData(); // because playing queue size might have changed
                 saveState();
                 if (playingQueue.size() > 0) {
                     prepareNext();
-                } else {
-                    playingNotification.stop();
                 }
                 break;
         }
@@ -1109,11 +1339,18 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         switch (key) {
             case PreferenceUtil.GAPLESS_PLAYBACK:
                 if (sharedPreferences.getBoolean(key, false)) {
+                    preparedNextUri = null;
                     prepareNext();
-                } else {
+                } else if (!(playback instanceof PcmPlayer)) {
+                    // the decoder is gapless anyway
                     playback.setNextDataSource(null);
+                    preparedNextUri = null;
                 }
                 break;
+            case PreferenceUtil.PLAYBACK_ENGINE:
+                playerHandler.removeMessages(SWITCH_PLAYBACK);
+                playerHandler.sendEmptyMessage(SWITCH_PLAYBACK);
+                break;
             case PreferenceUtil.ALBUM_ART_ON_LOCKSCREEN:
             case PreferenceUtil.BLURRED_ALBUM_ART:
                 updateMediaSessionMetaData();
@@ -1128,6 +1365,11 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         }
     }
 
+    @Override
+    public void onPrepared(boolean success) {
+        playerHandler.obtainMessage(TRACK_PREPARED, success ? 1 : 0, 0).sendToTarget();
+    }
+
     @Override
     public void onTrackWentToNext() {
         playerHandler.sendEmptyMessage(TRACK_WENT_TO_NEXT);
@@ -1191,6 +1433,8 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
                         service.seek(0);
                     } else {
                         service.position = service.nextPosition;
+                        // the next track became the current one
+                        service.preparedNextUri = null;
                         service.prepareNextImpl();
                         service.notifyChange(META_CHANGED);
                     }
@@ -1223,10 +1467,18 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
                     service.prepareNextImpl();
                     break;
 
+                case TRACK_PREPARED:
+                    service.handleTrackPrepared(msg.arg1 == 1);
+                    break;
+
                 case RESTORE_QUEUES:
                     service.restoreQueuesAndPositionIfNecessary();
                     break;
 
+                case SWITCH_PLAYBACK:
+                    service.switchPlayback();
+                    break;
+
                 case FOCUS_CHANGE:
                     switch (msg.arg1) {
                         case AudioManager.AUDIOFOCUS_GAIN:
@@ -1314,6 +1566,8 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         @Override
         public void run() {
             // actually call refresh when the delayed callback fires
+            // the cached library has to be up to date before anyone reloads it
+            LibrarySnapshot.sync(MusicService.this);
             // do not send a sticky broadcast here
             handleAndSendChangeInternal(MEDIA_STORE_CHANGED);
         }
@@ -1337,7 +1591,7 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
 
         @Override
         public void run() {
-            savePositionInTrack();
+            savePositions();
             sendPublicIntent(PLAY_STATE_CHANGED); // for musixmatch synced lyrics
         }
     }
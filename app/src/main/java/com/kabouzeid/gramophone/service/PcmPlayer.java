@@ -0,0 +1,940 @@
+package com.kabouzeid.gramophone.service;
+
+import android.content.Context;
+import android.content.Intent;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.audiofx.AudioEffect;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.kabouzeid.gramophone.service.playback.PcmRingBuffer;
+import com.kabouzeid.gramophone.service.playback.Playback;
+import com.kabouzeid.gramophone.service.playback.TrackDecoder;
+import com.kabouzeid.gramophone.util.PreferenceUtil;
+
+import java.io.IOException;
+
+/**
+ * Plays the tracks by decoding them itself into a {@link PcmRingBuffer} that feeds a single {@link AudioTrack}.
+ * <p/>
+ * The next track is decoded into the buffer right behind the current one, so the transition is sample exact,
+ * or mixed into the end of the current one if crossfading is turned on. This only works for tracks with the same
+ * sample rate and channel count, other tracks end normally and the next one gets a new audio track.
+ * Tracks the decoder can't handle are played with a {@link MultiPlayer} instead.
+ */
+public class PcmPlayer implements Playback {
+    public static final String TAG = PcmPlayer.class.getSimpleName();
+
+    // how much decoded audio is kept ahead of the playback position
+    private static final int BUFFER_MS = 2000;
+    private static final int CHUNK_FRAMES = 1024;
+    private static final long WAIT_MS = 20;
+    // the decoder is woken up early for everything but a new next track
+    private static final long FULL_WAIT_MS = 250;
+
+    @NonNull
+    private final Context context;
+    @Nullable
+    private Playback.PlaybackCallbacks callbacks;
+
+    @Nullable
+    private volatile Session session;
+    // plays the current track if the decoder can't, null while the decoder is used
+    @Nullable
+    private volatile MultiPlayer fallback;
+
+    private volatile float volume = 1f;
+    // shared by all audio tracks so the effects stay attached, 0 until the first audio track generated one
+    private volatile int audioSessionId;
+    // the session the effect control was opened for, guarded by this
+    private int openedAudioSessionId;
+
+    public PcmPlayer(@NonNull final Context context) {
+        this.context = context;
+        if (Build.VERSION.SDK_INT >= 21) {
+            final int sessionId = ((AudioManager) context.getSystemService(Context.AUDIO_SERVICE)).generateAudioSessionId();
+            if (sessionId != AudioManager.ERROR) {
+                audioSessionId = sessionId;
+            }
+        }
+    }
+
+    @Override
+    public boolean setDataSource(final String path) {
+        final Session newSession = new Session(path);
+        synchronized (this) {
+            releaseCurrent();
+            session = newSession;
+        }
+        if (newSession.prepare()) {
+            newSession.startThreads();
+            return true;
+        }
+        session = null;
+        return createFallback().setDataSource(path);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean setDataSourceAsync(final String path) {
+        final Session newSession = new Session(path);
+        synchronized (this) {
+            releaseCurrent();
+            session = newSession;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (newSession.prepare()) {
+                    newSession.startThreads();
+                    if (session == newSession && callbacks != null) {
+                        callbacks.onPrepared(true);
+                    }
+                } else {
+                    fallBack(newSession);
+                }
+            }
+        }, TAG + " prepare").start();
+        return true;
+    }
+
+    private synchronized void fallBack(@NonNull Session failed) {
+        if (session != failed) {
+            // superseded by another track
+            return;
+        }
+        session = null;
+        final MultiPlayer player = createFallback();
+        if (!player.setDataSourceAsync(failed.path)) {
+            if (callbacks != null) {
+                callbacks.onPrepared(false);
+            }
+            return;
+        }
+        synchronized (failed) {
+            if (failed.seekRequestMs > 0) {
+                player.seek(failed.seekRequestMs);
+            }
+            if (failed.playing) {
+                player.start();
+            }
+        }
+    }
+
+    @NonNull
+    private synchronized MultiPlayer createFallback() {
+        Log.i(TAG, "Falling back to MediaPlayer");
+        final MultiPlayer player = new MultiPlayer(context);
+        if (audioSessionId != 0) {
+            player.setAudioSessionId(audioSessionId);
+        }
+        player.setCallbacks(callbacks);
+        player.setVolume(volume);
+        fallback = player;
+        return player;
+    }
+
+    private synchronized void releaseCurrent() {
+        final Session oldSession = session;
+        if (oldSession != null) {
+            oldSession.release();
+            session = null;
+        }
+        final MultiPlayer oldFallback = fallback;
+        if (oldFallback != null) {
+            oldFallback.release();
+            fallback = null;
+        }
+    }
+
+    @Override
+    public boolean isPreparing() {
+        final MultiPlayer fallback = this.fallback;
+        if (fallback != null) {
+            return fallback.isPreparing();
+        }
+        final Session session = this.session;
+        return session != null && !session.prepared;
+    }
+
+    @Override
+    public void setNextDataSource(@Nullable final String path) {
+        final MultiPlayer fallback = this.fallback;
+        if (fallback != null) {
+            fallback.setNextDataSource(path);
+            return;
+        }
+        final Session session = this.session;
+        if (session != null) {
+            session.setNextPath(path);
+        }
+    }
+
+    @Override
+    public void setCallbacks(final Playback.PlaybackCallbacks callbacks) {
+        this.callbacks = callbacks;
+        final MultiPlayer fallback = this.fallback;
+        if (fallback != null) {
+            fallback.setCallbacks(callbacks);
+        }
+    }
+
+    @Override
+    public boolean isInitialized() {
+        final MultiPlayer fallback = this.fallback;
+        if (fallback != null) {
+            return fallback.isInitialized();
+        }
+        final Session session = this.session;
+        return session != null && session.prepared;
+    }
+
+    @Override
+    public boolean start() {
+        final MultiPlayer fallback = this.fallback;
+        if (fallback != null) {
+            return fallback.start();
+        }
+        final Session session = this.session;
+        if (session == null) {
+            return false;
+        }
+        session.setPlaying(true);
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        releaseCurrent();
+    }
+
+    @Override
+    public void release() {
+        releaseCurrent();
+    }
+
+    @Override
+    public boolean pause() {
+        final MultiPlayer fallback = this.fallback;
+        if (fallback != null) {
+            return fallback.pause();
+        }
+        final Session session = this.session;
+        if (session == null) {
+            return false;
+        }
+        session.setPlaying(false);
+        return true;
+    }
+
+    /**
+     * Checks whether the player is playing, a track that is started once it is prepared counts as playing.
+     */
+    @Override
+    public boolean isPlaying() {
+        final MultiPlayer fallback = this.fallback;
+        if (fallback != null) {
+            return fallback.isPlaying();
+        }
+        final Session session = this.session;
+        return session != null && session.playing;
+    }
+
+    @Override
+    public int duration() {
+        final MultiPlayer fallback = this.fallback;
+        if (fallback != null) {
+            return fallback.duration();
+        }
+        final Session session = this.session;
+        return session != null && session.prepared ? session.durationMs : -1;
+    }
+
+    @Override
+    public int position() {
+        final MultiPlayer fallback = this.fallback;
+        if (fallback != null) {
+            return fallback.position();
+        }
+        final Session session = this.session;
+        return session != null ? session.getPositionMs() : -1;
+    }
+
+    @Override
+    public int seek(final int whereto) {
+        final MultiPlayer fallback = this.fallback;
+        if (fallback != null) {
+            return fallback.seek(whereto);
+        }
+        final Session session = this.session;
+        if (session == null) {
+            return -1;
+        }
+        session.seek(whereto);
+        return whereto;
+    }
+
+    @Override
+    public boolean setVolume(final float vol) {
+        volume = vol;
+        final MultiPlayer fallback = this.fallback;
+        if (fallback != null) {
+            return fallback.setVolume(vol);
+        }
+        final Session session = this.session;
+        if (session != null) {
+            session.applyVolume();
+        }
+        return true;
+    }
+
+    /**
+     * Sets the audio session of the audio tracks that are created from now on.
+     */
+    @Override
+    public boolean setAudioSessionId(final int sessionId) {
+        audioSessionId = sessionId;
+        final MultiPlayer fallback = this.fallback;
+        return fallback == null || fallback.setAudioSessionId(sessionId);
+    }
+
+    @Override
+    public int getAudioSessionId() {
+        final MultiPlayer fallback = this.fallback;
+        if (fallback != null) {
+            return fallback.getAudioSessionId();
+        }
+        return audioSessionId;
+    }
+
+    private static int toMs(long us) {
+        return us < 0 ? -1 : (int) (us / 1000);
+    }
+
+    /**
+     * Takes over the session of an audio track if there is none yet and opens the effect control for it,
+     * only once per session.
+     */
+    private synchronized void onAudioTrackCreated(@NonNull AudioTrack audioTrack) {
+        if (audioSessionId == 0) {
+            audioSessionId = audioTrack.getAudioSessionId();
+        }
+        if (openedAudioSessionId != audioSessionId) {
+            openedAudioSessionId = audioSessionId;
+            openAudioEffectSession(audioSessionId);
+        }
+    }
+
+    private void openAudioEffectSession(int sessionId) {
+        final Intent intent = new Intent(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION);
+        intent.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, sessionId);
+        intent.putExtra(AudioEffect.EXTRA_PACKAGE_NAME, context.getPackageName());
+        intent.putExtra(AudioEffect.EXTRA_CONTENT_TYPE, AudioEffect.CONTENT_TYPE_MUSIC);
+        context.sendBroadcast(intent);
+    }
+
+    /**
+     * One audio track and the chain of tracks that is played gaplessly on it.
+     * <p/>
+     * The decode thread owns the decoders and fills the ring buffer, the output thread moves the samples to the
+     * audio track and reports the transitions once they are actually heard. Positions in the ring buffer mark where
+     * each track starts, the fields shared between the threads are guarded by the session.
+     */
+    private class Session {
+        @NonNull
+        final String path;
+
+        volatile boolean prepared;
+        volatile boolean released;
+        volatile boolean playing;
+        volatile int durationMs = -1;
+
+        // set once prepared
+        @Nullable
+        volatile AudioTrack audioTrack;
+        volatile PcmRingBuffer ring;
+        int sampleRate;
+        int channelCount;
+        Thread decodeThread;
+        Thread outputThread;
+
+        // decode thread only
+        @Nullable
+        TrackDecoder decoder;
+        @Nullable
+        TrackDecoder nextDecoder;
+        @Nullable
+        String nextDecoderPath;
+        // also read by setNextPath()
+        volatile boolean crossfading;
+        long crossfadeFrames;
+        long crossfadeDone;
+
+        // guarded by this
+        @NonNull
+        String playingPath;
+        // where the audible track starts in the ring buffer and at which position in ms
+        long trackStart;
+        int trackStartMs;
+        // where the next track starts in the ring buffer, -1 if it is not decoded yet
+        long nextTrackStart = -1;
+        @Nullable
+        String nextTrackPath;
+        int nextTrackDurationMs = -1;
+        // the path of the track after the decoded ones, null if there is none
+        @Nullable
+        String requestedNextPath;
+        boolean nextTruncated;
+        // where the samples end in the ring buffer, -1 while there are more to come
+        long endOfStream = -1;
+        boolean endReported;
+        int seekRequestMs = -1;
+        boolean flushRequested;
+        // the ring buffer position where the playback head of the audio track started counting
+        long flushBase;
+
+        Session(@NonNull String path) {
+            this.path = path;
+            playingPath = path;
+        }
+
+        /**
+         * Opens the decoder and the audio track.
+         *
+         * @return false if the track can't be decoded
+         */
+        boolean prepare() {
+            final TrackDecoder newDecoder;
+            try {
+                newDecoder = TrackDecoder.open(context, path);
+            } catch (IOException e) {
+                Log.w(TAG, "Can't decode " + path, e);
+                return false;
+            }
+            final int channelConfig;
+            switch (newDecoder.getChannelCount()) {
+                case 1:
+                    channelConfig = AudioFormat.CHANNEL_OUT_MONO;
+                    break;
+                case 2:
+                    channelConfig = AudioFormat.CHANNEL_OUT_STEREO;
+                    break;
+                default:
+                    newDecoder.release();
+                    return false;
+            }
+            final int rate = newDecoder.getSampleRate();
+            AudioTrack newAudioTrack = null;
+            try {
+                final int minBufferSize = AudioTrack.getMinBufferSize(rate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+                if (minBufferSize <= 0) {
+                    throw new IllegalArgumentException("Unsupported format " + rate + " Hz");
+                }
+                newAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, rate, channelConfig, AudioFormat.ENCODING_PCM_16BIT,
+                        minBufferSize * 2, AudioTrack.MODE_STREAM, audioSessionId);
+                if (newAudioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+                    throw new IllegalStateException("Audio track not initialized");
+                }
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                Log.w(TAG, "Can't create an audio track for " + path, e);
+                if (newAudioTrack != null) {
+                    newAudioTrack.release();
+                }
+                newDecoder.release();
+                return false;
+            }
+
+            synchronized (this) {
+                if (released) {
+                    newAudioTrack.release();
+                    newDecoder.release();
+                    return false;
+                }
+                decoder = newDecoder;
+                audioTrack = newAudioTrack;
+                sampleRate = rate;
+                channelCount = newDecoder.getChannelCount();
+                ring = new PcmRingBuffer(rate * BUFFER_MS / 1000 * channelCount);
+                durationMs = toMs(newDecoder.getDurationUs());
+                trackStartMs = Math.max(seekRequestMs, 0);
+                prepared = true;
+            }
+            applyVolume();
+            onAudioTrackCreated(newAudioTrack);
+            return true;
+        }
+
+        void startThreads() {
+            decodeThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    decodeLoop();
+                }
+            }, TAG + " decode");
+            outputThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                    outputLoop();
+                }
+            }, TAG + " output");
+            decodeThread.start();
+            outputThread.start();
+        }
+
+        void release() {
+            synchronized (this) {
+                released = true;
+                playing = false;
+                notifyAll();
+            }
+            if (ring != null) {
+                ring.close();
+            }
+            final AudioTrack audioTrack = this.audioTrack;
+            if (audioTrack != null) {
+                try {
+                    // unblocks a write of the output thread, which releases the audio track
+                    audioTrack.pause();
+                    audioTrack.flush();
+                } catch (IllegalStateException ignored) {
+                }
+            }
+        }
+
+        void setPlaying(boolean playing) {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                this.playing = playing;
+                notifyAll();
+                if (!prepared) {
+                    return;
+                }
+            }
+            final AudioTrack audioTrack = this.audioTrack;
+            if (audioTrack == null) {
+                return;
+            }
+            try {
+                if (playing) {
+                    audioTrack.play();
+                } else {
+                    audioTrack.pause();
+                }
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "setPlaying()", e);
+            }
+        }
+
+        void applyVolume() {
+            final AudioTrack audioTrack = this.audioTrack;
+            if (audioTrack != null) {
+                //noinspection deprecation
+                audioTrack.setStereoVolume(volume, volume);
+            }
+        }
+
+        synchronized void seek(int positionMs) {
+            seekRequestMs = positionMs;
+            if (!prepared) {
+                return;
+            }
+            // a next track that was already decoded has to be decoded again later
+            if (nextTrackStart != -1 && requestedNextPath == null) {
+                requestedNextPath = nextTrackPath;
+            }
+            nextTrackStart = -1;
+            endOfStream = -1;
+            endReported = false;
+            ring.clear();
+            trackStart = ring.getWritten();
+            trackStartMs = positionMs;
+            flushRequested = true;
+            notifyAll();
+        }
+
+        synchronized void setNextPath(@Nullable String path) {
+            if (nextTrackStart != -1 && TextUtils.equals(path, nextTrackPath)) {
+                // already decoded behind the current track
+                return;
+            }
+            if (nextTrackStart == -1 && TextUtils.equals(path, requestedNextPath)) {
+                return;
+            }
+            if (nextTrackStart != -1 && prepared) {
+                if (crossfading) {
+                    // the end of the current track is mixed with the old next track already
+                    Log.i(TAG, "Can't change the next track while crossfading");
+                    return;
+                }
+                if (ring.truncate(nextTrackStart)) {
+                    endOfStream = -1;
+                    nextTrackStart = -1;
+                    nextTrackPath = null;
+                    nextTruncated = true;
+                }
+            }
+            requestedNextPath = path;
+            notifyAll();
+        }
+
+        synchronized int getPositionMs() {
+            if (!prepared || flushRequested) {
+                return Math.max(seekRequestMs, trackStartMs);
+            }
+            final long played = getPlayedPosition();
+            return trackStartMs + (int) (Math.max(played - trackStart, 0) / channelCount * 1000 / sampleRate);
+        }
+
+        /**
+         * @return the position in the ring buffer that was played until now
+         */
+        private long getPlayedPosition() {
+            final AudioTrack audioTrack = this.audioTrack;
+            if (audioTrack == null) {
+                return 0;
+            }
+            return flushBase + (audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL) * channelCount;
+        }
+
+        private void decodeLoop() {
+            final short[] chunk = new short[CHUNK_FRAMES * channelCount];
+            final short[] mix = new short[chunk.length];
+            int chunkOffset = 0;
+            int chunkLength = 0;
+            try {
+                while (!released) {
+                    final int epoch;
+                    final int seekMs;
+                    final boolean truncated;
+                    synchronized (this) {
+                        seekMs = seekRequestMs;
+                        seekRequestMs = -1;
+                        truncated = nextTruncated;
+                        nextTruncated = false;
+                        epoch = ring.getEpoch();
+                    }
+                    if (seekMs >= 0) {
+                        seekDecoder(seekMs);
+                        chunkLength = 0;
+                    } else if (truncated) {
+                        // the decoder belonged to the next track that was dropped again
+                        releaseDecoders();
+                        chunkLength = 0;
+                    }
+                    openNextDecoder();
+
+                    if (chunkLength == 0) {
+                        final int n = decoder != null ? decoder.read(chunk, 0, chunk.length) : -1;
+                        if (n < 0) {
+                            if (!startNextTrack()) {
+                                waitForWork();
+                            }
+                            continue;
+                        }
+                        chunkOffset = 0;
+                        chunkLength = crossfade(chunk, n, mix);
+                    }
+                    final int written = ring.write(chunk, chunkOffset, chunkLength, epoch, FULL_WAIT_MS);
+                    if (written < 0) {
+                        // the buffer was cleared or truncated, what is left of the chunk belongs to the old epoch
+                        chunkLength = 0;
+                    } else {
+                        chunkOffset += written;
+                        chunkLength -= written;
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            } catch (RuntimeException | IOException e) {
+                Log.e(TAG, "Decoding " + playingPath + " failed", e);
+                synchronized (this) {
+                    endOfStream = ring.getWritten();
+                    notifyAll();
+                }
+            } finally {
+                if (decoder != null) {
+                    decoder.release();
+                    decoder = null;
+                }
+                releaseNextDecoder();
+            }
+        }
+
+        private void seekDecoder(int positionMs) throws IOException {
+            final String path;
+            synchronized (this) {
+                path = playingPath;
+            }
+            if (decoder == null || !decoder.path.equals(path)) {
+                releaseDecoders();
+                decoder = TrackDecoder.open(context, path);
+            } else if (crossfading) {
+                // the next track has to start from its beginning again
+                releaseNextDecoder();
+            }
+            crossfading = false;
+            decoder.seekTo(positionMs * 1000L);
+        }
+
+        private void releaseDecoders() {
+            if (decoder != null) {
+                decoder.release();
+                decoder = null;
+            }
+            releaseNextDecoder();
+            crossfading = false;
+        }
+
+        private void releaseNextDecoder() {
+            if (nextDecoder != null) {
+                nextDecoder.release();
+                nextDecoder = null;
+            }
+            nextDecoderPath = null;
+        }
+
+        /**
+         * Opens the decoder of the requested next track ahead of time, so it can continue right where the current one ends.
+         */
+        private void openNextDecoder() {
+            final String path;
+            synchronized (this) {
+                path = requestedNextPath;
+            }
+            if (crossfading || TextUtils.equals(path, nextDecoderPath)) {
+                return;
+            }
+            releaseNextDecoder();
+            nextDecoderPath = path;
+            if (path == null) {
+                return;
+            }
+            try {
+                final TrackDecoder newDecoder = TrackDecoder.open(context, path);
+                if (newDecoder.getSampleRate() != sampleRate || newDecoder.getChannelCount() != channelCount) {
+                    // the current track just ends and the next one gets its own audio track
+                    newDecoder.release();
+                    return;
+                }
+                nextDecoder = newDecoder;
+            } catch (IOException e) {
+                Log.w(TAG, "Can't decode the next track " + path, e);
+            }
+        }
+
+        /**
+         * Continues with the next track once the current one is decoded completely.
+         *
+         * @return false if there is no next track to continue with
+         */
+        private boolean startNextTrack() {
+            if (decoder != null) {
+                decoder.release();
+                decoder = null;
+            }
+            final TrackDecoder next = nextDecoder;
+            synchronized (this) {
+                // a crossfade commits to the next track, the transition may have been reported and the track after
+                // it requested already while the end of the current one was still decoded
+                if (next == null || endReported || (!crossfading && !TextUtils.equals(requestedNextPath, next.path))) {
+                    endOfStream = ring.getWritten();
+                    notifyAll();
+                    return false;
+                }
+                endOfStream = -1;
+                if (!crossfading) {
+                    nextTrackStart = ring.getWritten();
+                    nextTrackPath = next.path;
+                    nextTrackDurationMs = toMs(next.getDurationUs());
+                }
+                if (TextUtils.equals(requestedNextPath, next.path)) {
+                    // the track after that is yet to be set
+                    requestedNextPath = null;
+                }
+            }
+            decoder = next;
+            nextDecoder = null;
+            nextDecoderPath = null;
+            crossfading = false;
+            return true;
+        }
+
+        private void waitForWork() throws InterruptedException {
+            synchronized (this) {
+                while (!released && seekRequestMs < 0 && !nextTruncated
+                        && (requestedNextPath == null || TextUtils.equals(requestedNextPath, nextDecoderPath) || endReported)) {
+                    wait();
+                }
+            }
+        }
+
+        /**
+         * Mixes the beginning of the next track into the end of the current one.
+         *
+         * @return the number of samples in the chunk
+         */
+        private int crossfade(@NonNull short[] chunk, int count, @NonNull short[] mix) {
+            if (!crossfading) {
+                if (nextDecoder == null || decoder == null || decoder.getDurationUs() <= 0) {
+                    return count;
+                }
+                final long crossfadeUs = PreferenceUtil.getInstance(context).getCrossfadeDuration() * 1000L;
+                final long remainingUs = decoder.getDurationUs() - decoder.getPositionUs();
+                if (remainingUs > crossfadeUs || remainingUs <= 0) {
+                    return count;
+                }
+                synchronized (this) {
+                    if (!TextUtils.equals(requestedNextPath, nextDecoder.path)) {
+                        return count;
+                    }
+                    // the next track is heard from here on
+                    nextTrackStart = ring.getWritten();
+                    nextTrackPath = nextDecoder.path;
+                    nextTrackDurationMs = toMs(nextDecoder.getDurationUs());
+                    crossfading = true;
+                }
+                crossfadeFrames = Math.max(remainingUs * sampleRate / 1000000L, 1);
+                crossfadeDone = 0;
+            }
+            if (nextDecoder == null) {
+                return count;
+            }
+            final int mixed = nextDecoder.readFully(mix, 0, count);
+            final int frames = count / channelCount;
+            for (int frame = 0; frame < frames; frame++) {
+                final float in = Math.min(1f, (float) (crossfadeDone + frame) / crossfadeFrames);
+                for (int channel = 0; channel < channelCount; channel++) {
+                    final int i = frame * channelCount + channel;
+                    final float sample = chunk[i] * (1f - in) + (i < mixed ? mix[i] * in : 0f);
+                    chunk[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+                }
+            }
+            crossfadeDone += frames;
+            return count;
+        }
+
+        private void outputLoop() {
+            final AudioTrack audioTrack = this.audioTrack;
+            if (audioTrack == null) {
+                return;
+            }
+            final short[] chunk = new short[CHUNK_FRAMES * channelCount];
+            // when the remaining samples are surely played after stopping at the end
+            long drainDeadline = -1;
+            try {
+                synchronized (this) {
+                    if (playing) {
+                        audioTrack.play();
+                    }
+                }
+                while (!released) {
+                    if (handleFlush(audioTrack)) {
+                        drainDeadline = -1;
+                    }
+                    synchronized (this) {
+                        while (!released && !flushRequested && (!playing || endReported)) {
+                            wait();
+                        }
+                        if (released || flushRequested) {
+                            continue;
+                        }
+                    }
+
+                    final int n = ring.read(chunk, 0, chunk.length, WAIT_MS);
+                    if (n > 0) {
+                        if (drainDeadline != -1) {
+                            // a next track was set after all
+                            audioTrack.play();
+                            drainDeadline = -1;
+                        }
+                        int offset = 0;
+                        while (offset < n && !released) {
+                            final int written = audioTrack.write(chunk, offset, n - offset);
+                            if (written <= 0) {
+                                break;
+                            }
+                            offset += written;
+                        }
+                    } else if (drainDeadline == -1 && isDecodedCompletely()) {
+                        // stopping plays the rest of what was written, the head never gets there otherwise on some devices
+                        audioTrack.stop();
+                        drainDeadline = SystemClock.elapsedRealtime() + WAIT_MS * 5 + getRemainingMs();
+                    }
+                    reportTransitions(drainDeadline != -1 && SystemClock.elapsedRealtime() >= drainDeadline);
+                }
+            } catch (InterruptedException ignored) {
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Output failed", e);
+            } finally {
+                audioTrack.release();
+            }
+        }
+
+        private synchronized boolean isDecodedCompletely() {
+            return endOfStream != -1 && ring.getRead() >= endOfStream;
+        }
+
+        private synchronized long getRemainingMs() {
+            return Math.max(endOfStream - getPlayedPosition(), 0) / channelCount * 1000 / sampleRate;
+        }
+
+        private boolean handleFlush(@NonNull AudioTrack audioTrack) {
+            synchronized (this) {
+                if (!flushRequested) {
+                    return false;
+                }
+            }
+            audioTrack.pause();
+            audioTrack.flush();
+            synchronized (this) {
+                flushRequested = false;
+                flushBase = ring.getRead();
+                if (playing) {
+                    audioTrack.play();
+                }
+            }
+            return true;
+        }
+
+        private void reportTransitions(boolean drained) {
+            boolean wentToNext = false;
+            boolean ended = false;
+            synchronized (this) {
+                final long played = getPlayedPosition();
+                if (nextTrackStart != -1 && played >= nextTrackStart) {
+                    trackStart = nextTrackStart;
+                    trackStartMs = 0;
+                    playingPath = nextTrackPath != null ? nextTrackPath : playingPath;
+                    durationMs = nextTrackDurationMs;
+                    nextTrackStart = -1;
+                    nextTrackPath = null;
+                    wentToNext = true;
+                }
+                if (endOfStream != -1 && !endReported && nextTrackStart == -1 && (played >= endOfStream || drained)) {
+                    endReported = true;
+                    playing = false;
+                    ended = true;
+                }
+            }
+            if (callbacks != null && session == this) {
+                if (wentToNext) {
+                    callbacks.onTrackWentToNext();
+                }
+                if (ended) {
+                    callbacks.onTrackEnded();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.kabouzeid.gramophone.service;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import com.kabouzeid.gramophone.model.Song;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of what the {@link MusicService} plays, published after every change so other threads can
+ * read it without locking. The progress is extrapolated from the moment the snapshot was taken while playing.
+ */
+public class PlaybackState {
+    public static final PlaybackState EMPTY = new PlaybackState(0, Collections.<Song>emptyList(), -1, Song.EMPTY_SONG,
+            false, false, -1, -1, MusicService.SHUFFLE_MODE_NONE, MusicService.REPEAT_MODE_NONE);
+
+    // increases with every published snapshot
+    public final long version;
+    // can be read while the queue of the service is edited
+    @NonNull
+    public final List<Song> playingQueue;
+    public final int position;
+    @NonNull
+    public final Song currentSong;
+    public final boolean playing;
+    public final int durationMillis;
+    public final int shuffleMode;
+    public final int repeatMode;
+
+    // false while a track that counts as playing is still prepared
+    private final boolean progressing;
+    private final int progressMillis;
+    private final long updateTime;
+
+    public PlaybackState(long version, @NonNull List<Song> playingQueue, int position, @NonNull Song currentSong,
+                         boolean playing, boolean progressing, int progressMillis, int durationMillis, int shuffleMode, int repeatMode) {
+        this.version = version;
+        this.playingQueue = playingQueue;
+        this.position = position;
+        this.currentSong = currentSong;
+        this.playing = playing;
+        this.progressing = progressing;
+        this.progressMillis = progressMillis;
+        this.durationMillis = durationMillis;
+        this.shuffleMode = shuffleMode;
+        this.repeatMode = repeatMode;
+        updateTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return the position in the current track by now, -1 if there is none
+     */
+    public int getProgressMillis() {
+        if (!progressing || progressMillis < 0) {
+            return progressMillis;
+        }
+        final long progress = progressMillis + SystemClock.elapsedRealtime() - updateTime;
+        return (int) (durationMillis > 0 ? Math.min(progress, durationMillis) : progress);
+    }
+}
@@ -0,0 +1,518 @@
+package com.kabouzeid.gramophone.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.kabouzeid.gramophone.helper.FenwickTree;
+import com.kabouzeid.gramophone.helper.ShuffleOrder;
+import com.kabouzeid.gramophone.loader.LibrarySnapshot;
+import com.kabouzeid.gramophone.model.Song;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The playing queue and the original playing queue of the {@link MusicService} in one.
+ * <p/>
+ * The songs are stored as ids in their original order, the playing order is a {@link ShuffleOrder} of them.
+ * {@link Song} objects are only kept for a window around the current position, all other songs are looked up
+ * in the library when they are accessed. Songs that are not part of the library are kept as they were added.
+ * The library is only ever looked up with {@link LibrarySnapshot#peekInstance()}, so the queue can be read and
+ * edited from the main thread without waiting for the MediaStore.
+ * <p/>
+ * Positions are always positions in the playing order, indices are positions in the original order.
+ */
+public class PlayingQueue {
+    // songs kept on each side of the current position
+    private static final int WINDOW_SIZE = 32;
+    // moves over more than size / this many positions rebuild the duration tree instead of updating it
+    private static final int MAX_MOVE_UPDATE_FRACTION = 16;
+
+    private int size;
+    @NonNull
+    private long[] ids = new long[0];
+    // in ms, -1 if not looked up yet
+    @NonNull
+    private long[] durations = new long[0];
+    // the songs inside the window, null outside of it
+    @NonNull
+    private Song[] songs = new Song[0];
+    private int cachedSongCount;
+    @NonNull
+    private ShuffleOrder shuffleOrder = new ShuffleOrder();
+
+    // songs that were added but are not part of the library
+    @NonNull
+    private final HashMap<Long, Song> detachedSongs = new HashMap<>();
+
+    private int windowStart;
+    private int windowEnd;
+
+    // the durations in playing order, only up to date if durationTreeValid
+    @NonNull
+    private final FenwickTree durationTree = new FenwickTree();
+    private boolean durationTreeValid = true;
+
+    // counts the edits, a snapshot stays valid as long as it doesn't change
+    private int modCount;
+    @Nullable
+    private Snapshot snapshot;
+
+    @NonNull
+    private final List<Song> playingList = new SongList(true);
+    @NonNull
+    private final List<Song> originalList = new SongList(false);
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isShuffled() {
+        return shuffleOrder.isShuffled();
+    }
+
+    /**
+     * @return the index of the song at every position, null while not shuffled
+     */
+    @Nullable
+    public int[] getShuffleOrder() {
+        return shuffleOrder.getOrder();
+    }
+
+    public long getShuffleSeed() {
+        return shuffleOrder.getSeed();
+    }
+
+    /**
+     * @return a read only view of the songs in playing order
+     */
+    @NonNull
+    public List<Song> getPlayingList() {
+        return playingList;
+    }
+
+    /**
+     * @return a read only view of the songs in original order
+     */
+    @NonNull
+    public List<Song> getOriginalList() {
+        return originalList;
+    }
+
+    public int getIndex(int position) {
+        return shuffleOrder.getIndex(position);
+    }
+
+    public long getIdAt(int position) {
+        return ids[getIndex(position)];
+    }
+
+    @NonNull
+    public Song getSongAt(int position) {
+        return getSong(getIndex(position), isInWindow(position));
+    }
+
+    /**
+     * @return an immutable copy of the songs in playing order, which can be read from any thread.
+     * It is only copied again after the queue was edited.
+     */
+    @NonNull
+    public List<Song> snapshot() {
+        if (snapshot == null || snapshot.modCount != modCount) {
+            final long[] playingIds = new long[size];
+            final Song[] playingSongs = new Song[size];
+            for (int p = 0; p < size; p++) {
+                final int index = getIndex(p);
+                playingIds[p] = ids[index];
+                playingSongs[p] = songs[index];
+            }
+            snapshot = new Snapshot(LibrarySnapshot.peekInstance(), modCount, playingIds, playingSongs, new HashMap<Long, Song>(detachedSongs));
+        }
+        return snapshot;
+    }
+
+    @NonNull
+    public long[] getOriginalIds() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * @return the sum of the durations of the songs after the position
+     */
+    public long getRemainingDuration(int position) {
+        if (position + 1 >= size) {
+            return 0;
+        }
+        if (!durationTreeValid) {
+            final long[] playingDurations = new long[size];
+            for (int p = 0; p < size; p++) {
+                playingDurations[p] = getDuration(getIndex(p));
+            }
+            durationTree.build(playingDurations, size);
+            durationTreeValid = true;
+        }
+        return durationTree.sum() - durationTree.prefixSum(position + 1);
+    }
+
+    /**
+     * Keeps the songs around the position and drops the rest.
+     */
+    public void setCurrentPosition(int position) {
+        int start = Math.max(0, position - WINDOW_SIZE);
+        int end = Math.min(size, position + WINDOW_SIZE + 1);
+        if (cachedSongCount > 4 * (WINDOW_SIZE + 1)) {
+            // edits moved songs out of the window without dropping them
+            for (int p = 0; p < size; p++) {
+                if (p < start || p >= end) {
+                    uncache(getIndex(p));
+                }
+            }
+        } else {
+            for (int p = windowStart; p < Math.min(windowEnd, size); p++) {
+                if (p < start || p >= end) {
+                    uncache(getIndex(p));
+                }
+            }
+        }
+        windowStart = start;
+        windowEnd = end;
+    }
+
+    public void open(@NonNull List<Song> newSongs) {
+        clear();
+        insert(0, newSongs);
+    }
+
+    /**
+     * Restores the queues from their ids. Songs that are no longer part of the library are left out.
+     *
+     * @param library  the library to check the ids against, resolved by the caller off the main thread
+     * @param order    the index of the song at every position, null if not shuffled
+     * @param position the saved current position
+     * @return the current position in the restored queues, the next song that is left if the current one is gone,
+     * or -1 if the order doesn't fit the ids or no song is left
+     */
+    public int restore(@NonNull LibrarySnapshot library, @NonNull long[] originalIds, @Nullable int[] order, long seed, int position) {
+        final int n = originalIds.length;
+        if (position < 0 || position >= n || !new ShuffleOrder().restore(n, order, seed)) {
+            return -1;
+        }
+
+        // the index every song keeps, -1 for the songs that are left out
+        final int[] newIndices = new int[n];
+        int newSize = 0;
+        for (int i = 0; i < n; i++) {
+            newIndices[i] = library.contains(originalIds[i]) ? newSize++ : -1;
+        }
+        if (newSize == 0) {
+            return -1;
+        }
+        final long[] newIds = new long[newSize];
+        for (int i = 0; i < n; i++) {
+            if (newIndices[i] != -1) {
+                newIds[newIndices[i]] = originalIds[i];
+            }
+        }
+        int newPosition = 0;
+        int[] newOrder = null;
+        if (order != null) {
+            newOrder = new int[newSize];
+            int p = 0;
+            for (int oldPosition = 0; oldPosition < n; oldPosition++) {
+                if (oldPosition == position) {
+                    newPosition = p;
+                }
+                final int index = newIndices[order[oldPosition]];
+                if (index != -1) {
+                    newOrder[p++] = index;
+                }
+            }
+        } else {
+            for (int i = 0; i < position; i++) {
+                if (newIndices[i] != -1) {
+                    newPosition++;
+                }
+            }
+        }
+        final ShuffleOrder restoredOrder = new ShuffleOrder();
+        restoredOrder.restore(newSize, newOrder, seed);
+
+        clear();
+        ensureCapacity(newSize);
+        System.arraycopy(newIds, 0, ids, 0, newSize);
+        Arrays.fill(durations, 0, newSize, -1);
+        size = newSize;
+        shuffleOrder = restoredOrder;
+        durationTreeValid = false;
+        modCount++;
+        // the songs after the current one were all left out
+        return Math.min(newPosition, newSize - 1);
+    }
+
+    /**
+     * Inserts the songs at the same position of the playing order and the original order.
+     *
+     * @param position where to insert the songs, -1 appends them
+     */
+    public void insert(int position, @NonNull List<Song> newSongs) {
+        final int count = newSongs.size();
+        if (count == 0) {
+            return;
+        }
+        modCount++;
+        final int index = position == -1 ? size : position;
+        ensureCapacity(size + count);
+        System.arraycopy(ids, index, ids, index + count, size - index);
+        System.arraycopy(durations, index, durations, index + count, size - index);
+        System.arraycopy(songs, index, songs, index + count, size - index);
+
+        final LibrarySnapshot library = LibrarySnapshot.peekInstance();
+        for (int i = 0; i < count; i++) {
+            final Song song = newSongs.get(i);
+            ids[index + i] = song.id;
+            durations[index + i] = song.duration;
+            songs[index + i] = null;
+            if (!library.contains(song.id)) {
+                detachedSongs.put(song.id, song);
+            }
+        }
+
+        shuffleOrder.insert(position, count);
+        size += count;
+        if (position == -1 || position == size - count) {
+            for (int i = 0; i < count; i++) {
+                durationTree.append(getDuration(index + i));
+            }
+        } else {
+            durationTreeValid = false;
+        }
+    }
+
+    /**
+     * Removes the song at the position from both orders.
+     */
+    public void remove(int position) {
+        final int index = shuffleOrder.remove(position);
+        modCount++;
+        uncache(index);
+        System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+        System.arraycopy(durations, index + 1, durations, index, size - index - 1);
+        System.arraycopy(songs, index + 1, songs, index, size - index - 1);
+        songs[size - 1] = null;
+        size--;
+        if (position == size) {
+            durationTree.removeLast();
+        } else {
+            durationTreeValid = false;
+        }
+    }
+
+    /**
+     * Moves a song in the playing order. While not shuffled the original order is the playing order.
+     */
+    public void move(int from, int to) {
+        // only the durations between from and to change their position
+        final boolean updateDurationTree = durationTreeValid && Math.abs(to - from) <= size / MAX_MOVE_UPDATE_FRACTION;
+        final long movedDuration = updateDurationTree ? getDuration(getIndex(from)) : 0;
+        if (!shuffleOrder.isShuffled()) {
+            moveInArray(ids, from, to);
+            moveInArray(durations, from, to);
+            moveInArray(songs, from, to);
+        }
+        shuffleOrder.move(from, to);
+        modCount++;
+        if (updateDurationTree) {
+            final int step = from < to ? 1 : -1;
+            for (int p = from; p != to; p += step) {
+                // the song now at p came from p + step
+                final long duration = getDuration(getIndex(p));
+                durationTree.add(p, duration - movedDuration);
+                durationTree.add(p + step, movedDuration - duration);
+            }
+        } else {
+            durationTreeValid = false;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(songs, 0, size, null);
+        cachedSongCount = 0;
+        detachedSongs.clear();
+        size = 0;
+        shuffleOrder.clear();
+        windowStart = 0;
+        windowEnd = 0;
+        durationTree.clear();
+        durationTreeValid = true;
+        modCount++;
+    }
+
+    /**
+     * Shuffles the playing order, the song at the current position becomes the first one.
+     */
+    public void shuffle(int current, long seed) {
+        shuffleOrder.shuffle(current, seed);
+        durationTreeValid = false;
+        modCount++;
+    }
+
+    /**
+     * Restores the original order.
+     *
+     * @return the position the song at the current position has in the original order
+     */
+    public int unshuffle(int current) {
+        final int index = shuffleOrder.unshuffle(current);
+        durationTreeValid = false;
+        modCount++;
+        return index;
+    }
+
+    private boolean isInWindow(int position) {
+        return position >= windowStart && position < windowEnd;
+    }
+
+    @NonNull
+    private Song getSong(int index, boolean cache) {
+        Song song = songs[index];
+        if (song != null) {
+            return song;
+        }
+        song = detachedSongs.get(ids[index]);
+        if (song == null) {
+            song = LibrarySnapshot.peekInstance().getSong(ids[index]);
+        }
+        if (cache) {
+            songs[index] = song;
+            cachedSongCount++;
+        }
+        return song;
+    }
+
+    private long getDuration(int index) {
+        if (durations[index] == -1) {
+            final Song song = songs[index] != null ? songs[index] : detachedSongs.get(ids[index]);
+            // no need to create a song just for its duration
+            final long duration = song != null ? song.duration : LibrarySnapshot.peekInstance().getDuration(ids[index]);
+            // songs that are missing from the library don't count
+            durations[index] = Math.max(0, duration);
+        }
+        return durations[index];
+    }
+
+    private void uncache(int index) {
+        if (songs[index] != null) {
+            songs[index] = null;
+            cachedSongCount--;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > ids.length) {
+            capacity = Math.max(capacity, ids.length + (ids.length >> 1));
+            ids = Arrays.copyOf(ids, capacity);
+            durations = Arrays.copyOf(durations, capacity);
+            songs = Arrays.copyOf(songs, capacity);
+        }
+    }
+
+    private static void moveInArray(@NonNull long[] array, int from, int to) {
+        final long value = array[from];
+        if (from < to) {
+            System.arraycopy(array, from + 1, array, from, to - from);
+        } else {
+            System.arraycopy(array, to, array, to + 1, from - to);
+        }
+        array[to] = value;
+    }
+
+    private static void moveInArray(@NonNull Object[] array, int from, int to) {
+        final Object value = array[from];
+        if (from < to) {
+            System.arraycopy(array, from + 1, array, from, to - from);
+        } else {
+            System.arraycopy(array, to, array, to + 1, from - to);
+        }
+        array[to] = value;
+    }
+
+    private class SongList extends AbstractList<Song> implements RandomAccess {
+        private final boolean playingOrder;
+
+        SongList(boolean playingOrder) {
+            this.playingOrder = playingOrder;
+        }
+
+        @Override
+        public Song get(int location) {
+            if (location < 0 || location >= size) {
+                throw new IndexOutOfBoundsException("Index: " + location + ", Size: " + size);
+            }
+            return playingOrder ? getSongAt(location) : getSong(location, false);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    private static class Snapshot extends AbstractList<Song> implements RandomAccess {
+        // the library the songs are looked up in, so the snapshot stays the same when it changes
+        @NonNull
+        private final LibrarySnapshot library;
+        private final int modCount;
+        @NonNull
+        private final long[] ids;
+        // the songs of the queue's window, null for the others, never written after construction
+        @NonNull
+        private final Song[] songs;
+        // the songs that were looked up from the library since, readers on any thread may fill it
+        @NonNull
+        private final AtomicReferenceArray<Song> lookedUpSongs;
+        @NonNull
+        private final HashMap<Long, Song> detachedSongs;
+
+        Snapshot(@NonNull LibrarySnapshot library, int modCount, @NonNull long[] ids, @NonNull Song[] songs, @NonNull HashMap<Long, Song> detachedSongs) {
+            this.library = library;
+            this.modCount = modCount;
+            this.ids = ids;
+            this.songs = songs;
+            this.lookedUpSongs = new AtomicReferenceArray<>(ids.length);
+            this.detachedSongs = detachedSongs;
+        }
+
+        @Override
+        public Song get(int location) {
+            if (location < 0 || location >= ids.length) {
+                throw new IndexOutOfBoundsException("Index: " + location + ", Size: " + ids.length);
+            }
+            Song song = songs[location];
+            if (song == null) {
+                song = detachedSongs.get(ids[location]);
+            }
+            if (song == null) {
+                song = lookedUpSongs.get(location);
+            }
+            if (song == null) {
+                song = library.getSong(ids[location]);
+                // adapters binding from the snapshot look each song up only once
+                lookedUpSongs.set(location, song);
+            }
+            return song;
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.kabouzeid.gramophone.service;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.kabouzeid.gramophone.glide.audiocover.EmbeddedPictureCache;
+import com.kabouzeid.gramophone.model.Song;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Warms the tracks that are played next on a background thread, so skipping to them doesn't wait for slow storage.
+ * The beginning of each file is read once, which pulls the headers into the page cache before a player opens it,
+ * and its embedded cover is put into the {@link EmbeddedPictureCache} the cover loader reads from.
+ */
+public class TrackLookahead {
+    public static final String TAG = TrackLookahead.class.getSimpleName();
+
+    private static final int HEADER_BYTES = 64 * 1024;
+    private static final int MAX_WARMED_FILES = 32;
+
+    // the files whose headers were read lately
+    private final LruCache<String, Boolean> warmedFiles = new LruCache<>(MAX_WARMED_FILES);
+
+    @NonNull
+    private final HandlerThread thread;
+    @NonNull
+    private final Handler handler;
+    // counts the calls of warm(), a running warm-up stops once it is outdated
+    private volatile int generation;
+
+    public TrackLookahead() {
+        thread = new HandlerThread("TrackLookahead", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Warms the songs in the given order, songs that are still waiting from an earlier call are dropped.
+     */
+    public void warm(@NonNull List<Song> songs) {
+        final List<String> paths = new ArrayList<>(songs.size());
+        for (Song song : songs) {
+            if (!TextUtils.isEmpty(song.data)) {
+                paths.add(song.data);
+            }
+        }
+        final int warmGeneration = ++generation;
+        handler.removeCallbacksAndMessages(null);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (String path : paths) {
+                    if (warmGeneration != generation) {
+                        return;
+                    }
+                    warmFile(path);
+                }
+            }
+        });
+    }
+
+    public void release() {
+        handler.removeCallbacksAndMessages(null);
+        thread.quit();
+    }
+
+    private void warmFile(@NonNull String path) {
+        if (warmedFiles.get(path) == null) {
+            readHeader(path);
+            warmedFiles.put(path, Boolean.TRUE);
+        }
+        EmbeddedPictureCache.warm(path);
+    }
+
+    private static void readHeader(@NonNull String path) {
+        final byte[] buffer = new byte[8192];
+        InputStream in = null;
+        try {
+            in = new FileInputStream(path);
+            int total = 0;
+            int n;
+            while (total < HEADER_BYTES && (n = in.read(buffer)) != -1) {
+                total += n;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read ahead " + path, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.kabouzeid.gramophone.service.playback;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Fixed size ring buffer of interleaved 16 bit PCM samples between a decoding and a playing thread.
+ * <p/>
+ * Positions are counted from the creation of the buffer, so a position stays valid while the buffer wraps around.
+ * Every write belongs to an epoch, clearing or truncating the buffer starts a new one and writes of older epochs
+ * are rejected, so nothing that was decoded before is written behind the cut.
+ */
+public class PcmRingBuffer {
+    @NonNull
+    private final short[] buffer;
+    private long written;
+    private long read;
+    private int epoch;
+    private boolean closed;
+
+    /**
+     * @param capacity in samples, a multiple of the channel count so frames are never split
+     */
+    public PcmRingBuffer(int capacity) {
+        buffer = new short[capacity];
+    }
+
+    public synchronized int getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    public synchronized long getRead() {
+        return read;
+    }
+
+    /**
+     * Writes as many samples as fit, waits up to the timeout if the buffer is full.
+     *
+     * @return the number of samples written or -1 if the epoch is over or the buffer closed
+     */
+    public synchronized int write(@NonNull short[] src, int offset, int count, int epoch, long timeoutMs) throws InterruptedException {
+        if (!closed && this.epoch == epoch && written - read == buffer.length) {
+            wait(timeoutMs);
+        }
+        if (closed || this.epoch != epoch) {
+            return -1;
+        }
+        final int n = (int) Math.min(count, buffer.length - (written - read));
+        final int start = (int) (written % buffer.length);
+        final int first = Math.min(n, buffer.length - start);
+        System.arraycopy(src, offset, buffer, start, first);
+        System.arraycopy(src, offset + first, buffer, 0, n - first);
+        written += n;
+        notifyAll();
+        return n;
+    }
+
+    /**
+     * Reads as many samples as there are, waits up to the timeout if the buffer is empty.
+     *
+     * @return the number of samples read
+     */
+    public synchronized int read(@NonNull short[] dst, int offset, int count, long timeoutMs) throws InterruptedException {
+        if (!closed && written == read) {
+            wait(timeoutMs);
+        }
+        final int n = (int) Math.min(count, written - read);
+        final int start = (int) (read % buffer.length);
+        final int first = Math.min(n, buffer.length - start);
+        System.arraycopy(buffer, start, dst, offset, first);
+        System.arraycopy(buffer, 0, dst, offset + first, n - first);
+        read += n;
+        notifyAll();
+        return n;
+    }
+
+    /**
+     * Drops all samples that were not read yet.
+     */
+    public synchronized void clear() {
+        written = read;
+        epoch++;
+        notifyAll();
+    }
+
+    /**
+     * Drops the samples after the position if none of them was read yet.
+     *
+     * @return false if some of them were read already
+     */
+    public synchronized boolean truncate(long position) {
+        if (position < read || position > written) {
+            return false;
+        }
+        written = position;
+        epoch++;
+        notifyAll();
+        return true;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
@@ -9,6 +9,17 @@ public interface Playback {
 
     boolean setDataSource(String path);
 
+    /**
+     * Prepares the track without blocking, {@link PlaybackCallbacks#onPrepared(boolean)} is called once it is done.
+     * A prepare that is still running is cancelled, so only the last of several calls reports back.
+     * Starting and seeking before that is applied once the track is prepared.
+     *
+     * @return false if the track could not even be opened
+     */
+    boolean setDataSourceAsync(String path);
+
+    boolean isPreparing();
+
     void setNextDataSource(@Nullable String path);
 
     void setCallbacks(PlaybackCallbacks callbacks);
@@ -38,6 +49,8 @@ public interface Playback {
     int getAudioSessionId();
 
     interface PlaybackCallbacks {
+        void onPrepared(boolean success);
+
         void onTrackWentToNext();
 
         void onTrackEnded();
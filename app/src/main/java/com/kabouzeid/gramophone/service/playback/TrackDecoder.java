@@ -0,0 +1,256 @@
+package com.kabouzeid.gramophone.service.playback;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes the first audio track of a file into interleaved 16 bit PCM with {@link MediaCodec}.
+ * Not thread safe, a decoder belongs to the thread that reads from it.
+ */
+@SuppressWarnings("deprecation")
+public class TrackDecoder {
+    private static final long TIMEOUT_US = 10000;
+
+    @NonNull
+    public final String path;
+    @NonNull
+    private final MediaExtractor extractor;
+    @NonNull
+    private final MediaCodec codec;
+    // -1 if unknown
+    private final long durationUs;
+    private int sampleRate;
+    private int channelCount;
+
+    private ByteBuffer[] inputBuffers;
+    private ByteBuffer[] outputBuffers;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private boolean inputDone;
+    private boolean outputDone;
+
+    // decoded samples that were not read yet
+    @NonNull
+    private short[] pending = new short[0];
+    private int pendingOffset;
+    private int pendingLength;
+
+    // output before this presentation time is dropped after a seek, -1 if nothing is dropped
+    private long skipUntilUs = -1;
+    private long baseUs;
+    private long framesRead;
+
+    private TrackDecoder(@NonNull String path, @NonNull MediaExtractor extractor, @NonNull MediaCodec codec, @NonNull MediaFormat format) {
+        this.path = path;
+        this.extractor = extractor;
+        this.codec = codec;
+        durationUs = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : -1;
+        sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        inputBuffers = codec.getInputBuffers();
+        outputBuffers = codec.getOutputBuffers();
+    }
+
+    /**
+     * Opens the file and decodes the first samples, so the output format is known.
+     *
+     * @throws IOException if the file can't be read or has no audio track a decoder can handle
+     */
+    @NonNull
+    public static TrackDecoder open(@NonNull Context context, @NonNull String path) throws IOException {
+        final MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            if (path.startsWith("content://")) {
+                extractor.setDataSource(context, Uri.parse(path), null);
+            } else {
+                extractor.setDataSource(path);
+            }
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                final MediaFormat trackFormat = extractor.getTrackFormat(i);
+                final String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                    break;
+                }
+            }
+            if (format == null) {
+                throw new IOException("No audio track in " + path);
+            }
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            final TrackDecoder decoder = new TrackDecoder(path, extractor, codec, format);
+            while (decoder.pendingLength == 0 && !decoder.outputDone) {
+                decoder.decode();
+            }
+            return decoder;
+        } catch (IOException | RuntimeException e) {
+            if (codec != null) {
+                codec.release();
+            }
+            extractor.release();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * @return the duration in microseconds or -1 if unknown
+     */
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    /**
+     * @return the presentation time of the next sample that is read
+     */
+    public long getPositionUs() {
+        return baseUs + framesRead * 1000000L / sampleRate;
+    }
+
+    /**
+     * Reads whole frames.
+     *
+     * @param count a multiple of the channel count
+     * @return the number of samples read or -1 at the end of the track
+     */
+    public int read(@NonNull short[] dst, int offset, int count) {
+        while (pendingLength == 0) {
+            if (outputDone) {
+                return -1;
+            }
+            decode();
+        }
+        final int n = Math.min(count, pendingLength);
+        System.arraycopy(pending, pendingOffset, dst, offset, n);
+        pendingOffset += n;
+        pendingLength -= n;
+        framesRead += n / channelCount;
+        return n;
+    }
+
+    /**
+     * Reads until count samples are read or the track ended.
+     *
+     * @return the number of samples read
+     */
+    public int readFully(@NonNull short[] dst, int offset, int count) {
+        int total = 0;
+        while (total < count) {
+            final int n = read(dst, offset + total, count - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Seeks to the exact sample, the samples between the previous sync sample and the position are decoded and dropped.
+     */
+    public void seekTo(long positionUs) {
+        extractor.seekTo(positionUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        codec.flush();
+        inputDone = false;
+        outputDone = false;
+        pendingOffset = 0;
+        pendingLength = 0;
+        skipUntilUs = positionUs;
+        baseUs = positionUs;
+        framesRead = 0;
+    }
+
+    public void release() {
+        try {
+            codec.stop();
+        } catch (IllegalStateException ignored) {
+        }
+        codec.release();
+        extractor.release();
+    }
+
+    private void decode() {
+        if (!inputDone) {
+            final int inputIndex = codec.dequeueInputBuffer(TIMEOUT_US);
+            if (inputIndex >= 0) {
+                final ByteBuffer buffer = inputBuffers[inputIndex];
+                buffer.clear();
+                final int size = extractor.readSampleData(buffer, 0);
+                if (size < 0) {
+                    codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    inputDone = true;
+                } else {
+                    codec.queueInputBuffer(inputIndex, 0, size, extractor.getSampleTime(), 0);
+                    extractor.advance();
+                }
+            }
+        }
+
+        final int outputIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+        if (outputIndex >= 0) {
+            if (info.size > 0) {
+                final ByteBuffer buffer = outputBuffers[outputIndex];
+                buffer.position(info.offset);
+                buffer.limit(info.offset + info.size);
+                final int samples = info.size / 2;
+                if (pending.length < samples) {
+                    pending = new short[samples];
+                }
+                buffer.order(ByteOrder.nativeOrder()).asShortBuffer().get(pending, 0, samples);
+                pendingOffset = 0;
+                pendingLength = samples;
+                if (skipUntilUs != -1) {
+                    skip(info.presentationTimeUs);
+                }
+            }
+            codec.releaseOutputBuffer(outputIndex, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                outputDone = true;
+            }
+        } else if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            outputBuffers = codec.getOutputBuffers();
+        } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            final MediaFormat format = codec.getOutputFormat();
+            sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        }
+    }
+
+    /**
+     * Drops the frames of the pending output that lie before the seek position.
+     */
+    private void skip(long presentationTimeUs) {
+        final long frames = (skipUntilUs - presentationTimeUs) * sampleRate / 1000000L;
+        if (frames <= 0) {
+            skipUntilUs = -1;
+            return;
+        }
+        final long samples = frames * channelCount;
+        if (samples >= pendingLength) {
+            pendingLength = 0;
+        } else {
+            pendingOffset = (int) samples;
+            pendingLength -= (int) samples;
+            skipUntilUs = -1;
+        }
+    }
+}
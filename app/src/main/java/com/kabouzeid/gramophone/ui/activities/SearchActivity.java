@@ -1,10 +1,11 @@
 package com.kabouzeid.gramophone.ui.activities;
 
 import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.NonNull;
-import android.support.v4.app.LoaderManager;
-import android.support.v4.content.Loader;
+import android.support.annotation.Nullable;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
@@ -19,24 +20,26 @@ import android.widget.TextView;
 
 import com.kabouzeid.appthemehelper.ThemeStore;
 import com.kabouzeid.gramophone.adapter.SearchAdapter;
-import com.kabouzeid.gramophone.interfaces.LoaderIds;
 import com.kabouzeid.gramophone.loader.AlbumLoader;
 import com.kabouzeid.gramophone.loader.ArtistLoader;
 import com.kabouzeid.gramophone.loader.SongLoader;
-import com.kabouzeid.gramophone.misc.WrappedAsyncTaskLoader;
 import com.kabouzeid.gramophone.ui.activities.base.AbsMusicServiceActivity;
 import com.kabouzeid.gramophone.util.Util;
 
 import org.omnirom.gramophone.R;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-public class SearchActivity extends AbsMusicServiceActivity implements SearchView.OnQueryTextListener, LoaderManager.LoaderCallbacks<List<Object>> {
+public class SearchActivity extends AbsMusicServiceActivity implements SearchView.OnQueryTextListener {
     public static final String TAG = SearchActivity.class.getSimpleName();
     public static final String QUERY = "query";
-    private static final int LOADER_ID = LoaderIds.SEARCH_ACTIVITY;
+    /**
+     * Typing only starts a search once the query didn't change for this long.
+     */
+    private static final long SEARCH_DELAY_MILLIS = 200;
 
     RecyclerView recyclerView;
     Toolbar toolbar;
@@ -47,6 +50,16 @@ public class SearchActivity extends AbsMusicServiceActivity implements SearchVie
     private SearchAdapter adapter;
     private String query;
 
+    private final Handler handler = new Handler();
+    private final Runnable searchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startSearch();
+        }
+    };
+    @Nullable
+    private SearchTask searchTask;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -67,6 +80,12 @@ public class SearchActivity extends AbsMusicServiceActivity implements SearchVie
                 super.onChanged();
                 empty.setVisibility(adapter.getItemCount() < 1 ? View.VISIBLE : View.GONE);
             }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                super.onItemRangeInserted(positionStart, itemCount);
+                onChanged();
+            }
         });
         recyclerView.setAdapter(adapter);
 
@@ -84,7 +103,16 @@ public class SearchActivity extends AbsMusicServiceActivity implements SearchVie
             query = savedInstanceState.getString(QUERY);
         }
 
-        getSupportLoaderManager().initLoader(LOADER_ID, null, this);
+        startSearch();
+    }
+
+    @Override
+    protected void onDestroy() {
+        handler.removeCallbacks(searchRunnable);
+        if (searchTask != null) {
+            searchTask.cancel(false);
+        }
+        super.onDestroy();
     }
 
     @Override
@@ -152,13 +180,38 @@ public class SearchActivity extends AbsMusicServiceActivity implements SearchVie
 
     private void search(@NonNull String query) {
         this.query = query;
-        getSupportLoaderManager().restartLoader(LOADER_ID, null, this);
+        handler.removeCallbacks(searchRunnable);
+        if (TextUtils.isEmpty(query)) {
+            startSearch();
+        } else {
+            handler.postDelayed(searchRunnable, SEARCH_DELAY_MILLIS);
+        }
+    }
+
+    private void startSearch() {
+        handler.removeCallbacks(searchRunnable);
+        // the old search stops after the category it is working on, its results are dropped
+        if (searchTask != null) {
+            searchTask.cancel(false);
+        }
+        searchTask = new SearchTask(this, query);
+        searchTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void onSearchResults(@NonNull SearchTask task, @NonNull List<Object> results, boolean first) {
+        if (task != searchTask) return;
+        // the previous results stay visible until the first category of the new ones is ready
+        if (first) {
+            adapter.swapDataSet(results);
+        } else {
+            adapter.addItems(results);
+        }
     }
 
     @Override
     public void onMediaStoreChanged() {
         super.onMediaStoreChanged();
-        getSupportLoaderManager().restartLoader(LOADER_ID, null, this);
+        startSearch();
     }
 
     @Override
@@ -180,52 +233,80 @@ public class SearchActivity extends AbsMusicServiceActivity implements SearchVie
         }
     }
 
-    @Override
-    public Loader<List<Object>> onCreateLoader(int id, Bundle args) {
-        return new AsyncSearchResultLoader(this, query);
-    }
+    /**
+     * Searches songs, artists and albums one after another and hands each category
+     * to the activity as soon as it is ready.
+     */
+    private static class SearchTask extends AsyncTask<Void, List<Object>, Boolean> {
+        private final WeakReference<SearchActivity> activityReference;
+        private final Context context;
+        private final String query;
+        private final String songsHeader;
+        private final String artistsHeader;
+        private final String albumsHeader;
+        private boolean published;
+
+        SearchTask(@NonNull SearchActivity activity, String query) {
+            activityReference = new WeakReference<>(activity);
+            context = activity.getApplicationContext();
+            this.query = query;
+            songsHeader = activity.getString(R.string.songs);
+            artistsHeader = activity.getString(R.string.artists);
+            albumsHeader = activity.getString(R.string.albums);
+        }
 
-    @Override
-    public void onLoadFinished(Loader<List<Object>> loader, List<Object> data) {
-        adapter.swapDataSet(data);
-    }
+        @SuppressWarnings("unchecked")
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            boolean found = false;
+            if (TextUtils.isEmpty(query)) return found;
+
+            List songs = SongLoader.getSongs(context, query);
+            if (isCancelled()) return found;
+            if (!songs.isEmpty()) {
+                publishProgress(makeCategory(songsHeader, songs));
+                found = true;
+            }
 
-    @Override
-    public void onLoaderReset(Loader<List<Object>> loader) {
-        adapter.swapDataSet(Collections.emptyList());
-    }
+            List artists = ArtistLoader.getArtists(context, query);
+            if (isCancelled()) return found;
+            if (!artists.isEmpty()) {
+                publishProgress(makeCategory(artistsHeader, artists));
+                found = true;
+            }
 
-    private static class AsyncSearchResultLoader extends WrappedAsyncTaskLoader<List<Object>> {
-        private final String query;
+            List albums = AlbumLoader.getAlbums(context, query);
+            if (isCancelled()) return found;
+            if (!albums.isEmpty()) {
+                publishProgress(makeCategory(albumsHeader, albums));
+                found = true;
+            }
+            return found;
+        }
 
-        public AsyncSearchResultLoader(Context context, String query) {
-            super(context);
-            this.query = query;
+        @Override
+        protected void onProgressUpdate(List<Object>... categories) {
+            // progress posted right before cancel() would still arrive
+            SearchActivity activity = activityReference.get();
+            if (isCancelled() || activity == null) return;
+            activity.onSearchResults(this, categories[0], !published);
+            published = true;
         }
 
         @Override
-        public List<Object> loadInBackground() {
-            List<Object> results = new ArrayList<>();
-            if (!TextUtils.isEmpty(query)) {
-                List songs = SongLoader.getSongs(getContext(), query);
-                if (!songs.isEmpty()) {
-                    results.add(getContext().getResources().getString(R.string.songs));
-                    results.addAll(songs);
-                }
-
-                List artists = ArtistLoader.getArtists(getContext(), query);
-                if (!artists.isEmpty()) {
-                    results.add(getContext().getResources().getString(R.string.artists));
-                    results.addAll(artists);
-                }
-
-                List albums = AlbumLoader.getAlbums(getContext(), query);
-                if (!albums.isEmpty()) {
-                    results.add(getContext().getResources().getString(R.string.albums));
-                    results.addAll(albums);
-                }
+        protected void onPostExecute(Boolean found) {
+            SearchActivity activity = activityReference.get();
+            if (activity != null && !found) {
+                activity.onSearchResults(this, new ArrayList<Object>(), true);
             }
-            return results;
+        }
+
+        @NonNull
+        private static List<Object> makeCategory(@NonNull String header, @NonNull List<?> items) {
+            List<Object> category = new ArrayList<>(items.size() + 1);
+            category.add(header);
+            category.addAll(items);
+            return category;
         }
     }
 }
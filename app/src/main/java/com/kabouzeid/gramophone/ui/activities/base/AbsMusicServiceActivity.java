@@ -14,6 +14,7 @@ import android.support.annotation.Nullable;
 
 import com.kabouzeid.gramophone.helper.MusicPlayerRemote;
 import com.kabouzeid.gramophone.interfaces.MusicServiceEventListener;
+import com.kabouzeid.gramophone.loader.LibrarySnapshot;
 import com.kabouzeid.gramophone.service.MusicService;
 
 import org.omnirom.gramophone.R;
@@ -207,6 +208,8 @@ public abstract class AbsMusicServiceActivity extends AbsBaseActivity implements
     @Override
     protected void onHasPermissionsChanged(boolean hasPermissions) {
         super.onHasPermissionsChanged(hasPermissions);
+        // the library has to be read again with the new permissions
+        LibrarySnapshot.invalidate();
         Intent intent = new Intent(MusicService.MEDIA_STORE_CHANGED);
         intent.putExtra("from_permissions_changed", true); // just in case we need to know this at some point
         sendBroadcast(intent);
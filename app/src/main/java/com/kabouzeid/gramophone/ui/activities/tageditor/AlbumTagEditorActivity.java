@@ -179,7 +179,7 @@ public class AlbumTagEditorActivity extends AbsTagEditorActivity implements Text
     @NonNull
     @Override
     protected List<String> getSongPaths() {
-        ArrayList<Song> songs = AlbumLoader.getAlbum(this, getId()).songs;
+        List<Song> songs = AlbumLoader.getAlbum(this, getId()).songs;
         ArrayList<String> paths = new ArrayList<>(songs.size());
         for (Song song : songs) {
             paths.add(song.data);
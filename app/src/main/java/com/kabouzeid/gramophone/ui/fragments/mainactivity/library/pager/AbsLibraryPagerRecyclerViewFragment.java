@@ -82,6 +82,18 @@ public abstract class AbsLibraryPagerRecyclerViewFragment<A extends RecyclerView
                 super.onChanged();
                 checkIsEmpty();
             }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                super.onItemRangeInserted(positionStart, itemCount);
+                checkIsEmpty();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                super.onItemRangeRemoved(positionStart, itemCount);
+                checkIsEmpty();
+            }
         });
     }
 
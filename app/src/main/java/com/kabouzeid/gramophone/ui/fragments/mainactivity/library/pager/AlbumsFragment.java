@@ -3,13 +3,18 @@ package com.kabouzeid.gramophone.ui.fragments.mainactivity.library.pager;
 import android.content.Context;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.GridLayoutManager;
 
 import com.kabouzeid.gramophone.adapter.album.AlbumAdapter;
+import com.kabouzeid.gramophone.adapter.base.StableIdDiffCallback;
 import com.kabouzeid.gramophone.interfaces.LoaderIds;
 import com.kabouzeid.gramophone.loader.AlbumLoader;
+import com.kabouzeid.gramophone.loader.LibraryChangeSet;
+import com.kabouzeid.gramophone.loader.LibrarySnapshot;
 import com.kabouzeid.gramophone.misc.WrappedAsyncTaskLoader;
 import com.kabouzeid.gramophone.model.Album;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
@@ -26,9 +31,16 @@ public class AlbumsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFra
 
     private static final int LOADER_ID = LoaderIds.ALBUMS_FRAGMENT;
 
+    // the changes to apply item by item with the next load, null to rebind everything
+    @Nullable
+    private LibraryChangeSet pendingChangeSet;
+    // the version of the library the list shows
+    private long libraryVersion;
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
+        libraryVersion = LibrarySnapshot.getVersion();
         getLoaderManager().initLoader(LOADER_ID, null, this);
     }
 
@@ -99,17 +111,31 @@ public class AlbumsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFra
 
     @Override
     public void onMediaStoreChanged() {
+        // read first, a change that happens in between is reported again with the next event
+        final long version = LibrarySnapshot.getVersion();
+        LibraryChangeSet changeSet = LibrarySnapshot.getChangesSince(libraryVersion);
+        if (changeSet != null && changeSet.isEmpty()) return;
+        libraryVersion = version;
+        pendingChangeSet = changeSet != null && changeSet.isGranular() ? changeSet : null;
         getLoaderManager().restartLoader(LOADER_ID, null, this);
     }
 
     @Override
     public Loader<ArrayList<Album>> onCreateLoader(int id, Bundle args) {
-        return new AsyncAlbumLoader(getActivity());
+        final LibraryChangeSet changeSet = pendingChangeSet;
+        pendingChangeSet = null;
+        return new AsyncAlbumLoader(getActivity(), changeSet != null && getAdapter() != null ? getAdapter().getDataSet() : null, changeSet);
     }
 
     @Override
     public void onLoadFinished(Loader<ArrayList<Album>> loader, ArrayList<Album> data) {
-        getAdapter().swapDataSet(data);
+        final AsyncAlbumLoader albumLoader = (AsyncAlbumLoader) loader;
+        final DiffUtil.DiffResult diffResult = albumLoader.takeDiffResult();
+        if (diffResult != null) {
+            getAdapter().swapDataSetGranular(data, albumLoader.oldDataSet, diffResult);
+        } else {
+            getAdapter().swapDataSet(data);
+        }
     }
 
     @Override
@@ -118,13 +144,43 @@ public class AlbumsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFra
     }
 
     private static class AsyncAlbumLoader extends WrappedAsyncTaskLoader<ArrayList<Album>> {
-        public AsyncAlbumLoader(Context context) {
+        @Nullable
+        final ArrayList<Album> oldDataSet;
+        @Nullable
+        private final LibraryChangeSet changeSet;
+        @Nullable
+        private volatile DiffUtil.DiffResult diffResult;
+
+        /**
+         * @param oldDataSet the shown data set, the new one is diffed against it if there is a change set
+         */
+        public AsyncAlbumLoader(Context context, @Nullable ArrayList<Album> oldDataSet, @Nullable LibraryChangeSet changeSet) {
             super(context);
+            this.oldDataSet = oldDataSet;
+            this.changeSet = changeSet;
         }
 
         @Override
         public ArrayList<Album> loadInBackground() {
+            final ArrayList<Album> data = load();
+            if (oldDataSet != null && changeSet != null && !oldDataSet.isEmpty() && !data.isEmpty()) {
+                diffResult = StableIdDiffCallback.diffAlbums(oldDataSet, data, changeSet);
+            }
+            return data;
+        }
+
+        private ArrayList<Album> load() {
             return AlbumLoader.getAllAlbums(getContext());
         }
+
+        /**
+         * @return the diff from the old data set to the loaded one, only once
+         */
+        @Nullable
+        DiffUtil.DiffResult takeDiffResult() {
+            final DiffUtil.DiffResult result = diffResult;
+            diffResult = null;
+            return result;
+        }
     }
 }
@@ -3,13 +3,18 @@ package com.kabouzeid.gramophone.ui.fragments.mainactivity.library.pager;
 import android.content.Context;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.GridLayoutManager;
 
 import com.kabouzeid.gramophone.adapter.artist.ArtistAdapter;
+import com.kabouzeid.gramophone.adapter.base.StableIdDiffCallback;
 import com.kabouzeid.gramophone.interfaces.LoaderIds;
 import com.kabouzeid.gramophone.loader.ArtistLoader;
+import com.kabouzeid.gramophone.loader.LibraryChangeSet;
+import com.kabouzeid.gramophone.loader.LibrarySnapshot;
 import com.kabouzeid.gramophone.misc.WrappedAsyncTaskLoader;
 import com.kabouzeid.gramophone.model.Artist;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
@@ -27,9 +32,16 @@ public class ArtistsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFr
 
     private static final int LOADER_ID = LoaderIds.ARTISTS_FRAGMENT;
 
+    // the changes to apply item by item with the next load, null to rebind everything
+    @Nullable
+    private LibraryChangeSet pendingChangeSet;
+    // the version of the library the list shows
+    private long libraryVersion;
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
+        libraryVersion = LibrarySnapshot.getVersion();
         getLoaderManager().initLoader(LOADER_ID, null, this);
     }
 
@@ -60,6 +72,12 @@ public class ArtistsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFr
 
     @Override
     public void onMediaStoreChanged() {
+        // read first, a change that happens in between is reported again with the next event
+        final long version = LibrarySnapshot.getVersion();
+        LibraryChangeSet changeSet = LibrarySnapshot.getChangesSince(libraryVersion);
+        if (changeSet != null && changeSet.isEmpty()) return;
+        libraryVersion = version;
+        pendingChangeSet = changeSet != null && changeSet.isGranular() ? changeSet : null;
         getLoaderManager().restartLoader(LOADER_ID, null, this);
     }
 
@@ -107,13 +125,21 @@ public class ArtistsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFr
 
     @Override
     public Loader<ArrayList<Artist>> onCreateLoader(int id, Bundle args) {
-        return new AsyncArtistLoader(getActivity());
+        final LibraryChangeSet changeSet = pendingChangeSet;
+        pendingChangeSet = null;
+        return new AsyncArtistLoader(getActivity(), changeSet != null && getAdapter() != null ? getAdapter().getDataSet() : null, changeSet);
     }
 
 
     @Override
     public void onLoadFinished(Loader<ArrayList<Artist>> loader, ArrayList<Artist> data) {
-        getAdapter().swapDataSet(data);
+        final AsyncArtistLoader artistLoader = (AsyncArtistLoader) loader;
+        final DiffUtil.DiffResult diffResult = artistLoader.takeDiffResult();
+        if (diffResult != null) {
+            getAdapter().swapDataSetGranular(data, artistLoader.oldDataSet, diffResult);
+        } else {
+            getAdapter().swapDataSet(data);
+        }
     }
 
 
@@ -123,13 +149,43 @@ public class ArtistsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFr
     }
 
     private static class AsyncArtistLoader extends WrappedAsyncTaskLoader<ArrayList<Artist>> {
-        public AsyncArtistLoader(Context context) {
+        @Nullable
+        final ArrayList<Artist> oldDataSet;
+        @Nullable
+        private final LibraryChangeSet changeSet;
+        @Nullable
+        private volatile DiffUtil.DiffResult diffResult;
+
+        /**
+         * @param oldDataSet the shown data set, the new one is diffed against it if there is a change set
+         */
+        public AsyncArtistLoader(Context context, @Nullable ArrayList<Artist> oldDataSet, @Nullable LibraryChangeSet changeSet) {
             super(context);
+            this.oldDataSet = oldDataSet;
+            this.changeSet = changeSet;
         }
 
         @Override
         public ArrayList<Artist> loadInBackground() {
+            final ArrayList<Artist> data = load();
+            if (oldDataSet != null && changeSet != null && !oldDataSet.isEmpty() && !data.isEmpty()) {
+                diffResult = StableIdDiffCallback.diffArtists(oldDataSet, data, changeSet);
+            }
+            return data;
+        }
+
+        private ArrayList<Artist> load() {
             return ArtistLoader.getAllArtists(getContext());
         }
+
+        /**
+         * @return the diff from the old data set to the loaded one, only once
+         */
+        @Nullable
+        DiffUtil.DiffResult takeDiffResult() {
+            final DiffUtil.DiffResult result = diffResult;
+            diffResult = null;
+            return result;
+        }
     }
 }
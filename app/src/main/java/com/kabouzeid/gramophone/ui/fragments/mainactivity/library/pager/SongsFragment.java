@@ -3,14 +3,18 @@ package com.kabouzeid.gramophone.ui.fragments.mainactivity.library.pager;
 import android.content.Context;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.GridLayoutManager;
 
+import com.kabouzeid.gramophone.adapter.base.StableIdDiffCallback;
 import com.kabouzeid.gramophone.adapter.song.ShuffleButtonSongAdapter;
 import com.kabouzeid.gramophone.adapter.song.SongAdapter;
 import com.kabouzeid.gramophone.interfaces.LoaderIds;
-import com.kabouzeid.gramophone.loader.SongLoader;
+import com.kabouzeid.gramophone.loader.LibraryChangeSet;
+import com.kabouzeid.gramophone.loader.LibrarySnapshot;
 import com.kabouzeid.gramophone.misc.WrappedAsyncTaskLoader;
 import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
@@ -18,19 +22,27 @@ import com.kabouzeid.gramophone.util.PreferenceUtil;
 import org.omnirom.gramophone.R;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author Karim Abou Zeid (kabouzeid)
  */
-public class SongsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFragment<SongAdapter, GridLayoutManager> implements LoaderManager.LoaderCallbacks<ArrayList<Song>> {
+public class SongsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFragment<SongAdapter, GridLayoutManager> implements LoaderManager.LoaderCallbacks<List<Song>> {
 
     public static final String TAG = SongsFragment.class.getSimpleName();
 
     private static final int LOADER_ID = LoaderIds.SONGS_FRAGMENT;
 
+    // the changes to apply item by item with the next load, null to rebind everything
+    @Nullable
+    private LibraryChangeSet pendingChangeSet;
+    // the version of the library the list shows
+    private long libraryVersion;
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
+        libraryVersion = LibrarySnapshot.getVersion();
         getLoaderManager().initLoader(LOADER_ID, null, this);
     }
 
@@ -46,7 +58,7 @@ public class SongsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFrag
         int itemLayoutRes = getItemLayoutRes();
         notifyLayoutResChanged(itemLayoutRes);
         boolean usePalette = loadUsePalette();
-        ArrayList<Song> dataSet = getAdapter() == null ? new ArrayList<Song>() : getAdapter().getDataSet();
+        List<Song> dataSet = getAdapter() == null ? new ArrayList<Song>() : getAdapter().getDataSet();
 
         if (getGridSize() <= getMaxGridSizeForList()) {
             return new ShuffleButtonSongAdapter(
@@ -71,6 +83,12 @@ public class SongsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFrag
 
     @Override
     public void onMediaStoreChanged() {
+        // read first, a change that happens in between is reported again with the next event
+        final long version = LibrarySnapshot.getVersion();
+        LibraryChangeSet changeSet = LibrarySnapshot.getChangesSince(libraryVersion);
+        if (changeSet != null && changeSet.isEmpty()) return;
+        libraryVersion = version;
+        pendingChangeSet = changeSet != null && changeSet.isGranular() ? changeSet : null;
         getLoaderManager().restartLoader(LOADER_ID, null, this);
     }
 
@@ -116,28 +134,67 @@ public class SongsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFrag
     }
 
     @Override
-    public Loader<ArrayList<Song>> onCreateLoader(int id, Bundle args) {
-        return new AsyncSongLoader(getActivity());
+    public Loader<List<Song>> onCreateLoader(int id, Bundle args) {
+        final LibraryChangeSet changeSet = pendingChangeSet;
+        pendingChangeSet = null;
+        return new AsyncSongLoader(getActivity(), changeSet != null && getAdapter() != null ? getAdapter().getDataSet() : null, changeSet);
     }
 
     @Override
-    public void onLoadFinished(Loader<ArrayList<Song>> loader, ArrayList<Song> data) {
-        getAdapter().swapDataSet(data);
+    public void onLoadFinished(Loader<List<Song>> loader, List<Song> data) {
+        final AsyncSongLoader songLoader = (AsyncSongLoader) loader;
+        final DiffUtil.DiffResult diffResult = songLoader.takeDiffResult();
+        if (diffResult != null) {
+            getAdapter().swapDataSetGranular(data, songLoader.oldDataSet, diffResult);
+        } else {
+            getAdapter().swapDataSet(data);
+        }
     }
 
     @Override
-    public void onLoaderReset(Loader<ArrayList<Song>> loader) {
+    public void onLoaderReset(Loader<List<Song>> loader) {
         getAdapter().swapDataSet(new ArrayList<Song>());
     }
 
-    private static class AsyncSongLoader extends WrappedAsyncTaskLoader<ArrayList<Song>> {
-        public AsyncSongLoader(Context context) {
+    private static class AsyncSongLoader extends WrappedAsyncTaskLoader<List<Song>> {
+        @Nullable
+        final List<Song> oldDataSet;
+        @Nullable
+        private final LibraryChangeSet changeSet;
+        @Nullable
+        private volatile DiffUtil.DiffResult diffResult;
+
+        /**
+         * @param oldDataSet the shown data set, the new one is diffed against it if there is a change set
+         */
+        public AsyncSongLoader(Context context, @Nullable List<Song> oldDataSet, @Nullable LibraryChangeSet changeSet) {
             super(context);
+            this.oldDataSet = oldDataSet;
+            this.changeSet = changeSet;
         }
 
         @Override
-        public ArrayList<Song> loadInBackground() {
-            return SongLoader.getAllSongs(getContext());
+        public List<Song> loadInBackground() {
+            final List<Song> data = load();
+            if (oldDataSet != null && changeSet != null && !oldDataSet.isEmpty() && !data.isEmpty()) {
+                diffResult = StableIdDiffCallback.diffSongs(oldDataSet, data, changeSet);
+            }
+            return data;
+        }
+
+        private List<Song> load() {
+            // the songs are created from the snapshot while binding, not all at once up front
+            return LibrarySnapshot.getInstance(getContext()).getSongList(PreferenceUtil.getInstance(getContext()).getSongSortOrder());
+        }
+
+        /**
+         * @return the diff from the old data set to the loaded one, only once
+         */
+        @Nullable
+        DiffUtil.DiffResult takeDiffResult() {
+            final DiffUtil.DiffResult result = diffResult;
+            diffResult = null;
+            return result;
         }
     }
 }
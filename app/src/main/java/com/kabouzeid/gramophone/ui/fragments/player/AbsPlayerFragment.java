@@ -21,6 +21,8 @@ import com.kabouzeid.gramophone.util.NavigationUtil;
 
 import org.omnirom.gramophone.R;
 
+import java.util.ArrayList;
+
 public abstract class AbsPlayerFragment extends AbsMusicServiceFragment implements Toolbar.OnMenuItemClickListener, PaletteColorHolder {
     public static final String TAG = AbsPlayerFragment.class.getSimpleName();
 
@@ -65,7 +67,7 @@ public abstract class AbsPlayerFragment extends AbsMusicServiceFragment implemen
                 MusicPlayerRemote.clearQueue();
                 return true;
             case R.id.action_save_playing_queue:
-                CreatePlaylistDialog.create(MusicPlayerRemote.getPlayingQueue()).show(getActivity().getSupportFragmentManager(), "ADD_TO_PLAYLIST");
+                CreatePlaylistDialog.create(new ArrayList<Song>(MusicPlayerRemote.getPlayingQueue())).show(getActivity().getSupportFragmentManager(), "ADD_TO_PLAYLIST");
                 return true;
             case R.id.action_tag_editor:
                 Intent intent = new Intent(getActivity(), SongTagEditorActivity.class);
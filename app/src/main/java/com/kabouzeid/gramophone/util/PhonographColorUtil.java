@@ -15,10 +15,13 @@ import java.util.Comparator;
  */
 public class PhonographColorUtil {
 
+    // the bitmap is scaled down to about this many pixels before it is quantized
+    private static final int PALETTE_BITMAP_AREA = 64 * 64;
+
     @Nullable
     public static Palette generatePalette(Bitmap bitmap) {
         if (bitmap == null) return null;
-        return Palette.from(bitmap).generate();
+        return Palette.from(bitmap).resizeBitmapArea(PALETTE_BITMAP_AREA).generate();
     }
 
     @ColorInt
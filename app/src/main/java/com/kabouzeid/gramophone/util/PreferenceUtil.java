@@ -53,8 +53,15 @@ public final class PreferenceUtil {
     public static final String AUDIO_DUCKING = "audio_ducking";
     public static final String GAPLESS_PLAYBACK = "gapless_playback";
 
+    public static final String PLAYBACK_ENGINE = "playback_engine";
+    public static final String PLAYBACK_ENGINE_MEDIA_PLAYER = "media_player";
+    public static final String PLAYBACK_ENGINE_DECODER = "decoder";
+    public static final String CROSSFADE_DURATION = "crossfade_duration";
+
     public static final String LAST_ADDED_CUTOFF = "last_added_interval";
 
+    public static final String HISTORY_SIZE = "history_size";
+
     public static final String ALBUM_ART_ON_LOCKSCREEN = "album_art_on_lockscreen";
     public static final String BLURRED_ALBUM_ART = "blurred_album_art";
 
@@ -171,6 +178,17 @@ public final class PreferenceUtil {
         return mPreferences.getBoolean(GAPLESS_PLAYBACK, false);
     }
 
+    public final boolean decoderPlayback() {
+        return PLAYBACK_ENGINE_DECODER.equals(mPreferences.getString(PLAYBACK_ENGINE, PLAYBACK_ENGINE_MEDIA_PLAYER));
+    }
+
+    /**
+     * @return the crossfade duration in ms, 0 if turned off
+     */
+    public final int getCrossfadeDuration() {
+        return Integer.parseInt(mPreferences.getString(CROSSFADE_DURATION, "0"));
+    }
+
     public final boolean audioDucking() {
         return mPreferences.getBoolean(AUDIO_DUCKING, true);
     }
@@ -244,6 +262,10 @@ public final class PreferenceUtil {
         return (System.currentTimeMillis() - interval) / 1000;
     }
 
+    public final int getHistorySize() {
+        return Integer.parseInt(mPreferences.getString(HISTORY_SIZE, "100"));
+    }
+
     public int getLastSleepTimerValue() {
         return mPreferences.getInt(LAST_SLEEP_TIMER_VALUE, 30);
     }
@@ -1,9 +1,12 @@
 package org.omnirom.gramophone;
 
 import android.app.Application;
+import android.content.Intent;
 import android.os.Build;
 
 import com.kabouzeid.gramophone.appshortcuts.DynamicShortcutManager;
+import com.kabouzeid.gramophone.loader.LibrarySnapshot;
+import com.kabouzeid.gramophone.service.MusicService;
 
 public class OmniApp extends Application {
     public static final String TAG = OmniApp.class.getSimpleName();
@@ -14,6 +17,13 @@ public class OmniApp extends Application {
         super.onCreate();
         app = this;
 
+        LibrarySnapshot.setOnLibraryChangedListener(new LibrarySnapshot.OnLibraryChangedListener() {
+            @Override
+            public void onLibraryChanged() {
+                sendBroadcast(new Intent(MusicService.MEDIA_STORE_CHANGED));
+            }
+        });
+
         //Set up dynamic shortcuts
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1) {
             new DynamicShortcutManager(this).initDynamicShortcuts();